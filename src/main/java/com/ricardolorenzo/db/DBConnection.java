@@ -175,7 +175,10 @@ public class DBConnection {
     }
 
     private void setDateTimeValue(final PreparedStatement ps) throws SQLException {
-        int index = 0;
+        /*
+         * the objects are stored from 0, the statement parameters start on 1
+         */
+        int index = 1;
         for (final Object o : this.objects) {
             if (o instanceof Timestamp) {
                 ps.setTimestamp(index, getObjectInstance(o, Timestamp.class));
@@ -274,12 +277,38 @@ public class DBConnection {
      * @exception DBException
      */
     public List<Map<String, Object>> transactionQuery(final String query) throws DBException {
+        return transactionQuery(query, 0, 0);
+    }
+
+    /**
+     * Execute a query on the RDBMS on an active transaction and return a
+     * <code>java.util.List</code> with a <code>java.util.HashMap</code> with the column values per
+     * row. The driver stops reading after the maximum number of rows, and cancels the query after
+     * the timeout.
+     * 
+     * @param query
+     *            String
+     * @param maxRows
+     *            Maximum number of rows, <code>0</code> for no limit
+     * @param timeout
+     *            Timeout in seconds, <code>0</code> for no limit
+     * @return ArrayList
+     * @exception DBException
+     */
+    public List<Map<String, Object>> transactionQuery(final String query, final int maxRows, final int timeout)
+            throws DBException {
         java.sql.PreparedStatement ps = null;
         try {
             if (this.connection.isClosed()) {
                 throw new DBException("cannot find an active transaction");
             }
             ps = this.connection.prepareStatement(query);
+            if (maxRows > 0) {
+                ps.setMaxRows(maxRows);
+            }
+            if (timeout > 0) {
+                ps.setQueryTimeout(timeout);
+            }
             return internal_query(ps);
         } catch (final SQLException e) {
             throw new DBException(e.getMessage());
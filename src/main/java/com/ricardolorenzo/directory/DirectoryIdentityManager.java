@@ -17,16 +17,29 @@
 package com.ricardolorenzo.directory;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.ricardolorenzo.directory.ldap.LDAPAttributeValueIterator;
+import com.ricardolorenzo.directory.ldap.LDAPChangeFeed;
+import com.ricardolorenzo.directory.ldap.LDAPCompiledQuery;
 import com.ricardolorenzo.directory.ldap.LDAPConnection;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryEntry;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryQuery;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryReader;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryWriter;
 import com.ricardolorenzo.directory.ldap.LDAPException;
+import com.ricardolorenzo.directory.ldap.LDAPSearchHandler;
+import com.ricardolorenzo.directory.ldap.LDAPSortedPage;
 import com.ricardolorenzo.identity.Identity;
 
 /**
@@ -38,11 +51,17 @@ public class DirectoryIdentityManager {
     private Properties properties;
     private LDAPConnection ldapConnection;
     private String baseDN;
+    private int pageSize = LDAPDirectoryReader.DEFAULT_PAGE_SIZE;
+    private volatile ExecutorService searchExecutor;
+    private volatile int searchThreads = 0;
+    private volatile ExecutorService asyncExecutor;
 
     /**
      * Instance a new <code>DirectoryIdentityManager</code> using a Configuration object that must
      * contain some properties like directory.ldap.host, directory.ldap.manager,
-     * directory.ldap.password, directory.ldap.basedn, etc.
+     * directory.ldap.password, directory.ldap.basedn, etc. The property directory.ldap.host can
+     * contain a list of servers separated by commas, the first one (or the one defined in
+     * directory.ldap.primary) receives the writes
      * 
      * @param configuration
      *            Configuration object with connection parameters
@@ -71,6 +90,39 @@ public class DirectoryIdentityManager {
                 setUser(properties.getProperty("directory.ldap.user"),
                         properties.getProperty("directory.ldap.password"));
             }
+            if (properties.getProperty("directory.ldap.primary") != null) {
+                ldapConnection.setPrimary(properties.getProperty("directory.ldap.primary"));
+            }
+            if (properties.getProperty("directory.ldap.page.size") != null) {
+                try {
+                    setPageSize(Integer.parseInt(properties.getProperty("directory.ldap.page.size")));
+                } catch (NumberFormatException e) {
+                }
+            }
+            if (properties.getProperty("directory.ldap.branch.ttl") != null) {
+                try {
+                    setBranchCacheTimeToLive(Long.parseLong(properties.getProperty("directory.ldap.branch.ttl")));
+                } catch (NumberFormatException e) {
+                }
+            }
+            if (properties.getProperty("directory.ldap.search.threads") != null) {
+                try {
+                    setSearchThreads(Integer.parseInt(properties.getProperty("directory.ldap.search.threads")));
+                } catch (NumberFormatException e) {
+                }
+            }
+            if (properties.getProperty("directory.ldap.pool.size") != null) {
+                try {
+                    setPoolSize(Integer.parseInt(properties.getProperty("directory.ldap.pool.size")));
+                } catch (NumberFormatException e) {
+                }
+            }
+            if (properties.getProperty("directory.ldap.pool.timeout") != null) {
+                try {
+                    setPoolTimeout(Long.parseLong(properties.getProperty("directory.ldap.pool.timeout")));
+                } catch (NumberFormatException e) {
+                }
+            }
         } catch (LDAPException e) {
             throw new DirectoryException(e.getMessage());
         }
@@ -179,6 +231,27 @@ public class DirectoryIdentityManager {
         }
     }
 
+    /**
+     * Check which entries of a list exist, looking for their Distinguished Names with a few
+     * requests
+     * 
+     * @param DNs
+     *            Distinguished Names of the entries
+     * @return Map<String, Boolean> with the requested Distinguished Names as keys
+     * @exception DirectoryException
+     */
+    public Map<String, Boolean> checkIdentities(final Collection<String> DNs) throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            return directoryReader.checkEntries(DNs);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
     /**
      * Check if an entry exists, looking for his Distinguished Name
      * 
@@ -258,10 +331,173 @@ public class DirectoryIdentityManager {
         }
     }
 
+    /**
+     * Creates a consumer of the changes of the entries under the base DN. The changes are pushed
+     * by the server to the listeners of the feed once it is started
+     * 
+     * @return LDAPChangeFeed
+     */
+    public LDAPChangeFeed createChangeFeed() {
+        return new LDAPChangeFeed(ldapConnection, baseDN);
+    }
+
     public String getBaseDN() {
         return baseDN;
     }
 
+    /**
+     * Verify if the searches of the containers under the base DN can run in parallel, see
+     * <code>setSearchThreads()</code>
+     * 
+     * @return boolean
+     */
+    public boolean isParallelSearch() {
+        return searchExecutor != null;
+    }
+
+    private ExecutorService getAsyncExecutor() {
+        ExecutorService _executor = asyncExecutor;
+        if (_executor == null) {
+            synchronized (this) {
+                if (asyncExecutor == null) {
+                    asyncExecutor = Executors.newCachedThreadPool(getThreadFactory("ldap-async-"));
+                }
+                _executor = asyncExecutor;
+            }
+        }
+        return _executor;
+    }
+
+    /**
+     * Verify if an entry exists without blocking the calling thread
+     * 
+     * @param DN
+     *            Distinguished Name of the entry
+     * @return Future<Boolean>
+     */
+    public Future<Boolean> checkIdentityAsync(final String DN) {
+        return getAsyncExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws DirectoryException {
+                return checkIdentity(DN);
+            }
+        });
+    }
+
+    /**
+     * Gets an entry from directory without blocking the calling thread. The
+     * <code>DirectoryException</code> is the cause of the <code>ExecutionException</code> if the
+     * request fails
+     * 
+     * @param DN
+     *            Distinguished Name of the entry
+     * @return Future<Identity>
+     */
+    public Future<Identity> getIdentityAsync(final String DN) {
+        return getAsyncExecutor().submit(new Callable<Identity>() {
+            @Override
+            public Identity call() throws DirectoryException {
+                return getIdentity(DN);
+            }
+        });
+    }
+
+    /**
+     * Gets an entry from directory, only with the requested attributes, without blocking the
+     * calling thread
+     * 
+     * @param DN
+     *            Distinguished Name of the entry
+     * @param attributes
+     *            Names of the attributes to load, <code>null</code> to load all of them
+     * @return Future<Identity>
+     */
+    public Future<Identity> getIdentityAsync(final String DN, final String[] attributes) {
+        return getAsyncExecutor().submit(new Callable<Identity>() {
+            @Override
+            public Identity call() throws DirectoryException {
+                return getIdentity(DN, attributes);
+            }
+        });
+    }
+
+    /**
+     * Gets the values of an entry attribute without blocking the calling thread
+     * 
+     * @param DN
+     *            Distinguished Name of the entry
+     * @param attribute
+     *            Name of the attribute
+     * @return Future<List<Object>>
+     */
+    public Future<List<Object>> getIdentityAttributeAsync(final String DN, final String attribute) {
+        return getAsyncExecutor().submit(new Callable<List<Object>>() {
+            @Override
+            public List<Object> call() throws DirectoryException {
+                return getIdentityAttribute(DN, attribute);
+            }
+        });
+    }
+
+    /**
+     * Search for entry that matches the specific <code>DirectoryQuery</code> conditions without
+     * blocking the calling thread. The query must not be used again until the search is done
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @return Future<List<Identity>>
+     */
+    public Future<List<Identity>> searchIdentitiesAsync(final LDAPDirectoryQuery q) {
+        return getAsyncExecutor().submit(new Callable<List<Identity>>() {
+            @Override
+            public List<Identity> call() throws DirectoryException {
+                return searchIdentities(q);
+            }
+        });
+    }
+
+    /**
+     * Search for entry that matches a compiled query without blocking the calling thread
+     * 
+     * @param q
+     *            Compiled query
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @return Future<List<Identity>>
+     */
+    public Future<List<Identity>> searchIdentitiesAsync(final LDAPCompiledQuery q, final Object... arguments) {
+        return getAsyncExecutor().submit(new Callable<List<Identity>>() {
+            @Override
+            public List<Identity> call() throws DirectoryException {
+                return searchIdentities(q, arguments);
+            }
+        });
+    }
+
+    /**
+     * Gets several entries from directory using their Distinguished Names, with a few requests
+     * instead of one request per entry. The entries that do not exist are not included
+     * 
+     * @param DNs
+     *            Distinguished Names of the entries
+     * @param attributes
+     *            Names of the attributes to load, <code>null</code> to load all of them
+     * @return Map<String, Identity> with the requested Distinguished Names as keys
+     * @exception DirectoryException
+     */
+    public Map<String, Identity> getIdentities(final Collection<String> DNs, final String[] attributes)
+            throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            return directoryReader.getEntries(DNs, attributes);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
     /**
      * Get some entry from directory using his Distinguished Name
      * 
@@ -282,6 +518,29 @@ public class DirectoryIdentityManager {
         }
     }
 
+    /**
+     * Gets an entry from directory using his Distinguished Name, only with the requested
+     * attributes
+     * 
+     * @param DN
+     *            Distinguished Name of the entry
+     * @param attributes
+     *            Names of the attributes to load, <code>null</code> to load all of them
+     * @return DirectoryEntry
+     * @exception DirectoryException
+     */
+    public Identity getIdentity(final String DN, final String[] attributes) throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            return directoryReader.getEntry(DN, attributes);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
     /**
      * Gets an entry from directory using his Distinguished Name. You can provide a list of
      * attributes to be ignored when load the entry data
@@ -358,6 +617,21 @@ public class DirectoryIdentityManager {
         }
     }
 
+    /**
+     * Gets the values of an entry attribute one range at a time, without loading all of them in
+     * memory. The values are read while they are iterated
+     * 
+     * @param DN
+     *            Distinguished Name of the entry
+     * @param attribute
+     *            name of the attribute
+     * @return LDAPAttributeValueIterator
+     */
+    public LDAPAttributeValueIterator getIdentityAttributeValues(final String DN, final String attribute) {
+        LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+        return directoryReader.getEntryAttributeValues(DN, attribute);
+    }
+
     /**
      * Check if the directory server connection use Server Socket Layers
      * 
@@ -441,6 +715,96 @@ public class DirectoryIdentityManager {
         return searchIdentities(q, null);
     }
 
+    /**
+     * Search for entry that matches a compiled query, using the values of the arguments
+     * 
+     * @param q
+     *            Compiled query
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @return List<DirectoryEntry>
+     * @exception DirectoryException
+     */
+    public List<Identity> searchIdentities(final LDAPCompiledQuery q, final Object... arguments)
+            throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            return directoryReader.search(q, arguments);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
+    /**
+     * Search for the first entries that match a compiled query, stopping after the limit of
+     * entries or the time limit
+     * 
+     * @param q
+     *            Compiled query
+     * @param limit
+     *            Maximum number of entries
+     * @param timeLimit
+     *            Time limit of the search in milliseconds
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @return List<DirectoryEntry>
+     * @exception DirectoryException
+     */
+    public List<Identity> searchFirstIdentities(final LDAPCompiledQuery q, final int limit, final int timeLimit,
+            final Object... arguments) throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            return directoryReader.searchFirst(q, limit, timeLimit, arguments);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
+    /**
+     * Counts the entries that match the specific <code>DirectoryQuery</code> conditions, without
+     * loading them
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @return long
+     * @exception DirectoryException
+     */
+    public long countIdentities(final LDAPDirectoryQuery q) throws DirectoryException {
+        return countIdentities(q, null);
+    }
+
+    /**
+     * Counts the entries that match the specific <code>DirectoryQuery</code> conditions, using an
+     * specific BaseDN, without loading them
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param basedn
+     *            Specific baseDN to search
+     * @return long
+     * @exception DirectoryException
+     */
+    public long countIdentities(final LDAPDirectoryQuery q, String basedn) throws DirectoryException {
+        try {
+            if (basedn == null) {
+                basedn = baseDN;
+            }
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, basedn);
+            return directoryReader.count(q, pageSize);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
     /**
      * Search for entry that matches the specific <code>DirectoryQuery</code> conditions, using an
      * specific BaseDN
@@ -467,6 +831,168 @@ public class DirectoryIdentityManager {
         }
     }
 
+    /**
+     * Search for entry that matches the specific <code>DirectoryQuery</code> conditions. Entries
+     * are sent to the handler page by page while the search is running, instead of being returned
+     * in a list
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param handler
+     *            LDAPSearchHandler that receives the entries
+     * @exception DirectoryException
+     */
+    public void streamIdentities(final LDAPDirectoryQuery q, final LDAPSearchHandler handler)
+            throws DirectoryException {
+        streamIdentities(q, null, handler);
+    }
+
+    /**
+     * Search for entry that matches the specific <code>DirectoryQuery</code> conditions, using an
+     * specific BaseDN. Entries are sent to the handler page by page while the search is running,
+     * instead of being returned in a list
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param basedn
+     *            Specific baseDN to search
+     * @param handler
+     *            LDAPSearchHandler that receives the entries
+     * @exception DirectoryException
+     */
+    public void streamIdentities(final LDAPDirectoryQuery q, String basedn, final LDAPSearchHandler handler)
+            throws DirectoryException {
+        try {
+            if (basedn == null) {
+                basedn = baseDN;
+            }
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, basedn);
+            directoryReader.search(q, pageSize, handler);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
+    /**
+     * Search for entry that matches a compiled query, searching every entry under the base DN that
+     * can contain other entries in parallel. Entries are sent to the handler, in the calling
+     * thread, as they arrive. If the parallel search is not enabled, a single paged search is used
+     * 
+     * @param q
+     *            Compiled query
+     * @param handler
+     *            LDAPSearchHandler that receives the entries
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @exception DirectoryException
+     */
+    public void parallelSearch(final LDAPCompiledQuery q, final LDAPSearchHandler handler, final Object... arguments)
+            throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            ExecutorService _executor = searchExecutor;
+            if (_executor != null) {
+                directoryReader.parallelSearch(q, _executor, searchThreads, pageSize, handler, arguments);
+            } else {
+                for (Identity _e : directoryReader.search(q, arguments)) {
+                    if (!handler.handle(_e)) {
+                        break;
+                    }
+                }
+            }
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the partitions of the base DN: the base DN itself, for the base DN entry and the
+     * entries directly under it, and the Distinguished Names of the entries directly under the base
+     * DN that can contain other entries. Every
+     * partition can be searched on its own with <code>searchContainer()</code>
+     * 
+     * @return List<String>
+     * @exception DirectoryException
+     */
+    public List<String> getContainers() throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            List<String> _containers = new ArrayList<String>();
+            _containers.add(baseDN);
+            _containers.addAll(directoryReader.getContainers());
+            return _containers;
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
+    /**
+     * Search for entry that matches a compiled query in one of the partitions returned by
+     * <code>getContainers()</code>
+     * 
+     * @param q
+     *            Compiled query
+     * @param container
+     *            Partition to search
+     * @param handler
+     *            LDAPSearchHandler that receives the entries
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @exception DirectoryException
+     */
+    public void searchContainer(final LDAPCompiledQuery q, final String container, final LDAPSearchHandler handler,
+            final Object... arguments) throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            directoryReader.searchContainer(q, container, pageSize, handler, arguments);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
+    /**
+     * Search for entries changed on a Microsoft Active Directory domain controller after an
+     * update sequence number. Returns the rootDSE of the domain controller used, with the
+     * attributes <code>dnsHostName</code> and <code>highestCommittedUSN</code>
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param server
+     *            Host name of the domain controller that generated the sequence number
+     * @param usn
+     *            Update sequence number, <code>0</code> to get all the entries
+     * @param handler
+     *            LDAPSearchHandler that receives the changed entries
+     * @param deletedHandler
+     *            LDAPSearchHandler that receives the deleted entries, can be null
+     * @return Identity
+     * @exception DirectoryException
+     */
+    public Identity searchChanges(final LDAPDirectoryQuery q, final String server, final long usn,
+            final LDAPSearchHandler handler, final LDAPSearchHandler deletedHandler) throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            return directoryReader.searchChanges(q, server, usn, pageSize, handler, deletedHandler);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
     /**
      * Search for entry that matches the specific <code>DirectoryQuery</code> conditions. Returns a
      * <code>java.util.List<String></code> with the Distinguished names of the entries that match
@@ -517,6 +1043,18 @@ public class DirectoryIdentityManager {
         ldapConnection.setCountLimit(limit);
     }
 
+    /**
+     * Sets the number of entries per page used by streaming searches
+     * 
+     * @param size
+     *            An <code>Integer</code> with the number of entries per page
+     */
+    public void setPageSize(final int size) {
+        if (size > 0) {
+            pageSize = size;
+        }
+    }
+
     /**
      * Sets the connection timeout
      * 
@@ -582,6 +1120,84 @@ public class DirectoryIdentityManager {
         ldapConnection.setConnectionPool(status);
     }
 
+    /**
+     * Sets the time that the Distinguished Names resolved for <code>BRANCH</code> conditions are
+     * kept, <code>0</code> to resolve them on every query
+     * 
+     * @param milliseconds
+     *            long
+     */
+    public void setBranchCacheTimeToLive(final long milliseconds) {
+        ldapConnection.getBranchCache().setTimeToLive(milliseconds);
+    }
+
+    private static ThreadFactory getThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread _t = new Thread(r, prefix + count.incrementAndGet());
+                _t.setDaemon(true);
+                return _t;
+            }
+        };
+    }
+
+    /**
+     * Sets the executor used by the asynchronous methods. By default a pool of daemon threads is
+     * created on the first asynchronous call. The number of requests running against a server is
+     * limited by the size of its pools anyway
+     * 
+     * @param executor
+     *            ExecutorService
+     */
+    public void setAsyncExecutor(final ExecutorService executor) {
+        asyncExecutor = executor;
+    }
+
+    /**
+     * Sets the number of threads used to search the containers under the base DN in parallel,
+     * <code>0</code> disables the parallel search. The searches against a server are also limited
+     * by the size of its read only pool
+     * 
+     * @param threads
+     *            int
+     */
+    public synchronized void setSearchThreads(final int threads) {
+        ExecutorService _old = searchExecutor;
+        if (threads > 0) {
+            searchExecutor = Executors.newFixedThreadPool(threads, getThreadFactory("ldap-search-"));
+            searchThreads = threads;
+        } else {
+            searchExecutor = null;
+            searchThreads = 0;
+        }
+        if (_old != null) {
+            _old.shutdown();
+        }
+    }
+
+    /**
+     * Sets the maximum number of pooled connections used for reads, and the same number for writes
+     * 
+     * @param size
+     *            An <code>Integer</code> with the maximum number of connections
+     */
+    public void setPoolSize(final int size) {
+        ldapConnection.setPoolSize(size);
+    }
+
+    /**
+     * Sets the maximum time to wait for a pooled connection when all of them are in use
+     * 
+     * @param milliseconds
+     *            A <code>Long</code> with the number of milliseconds for timeout
+     */
+    public void setPoolTimeout(final long milliseconds) {
+        ldapConnection.setPoolTimeout(milliseconds);
+    }
+
     /**
      * Search for entry that matches the specific <code>DirectoryQuery</code> conditions. Results
      * will be order using the values of a specific attribute
@@ -626,6 +1242,35 @@ public class DirectoryIdentityManager {
         }
     }
 
+    /**
+     * Search for a window of the entries that matches the specific <code>DirectoryQuery</code>
+     * conditions, ordered by an attribute. The directory server sorts the entries and returns only
+     * the window when it supports the virtual list view control
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param attribute
+     *            Name of the attribute that determines the order
+     * @param offset
+     *            Position of the first entry of the window, starting from <code>0</code>
+     * @param count
+     *            Number of entries of the window
+     * @return LDAPSortedPage
+     * @exception DirectoryException
+     */
+    public LDAPSortedPage sortedSearch(final LDAPDirectoryQuery q, final String attribute, final int offset,
+            final int count) throws DirectoryException {
+        try {
+            LDAPDirectoryReader directoryReader = new LDAPDirectoryReader(ldapConnection, baseDN);
+            return directoryReader.sortedSearch(q, attribute, offset, count, null);
+        } catch (LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+    }
+
     /**
      * Updates an entry into directory
      * 
@@ -0,0 +1,203 @@
+/*
+ * LDAPAttributeValueIterator class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+
+/**
+ * Reads the values of a multi-valued attribute one range at a time. Microsoft Active Directory
+ * does not return more than <code>MaxValRange</code> values of an attribute on a single request,
+ * the values are returned as <code>member;range=0-1499</code> and the next ranges must be
+ * requested explicitly. Only the values of one range are kept in memory. Servers without ranged
+ * retrieval return all the values with the first request
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPAttributeValueIterator {
+    private final static Logger _log = Logger.getLogger(LDAPAttributeValueIterator.class.getName());
+    static final String RANGE_OPTION = ";range=";
+    private final LDAPConnection connection;
+    private final String DN;
+    private final String attribute;
+    private NamingEnumeration<?> values;
+    private int nextRange = 0;
+
+    /**
+     * LDAPAttributeValueIterator constructor
+     *
+     * @param connection
+     *            LDAPConnection
+     * @param DN
+     *            Distinguished Name of the entry
+     * @param attribute
+     *            Name of the attribute
+     */
+    protected LDAPAttributeValueIterator(final LDAPConnection connection, final String DN, final String attribute) {
+        this.connection = connection;
+        this.DN = DN;
+        this.attribute = attribute;
+    }
+
+    /**
+     * Returns the name of an attribute without the range option
+     *
+     * @param att
+     *            Attribute
+     * @return String
+     */
+    static String getAttributeName(final Attribute att) {
+        String _name = att.getID();
+        int _index = _name.toLowerCase().indexOf(RANGE_OPTION);
+        if (_index == -1) {
+            return _name;
+        }
+        return _name.substring(0, _index);
+    }
+
+    /**
+     * Returns the first value of the next range of an attribute, or <code>-1</code> if the
+     * attribute contains the last values
+     *
+     * @param att
+     *            Attribute
+     * @return int
+     */
+    static int getNextRange(final Attribute att) {
+        String _name = att.getID();
+        int _index = _name.toLowerCase().indexOf(RANGE_OPTION);
+        if (_index == -1) {
+            return -1;
+        }
+        String _range = _name.substring(_index + RANGE_OPTION.length());
+        int _separator = _range.indexOf('-');
+        if (_separator == -1 || "*".equals(_range.substring(_separator + 1))) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(_range.substring(_separator + 1)) + 1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a range of values of an attribute, starting on a value. Returns <code>null</code> if
+     * the entry has no values on that range
+     *
+     * @param ctx
+     *            DirContext
+     * @param DN
+     *            Distinguished Name of the entry
+     * @param attribute
+     *            Name of the attribute, without range option
+     * @param first
+     *            First value of the range, <code>0</code> to read the attribute without range
+     *            option
+     * @return Attribute
+     * @exception NamingException
+     */
+    static Attribute readRange(final DirContext ctx, final String DN, final String attribute, final int first)
+            throws NamingException {
+        String _name = first > 0 ? attribute + RANGE_OPTION + first + "-*" : attribute;
+        Attributes _atts = ctx.getAttributes(DN, new String[] { _name });
+        if (_atts == null) {
+            return null;
+        }
+        NamingEnumeration<? extends Attribute> _ne = _atts.getAll();
+        while (_ne.hasMore()) {
+            Attribute _att = _ne.next();
+            if (attribute.equalsIgnoreCase(getAttributeName(_att))) {
+                return _att;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Verify if there are more values
+     *
+     * @return boolean
+     * @exception LDAPException
+     */
+    public boolean hasMore() throws LDAPException {
+        try {
+            while (values == null || !values.hasMore()) {
+                if (nextRange < 0) {
+                    return false;
+                }
+                readNextRange();
+            }
+            return true;
+        } catch (NamingException e) {
+            _log.log(java.util.logging.Level.ALL, "hasMore() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the next value
+     *
+     * @return Object
+     * @exception LDAPException
+     */
+    public Object next() throws LDAPException {
+        if (!hasMore()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            return values.next();
+        } catch (NamingException e) {
+            _log.log(java.util.logging.Level.ALL, "next() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        }
+    }
+
+    private void readNextRange() throws LDAPException {
+        DirContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            Attribute _att = readRange(ctx, DN, attribute, nextRange);
+            if (_att == null) {
+                values = null;
+                nextRange = -1;
+            } else {
+                values = _att.getAll();
+                nextRange = getNextRange(_att);
+            }
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "readNextRange() null pointer");
+            throw new LDAPException("read attribute range null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "readNextRange() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+    }
+}
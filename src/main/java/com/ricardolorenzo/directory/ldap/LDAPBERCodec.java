@@ -0,0 +1,158 @@
+/*
+ * LDAPBERCodec class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Minimal BER encoding and decoding of the values of the LDAP controls. The decoding methods move
+ * the position, the first element of the array, after the element read
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+final class LDAPBERCodec {
+    static final int BOOLEAN = 0x01;
+    static final int INTEGER = 0x02;
+    static final int OCTET_STRING = 0x04;
+    static final int ENUMERATED = 0x0A;
+    static final int SEQUENCE = 0x30;
+
+    private LDAPBERCodec() {
+    }
+
+    static void writeElement(final ByteArrayOutputStream out, final int tag, final byte[] content) {
+        out.write(tag);
+        if (content.length < 0x80) {
+            out.write(content.length);
+        } else if (content.length < 0x100) {
+            out.write(0x81);
+            out.write(content.length);
+        } else if (content.length < 0x10000) {
+            out.write(0x82);
+            out.write((content.length >> 8) & 0xFF);
+            out.write(content.length & 0xFF);
+        } else {
+            out.write(0x83);
+            out.write((content.length >> 16) & 0xFF);
+            out.write((content.length >> 8) & 0xFF);
+            out.write(content.length & 0xFF);
+        }
+        out.write(content, 0, content.length);
+    }
+
+    static void writeBoolean(final ByteArrayOutputStream out, final boolean value) {
+        writeElement(out, BOOLEAN, new byte[] { (byte) (value ? 0xFF : 0x00) });
+    }
+
+    static void writeInteger(final ByteArrayOutputStream out, final int tag, final int value) {
+        int _length = 4;
+        while (_length > 1) {
+            int _first = (value >> ((_length - 1) * 8 - 1)) & 0x1FF;
+            if (_first != 0 && _first != 0x1FF) {
+                break;
+            }
+            _length--;
+        }
+        byte[] _content = new byte[_length];
+        for (int i = 0; i < _length; i++) {
+            _content[i] = (byte) (value >> ((_length - 1 - i) * 8));
+        }
+        writeElement(out, tag, _content);
+    }
+
+    static byte[] sequence(final ByteArrayOutputStream content) {
+        ByteArrayOutputStream _sequence = new ByteArrayOutputStream();
+        writeElement(_sequence, SEQUENCE, content.toByteArray());
+        return _sequence.toByteArray();
+    }
+
+    /**
+     * Reads the header of the sequence of a control value, returns the position of the end of
+     * the sequence
+     */
+    static int readSequence(final byte[] value, final int[] position) throws IOException {
+        if (value == null || position[0] >= value.length || (value[position[0]] & 0xFF) != SEQUENCE) {
+            throw new IOException("invalid control value");
+        }
+        position[0]++;
+        int _end = readLength(value, position) + position[0];
+        if (_end > value.length) {
+            throw new IOException("invalid control value");
+        }
+        return _end;
+    }
+
+    static boolean hasElement(final byte[] value, final int[] position, final int end, final int tag) {
+        return position[0] < end && (value[position[0]] & 0xFF) == tag;
+    }
+
+    static int readLength(final byte[] value, final int[] position) throws IOException {
+        if (position[0] >= value.length) {
+            throw new IOException("invalid control value");
+        }
+        int _length = value[position[0]++] & 0xFF;
+        if (_length < 0x80) {
+            return _length;
+        }
+        int _bytes = _length & 0x7F;
+        if (_bytes > 3 || position[0] + _bytes > value.length) {
+            throw new IOException("invalid control value");
+        }
+        _length = 0;
+        for (int i = 0; i < _bytes; i++) {
+            _length = (_length << 8) | (value[position[0]++] & 0xFF);
+        }
+        return _length;
+    }
+
+    static byte[] readContent(final byte[] value, final int[] position, final int tag) throws IOException {
+        if (position[0] >= value.length || (value[position[0]] & 0xFF) != tag) {
+            throw new IOException("invalid control value");
+        }
+        position[0]++;
+        int _length = readLength(value, position);
+        if (position[0] + _length > value.length) {
+            throw new IOException("invalid control value");
+        }
+        byte[] _content = new byte[_length];
+        System.arraycopy(value, position[0], _content, 0, _length);
+        position[0] += _length;
+        return _content;
+    }
+
+    static boolean readBoolean(final byte[] value, final int[] position) throws IOException {
+        byte[] _content = readContent(value, position, BOOLEAN);
+        if (_content.length != 1) {
+            throw new IOException("invalid control value");
+        }
+        return _content[0] != 0;
+    }
+
+    static long readInteger(final byte[] value, final int[] position, final int tag) throws IOException {
+        byte[] _content = readContent(value, position, tag);
+        if (_content.length < 1 || _content.length > 8) {
+            throw new IOException("invalid control value");
+        }
+        long _value = _content[0];
+        for (int i = 1; i < _content.length; i++) {
+            _value = (_value << 8) | (_content[i] & 0xFF);
+        }
+        return _value;
+    }
+}
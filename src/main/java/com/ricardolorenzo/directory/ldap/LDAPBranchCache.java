@@ -0,0 +1,126 @@
+/*
+ * LDAPBranchCache class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the Distinguished Names resolved for <code>BRANCH</code> query conditions. Entries
+ * expire after a time to live, so moved or renamed branches are resolved again
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPBranchCache {
+    public static final long DEFAULT_TTL = 300000L;
+    private final Map<String, Branch> branches = new ConcurrentHashMap<String, Branch>();
+    private volatile long ttl = DEFAULT_TTL;
+
+    private static final class Branch {
+        private final String DN;
+        private final long expires;
+
+        private Branch(final String DN, final long expires) {
+            this.DN = DN;
+            this.expires = expires;
+        }
+    }
+
+    private static String getKey(final String baseDN, final String attribute, final String value) {
+        StringBuilder _sb = new StringBuilder();
+        _sb.append(attribute.toLowerCase());
+        _sb.append("=");
+        _sb.append(value);
+        _sb.append(",");
+        _sb.append(baseDN.toLowerCase());
+        return _sb.toString();
+    }
+
+    /**
+     * Removes all the resolved branches
+     */
+    public void clear() {
+        branches.clear();
+    }
+
+    /**
+     * Returns the Distinguished Name of a branch, or <code>null</code> if the branch is not
+     * cached or it expired
+     *
+     * @param baseDN
+     *            Distinguished Name where the branch was searched
+     * @param attribute
+     *            Attribute of the <code>BRANCH</code> condition
+     * @param value
+     *            Value of the <code>BRANCH</code> condition
+     * @return String
+     */
+    public String get(final String baseDN, final String attribute, final String value) {
+        String _key = getKey(baseDN, attribute, value);
+        Branch _b = branches.get(_key);
+        if (_b == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= _b.expires) {
+            branches.remove(_key);
+            return null;
+        }
+        return _b.DN;
+    }
+
+    /**
+     * Returns the time to live of the resolved branches in milliseconds
+     *
+     * @return long
+     */
+    public long getTimeToLive() {
+        return ttl;
+    }
+
+    /**
+     * Stores the Distinguished Name of a branch
+     *
+     * @param baseDN
+     *            Distinguished Name where the branch was searched
+     * @param attribute
+     *            Attribute of the <code>BRANCH</code> condition
+     * @param value
+     *            Value of the <code>BRANCH</code> condition
+     * @param DN
+     *            Distinguished Name of the branch
+     */
+    public void put(final String baseDN, final String attribute, final String value, final String DN) {
+        if (ttl <= 0) {
+            return;
+        }
+        branches.put(getKey(baseDN, attribute, value), new Branch(DN, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Sets the time to live of the resolved branches, <code>0</code> disables the cache
+     *
+     * @param milliseconds
+     *            long
+     */
+    public void setTimeToLive(final long milliseconds) {
+        ttl = Math.abs(milliseconds);
+        if (ttl == 0) {
+            branches.clear();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * LDAPChangeEvent class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import com.ricardolorenzo.identity.Identity;
+
+/**
+ * One change of an entry received from a <code>LDAPChangeFeed</code>
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPChangeEvent {
+    public static final int ADD = 1;
+    public static final int MODIFY = 2;
+    public static final int DELETE = 3;
+    public static final int RENAME = 4;
+    public static final int REFRESH = 5;
+    private final int type;
+    private final String DN;
+    private final String previousDN;
+    private final String entryUUID;
+    private final Identity entry;
+    private final byte[] cookie;
+
+    /**
+     * LDAPChangeEvent constructor
+     *
+     * @param type
+     *            <code>ADD</code>, <code>MODIFY</code>, <code>DELETE</code>, <code>RENAME</code>
+     *            or <code>REFRESH</code>
+     * @param DN
+     *            Distinguished Name of the entry, the base DN for <code>REFRESH</code>
+     * @param previousDN
+     *            Previous Distinguished Name of a renamed entry, or <code>null</code>
+     * @param entryUUID
+     *            Unique identifier of the entry, or <code>null</code>
+     * @param entry
+     *            Attributes of the entry, the deleted entries can have no attributes
+     * @param cookie
+     *            State of the synchronization after this change, or <code>null</code>
+     */
+    public LDAPChangeEvent(final int type, final String DN, final String previousDN, final String entryUUID,
+            final Identity entry, final byte[] cookie) {
+        this.type = type;
+        this.DN = DN;
+        this.previousDN = previousDN;
+        this.entryUUID = entryUUID;
+        this.entry = entry;
+        this.cookie = cookie;
+    }
+
+    /**
+     * Returns the state of the synchronization after this change, or <code>null</code> if the
+     * server does not send it with every change
+     *
+     * @return byte[]
+     */
+    public byte[] getCookie() {
+        if (cookie == null) {
+            return null;
+        }
+        return cookie.clone();
+    }
+
+    /**
+     * Returns the Distinguished Name of the entry
+     *
+     * @return String
+     */
+    public String getDN() {
+        return DN;
+    }
+
+    /**
+     * Returns the entry. The deleted entries can have no attributes
+     *
+     * @return Identity
+     */
+    public Identity getEntry() {
+        return entry;
+    }
+
+    /**
+     * Returns the unique identifier of the entry, or <code>null</code>
+     *
+     * @return String
+     */
+    public String getEntryUUID() {
+        return entryUUID;
+    }
+
+    /**
+     * Returns the previous Distinguished Name of a renamed entry, or <code>null</code>
+     *
+     * @return String
+     */
+    public String getPreviousDN() {
+        return previousDN;
+    }
+
+    /**
+     * Returns the type of change, <code>ADD</code>, <code>MODIFY</code>, <code>DELETE</code> or
+     * <code>RENAME</code>. <code>REFRESH</code> marks the end of a full refresh of a feed that
+     * reconciles its entries: every entry under the base DN was delivered as added since the start
+     * of the feed or since the previous <code>REFRESH</code>, the entries not delivered were
+     * deleted
+     *
+     * @return int
+     */
+    public int getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder _sb = new StringBuilder();
+        switch (type) {
+            case ADD:
+                _sb.append("add ");
+                break;
+            case MODIFY:
+                _sb.append("modify ");
+                break;
+            case DELETE:
+                _sb.append("delete ");
+                break;
+            case RENAME:
+                _sb.append("rename ");
+                _sb.append(previousDN);
+                _sb.append(" -> ");
+                break;
+            case REFRESH:
+                _sb.append("refresh ");
+                break;
+            default:
+                break;
+        }
+        _sb.append(DN);
+        return _sb.toString();
+    }
+}
@@ -0,0 +1,637 @@
+/*
+ * LDAPChangeFeed class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+
+import com.ricardolorenzo.identity.ChangeToken;
+import com.ricardolorenzo.identity.Identity;
+import com.ricardolorenzo.identity.IdentityException;
+import com.ricardolorenzo.identity.checkpoint.CheckpointStore;
+import com.ricardolorenzo.identity.checkpoint.impl.CheckpointStoreFile;
+
+/**
+ * Long-lived consumer of the changes of the entries under a base DN. The changes are pushed by
+ * the server and delivered to the registered listeners, so the directory does not need to be
+ * scanned periodically.
+ *
+ * The Content Synchronization operation (RFC 4533, syncrepl) is used when the server supports
+ * it, otherwise the persistent search (draft-ietf-ldapext-psearch). With the Content
+ * Synchronization operation, the cookie of the last change processed by all the listeners can be
+ * persisted on a <code>CheckpointStore</code>. The persistent search can not be resumed, only the
+ * changes after the start are received.
+ *
+ * JNDI does not deliver the intermediate responses of the Content Synchronization (syncIdSet,
+ * refreshDelete and refreshPresent). This is a known limit: the servers usually report the
+ * entries deleted while the feed was not connected with those responses, so they are not
+ * delivered when the feed resumes from the cookie. A cache of the last 10000 entries is kept to
+ * report renames.
+ *
+ * With <code>setReconcile(true)</code> the feed finds those deletes itself, at the cost of a scan
+ * of the base DN on every reconnection. It keeps the entryUUID of every entry under the base DN
+ * in memory. The first time it connects it runs a full refresh and ignores the stored cookie:
+ * every entry is delivered as added, followed by a <code>LDAPChangeEvent.REFRESH</code> event,
+ * and the entries that the listeners knew before and were not delivered were deleted. After a
+ * reconnection it resumes from the cookie, then reads the entryUUID of all the entries and
+ * delivers the known entries that are not found any more as deleted.
+ *
+ * The feed uses its own connection with the primary server, not a pooled one, and reconnects
+ * after <code>getRetryInterval()</code> milliseconds if the connection fails.
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPChangeFeed implements Runnable {
+    private final static Logger _log = Logger.getLogger(LDAPChangeFeed.class.getName());
+    public static final int MODE_AUTO = 0;
+    public static final int MODE_SYNC = 1;
+    public static final int MODE_PERSISTENT_SEARCH = 2;
+    private static final String[] RETURNING_ATTRIBUTES = new String[] { "*", "entryUUID" };
+    private static final int SYNC_REFRESH_REQUIRED = 4096;
+    private static final int KNOWN_ENTRIES = 10000;
+    private final LDAPConnection connection;
+    private final String baseDN;
+    private final List<LDAPChangeListener> listeners = new CopyOnWriteArrayList<LDAPChangeListener>();
+    private final Map<String, String> knownEntries;
+    private volatile boolean reconcile = false;
+    private volatile boolean refreshed = false;
+    private volatile String filter = "(objectClass=*)";
+    private volatile int mode = MODE_AUTO;
+    private volatile long retryInterval = LDAPServer.DEFAULT_RETRY_INTERVAL;
+    private volatile byte[] cookie;
+    private volatile CheckpointStore checkpointStore;
+    private volatile String checkpointName;
+    private volatile boolean running = false;
+    private volatile LdapContext ctx;
+    private volatile NamingEnumeration<SearchResult> answer;
+    private Thread thread;
+
+    /**
+     * LDAPChangeFeed constructor
+     *
+     * @param connection
+     *            LDAPConnection
+     * @param baseDN
+     *            Distinguished Name of the base entry of the changes
+     */
+    public LDAPChangeFeed(final LDAPConnection connection, final String baseDN) {
+        this.connection = connection;
+        this.baseDN = baseDN;
+        this.knownEntries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                return !reconcile && size() > KNOWN_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * Registers a listener
+     *
+     * @param listener
+     *            LDAPChangeListener
+     */
+    public void addListener(final LDAPChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the cookie of the last change processed by all the listeners, or <code>null</code>
+     *
+     * @return byte[]
+     */
+    public byte[] getCookie() {
+        byte[] _cookie = cookie;
+        if (_cookie == null) {
+            return null;
+        }
+        return _cookie.clone();
+    }
+
+    /**
+     * Returns the milliseconds to wait before reconnecting after a failure
+     *
+     * @return long
+     */
+    public long getRetryInterval() {
+        return retryInterval;
+    }
+
+    /**
+     * Verify if the feed is started
+     *
+     * @return boolean
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Unregisters a listener
+     *
+     * @param listener
+     *            LDAPChangeListener
+     */
+    public void removeListener(final LDAPChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Defines the cookie to resume the Content Synchronization from. With
+     * <code>setReconcile(true)</code> the first connection runs a full refresh and the cookie is
+     * only used after the reconnections. Must be defined before <code>start()</code>
+     *
+     * @param cookie
+     *            byte[]
+     */
+    public void setCookie(final byte[] cookie) {
+        this.cookie = cookie == null ? null : cookie.clone();
+    }
+
+    /**
+     * Defines a store to persist the cookie of the last change processed by all the listeners.
+     * If the store contains a checkpoint with the name, it is loaded as the cookie of the feed
+     *
+     * @param store
+     *            CheckpointStore
+     * @param name
+     *            Name of the checkpoint
+     * @exception LDAPException
+     */
+    public void setCheckpointStore(final CheckpointStore store, final String name) throws LDAPException {
+        try {
+            ChangeToken _token = store == null ? null : store.getCheckpoint(name);
+            if (_token != null) {
+                this.cookie = _token.getBinaryValue();
+            }
+        } catch (IdentityException e) {
+            _log.log(java.util.logging.Level.ALL, "setCheckpointStore() - " + e.getMessage());
+            throw new LDAPException("cannot read cookie - " + e.getMessage());
+        }
+        this.checkpointName = name;
+        this.checkpointStore = store;
+    }
+
+    /**
+     * Defines a file to persist the cookie of the last change processed by all the listeners.
+     * If the file exists, it is loaded as the cookie of the feed
+     *
+     * @param file
+     *            File
+     * @exception LDAPException
+     */
+    public void setCookieFile(final File file) throws LDAPException {
+        if (file == null) {
+            setCheckpointStore(null, null);
+            return;
+        }
+        try {
+            setCheckpointStore(new CheckpointStoreFile(file), baseDN);
+        } catch (IdentityException e) {
+            _log.log(java.util.logging.Level.ALL, "setCookieFile() - " + e.getMessage());
+            throw new LDAPException("cannot read cookie file - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Defines the filter of the entries, <code>(objectClass=*)</code> by default
+     *
+     * @param filter
+     *            String
+     */
+    public void setFilter(final String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Defines the operation used to receive the changes
+     *
+     * <code>MODE_AUTO</code> <code>MODE_SYNC</code> <code>MODE_PERSISTENT_SEARCH</code>
+     *
+     * @param mode
+     *            int
+     */
+    public void setMode(final int mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Defines if the entries deleted while the feed was not connected must be found, keeping the
+     * entryUUID of every entry in memory and reading all of them after every reconnection.
+     * Disabled by default. Must be defined before <code>start()</code>
+     *
+     * @param reconcile
+     *            boolean
+     */
+    public void setReconcile(final boolean reconcile) {
+        this.reconcile = reconcile;
+    }
+
+    /**
+     * Defines the milliseconds to wait before reconnecting after a failure
+     *
+     * @param milliseconds
+     *            long
+     */
+    public void setRetryInterval(final long milliseconds) {
+        this.retryInterval = milliseconds;
+    }
+
+    /**
+     * Starts receiving changes on a background thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "ldap-change-feed");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops receiving changes and closes the connection
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        close();
+        thread.interrupt();
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                consume();
+            } catch (LDAPException e) {
+                _log.log(java.util.logging.Level.ALL, "run() - " + e.getMessage());
+            } finally {
+                close();
+            }
+            if (!running) {
+                break;
+            }
+            try {
+                Thread.sleep(retryInterval);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void close() {
+        NamingEnumeration<SearchResult> _answer = answer;
+        answer = null;
+        if (_answer != null) {
+            try {
+                _answer.close();
+            } catch (NamingException e) {
+                // nothing
+            }
+        }
+        LdapContext _ctx = ctx;
+        ctx = null;
+        if (_ctx != null) {
+            try {
+                _ctx.close();
+            } catch (NamingException e) {
+                // nothing
+            }
+        }
+    }
+
+    private void consume() throws LDAPException {
+        LdapContext _ctx = connection.createContext(connection.getPrimary(), LDAPConnection.RO);
+        ctx = _ctx;
+        if (!running) {
+            return;
+        }
+        try {
+            int _mode = mode;
+            if (_mode == MODE_AUTO) {
+                _mode = getMode(_ctx);
+            }
+            if (_mode == MODE_SYNC) {
+                sync(_ctx);
+            } else {
+                persistentSearch(_ctx);
+            }
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "consume() null pointer");
+            throw new LDAPException("change feed null pointer");
+        } catch (IOException e) {
+            _log.log(java.util.logging.Level.ALL, "consume() - " + e.getMessage());
+            throw new LDAPException("invalid response control - " + e.getMessage());
+        } catch (NamingException e) {
+            if (getResultCode(e) == SYNC_REFRESH_REQUIRED) {
+                /*
+                 * e-syncRefreshRequired, the cookie is too old
+                 */
+                storeCookie(null);
+                refreshed = false;
+            }
+            if (!running) {
+                return;
+            }
+            _log.log(java.util.logging.Level.ALL, "consume() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        }
+    }
+
+    private void deliver(final LDAPChangeEvent event) throws LDAPException {
+        for (LDAPChangeListener _l : listeners) {
+            _l.entryChanged(event);
+        }
+        if (event.getCookie() != null) {
+            storeCookie(event.getCookie());
+        }
+    }
+
+    /*
+     * Delivers the known entries that are not in a set of entryUUID as deleted
+     */
+    private void deleteMissing(final Set<String> present) throws LDAPException {
+        List<Map.Entry<String, String>> _missing = new ArrayList<Map.Entry<String, String>>();
+        synchronized (knownEntries) {
+            for (Map.Entry<String, String> _entry : knownEntries.entrySet()) {
+                if (!present.contains(_entry.getKey())) {
+                    _missing.add(_entry);
+                }
+            }
+        }
+        for (Map.Entry<String, String> _entry : _missing) {
+            if (!running) {
+                return;
+            }
+            deliver(new LDAPChangeEvent(LDAPChangeEvent.DELETE, _entry.getValue(), null, _entry.getKey(),
+                    new LDAPDirectoryEntry(_entry.getValue()), null));
+            synchronized (knownEntries) {
+                knownEntries.remove(_entry.getKey());
+            }
+        }
+    }
+
+    /*
+     * entryUUID of an entry, lowercase as the one of the Sync State control
+     */
+    private static String getEntryUUID(final Identity entry) {
+        Object[] _values = entry.getAttribute("entryUUID");
+        if (_values == null || _values.length == 0) {
+            return null;
+        }
+        return String.valueOf(_values[0]).toLowerCase();
+    }
+
+    private static int getMode(final LdapContext ctx) throws NamingException, LDAPException {
+        Attribute _controls = ctx.getAttributes("", new String[] { "supportedControl" }).get("supportedControl");
+        if (_controls != null && _controls.contains(LDAPSyncRequestControl.OID)) {
+            return MODE_SYNC;
+        } else if (_controls != null && _controls.contains(LDAPPersistentSearchControl.OID)) {
+            return MODE_PERSISTENT_SEARCH;
+        }
+        throw new LDAPException("directory server does not support change notifications");
+    }
+
+    /*
+     * Result code of an LDAP error. JNDI does not keep the result code of the errors without their
+     * own exception class, it is only part of the explanation, as "[LDAP: error code <code> - ..."
+     */
+    private static int getResultCode(final NamingException e) {
+        String _explanation = e.getExplanation();
+        String _prefix = "[LDAP: error code ";
+        if (_explanation == null || !_explanation.startsWith(_prefix)) {
+            return -1;
+        }
+        int _end = _prefix.length();
+        while (_end < _explanation.length() && Character.isDigit(_explanation.charAt(_end))) {
+            _end++;
+        }
+        try {
+            return Integer.parseInt(_explanation.substring(_prefix.length(), _end));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private void persistentSearch(final LdapContext ctx) throws NamingException, IOException, LDAPException {
+        ctx.setRequestControls(new Control[] { new LDAPPersistentSearchControl(LDAPPersistentSearchControl.ANY,
+                true, true, true) });
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctls.setReturningAttributes(RETURNING_ATTRIBUTES);
+        answer = ctx.search(baseDN, filter, ctls);
+        while (running && answer.hasMore()) {
+            SearchResult sr = answer.next();
+            LDAPEntryChangeControl _change = null;
+            if (sr instanceof HasControls) {
+                _change = LDAPEntryChangeControl.getInstance(((HasControls) sr).getControls());
+            }
+            if (_change == null) {
+                continue;
+            }
+            LDAPDirectoryEntry _e = LDAPDirectoryReader.getEntry(ctx, sr, baseDN);
+            String _uuid = getEntryUUID(_e);
+            int _type;
+            switch (_change.getChangeType()) {
+                case LDAPPersistentSearchControl.ADD:
+                    _type = LDAPChangeEvent.ADD;
+                    break;
+                case LDAPPersistentSearchControl.DELETE:
+                    _type = LDAPChangeEvent.DELETE;
+                    break;
+                case LDAPPersistentSearchControl.MODDN:
+                    _type = LDAPChangeEvent.RENAME;
+                    break;
+                default:
+                    _type = LDAPChangeEvent.MODIFY;
+                    break;
+            }
+            deliver(new LDAPChangeEvent(_type, _e.getID(), _change.getPreviousDN(), _uuid, _e, null));
+        }
+    }
+
+    private void storeCookie(final byte[] cookie) throws LDAPException {
+        this.cookie = cookie;
+        CheckpointStore _store = checkpointStore;
+        if (_store == null) {
+            return;
+        }
+        try {
+            if (cookie == null) {
+                _store.removeCheckpoint(checkpointName);
+            } else {
+                _store.setCheckpoint(checkpointName, ChangeToken.valueOf(connection.getPrimary().getHost(), cookie));
+            }
+        } catch (IdentityException e) {
+            _log.log(java.util.logging.Level.ALL, "storeCookie() - " + e.getMessage());
+            throw new LDAPException("cannot store cookie - " + e.getMessage());
+        }
+    }
+
+    /*
+     * Changes after the cookie while the connection is open. To reconcile, a refresh runs first and
+     * the deleted entries are found comparing the known entries with the entries on the server
+     */
+    private void sync(final LdapContext ctx) throws NamingException, IOException, LDAPException {
+        if (!reconcile) {
+            refresh(ctx, LDAPSyncRequestControl.REFRESH_AND_PERSIST, cookie, null);
+            return;
+        }
+        if (!refreshed) {
+            /*
+             * Full refresh, the cookie is ignored because the known entries are not loaded
+             */
+            Set<String> _present = new HashSet<String>();
+            LDAPSyncDoneControl _done = refresh(ctx, LDAPSyncRequestControl.REFRESH_ONLY, null, _present);
+            if (!running) {
+                return;
+            }
+            deleteMissing(_present);
+            deliver(new LDAPChangeEvent(LDAPChangeEvent.REFRESH, baseDN, null, null, null, _done != null ? _done
+                    .getCookie() : null));
+            refreshed = true;
+        } else if (cookie != null) {
+            LDAPSyncDoneControl _done = refresh(ctx, LDAPSyncRequestControl.REFRESH_ONLY, cookie, null);
+            if (!running) {
+                return;
+            }
+            deleteMissing(searchEntryUUIDs(ctx));
+            if (!running) {
+                return;
+            }
+            if (_done != null && _done.getCookie() != null) {
+                storeCookie(_done.getCookie());
+            }
+        }
+        refresh(ctx, LDAPSyncRequestControl.REFRESH_AND_PERSIST, cookie, null);
+    }
+
+    /*
+     * Runs a Content Synchronization and delivers the entries. The entryUUID of the entries not
+     * deleted are added to the present set, if any. Returns the done control of a refresh
+     */
+    private LDAPSyncDoneControl refresh(final LdapContext ctx, final int mode, final byte[] cookie,
+            final Set<String> present) throws NamingException, IOException, LDAPException {
+        ctx.setRequestControls(new Control[] { new LDAPSyncRequestControl(mode, cookie, cookie != null, true) });
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctls.setReturningAttributes(RETURNING_ATTRIBUTES);
+        answer = ctx.search(baseDN, filter, ctls);
+        while (running && answer.hasMore()) {
+            SearchResult sr = answer.next();
+            LDAPSyncStateControl _state = null;
+            if (sr instanceof HasControls) {
+                _state = LDAPSyncStateControl.getInstance(((HasControls) sr).getControls());
+            }
+            if (_state == null) {
+                continue;
+            }
+            LDAPDirectoryEntry _e = LDAPDirectoryReader.getEntry(ctx, sr, baseDN);
+            String _uuid = _state.getEntryUUID();
+            String _previousDN;
+            synchronized (knownEntries) {
+                if (_state.getState() == LDAPSyncStateControl.DELETE) {
+                    _previousDN = knownEntries.remove(_uuid);
+                } else {
+                    _previousDN = knownEntries.put(_uuid, _e.getID());
+                }
+            }
+            if (present != null && _state.getState() != LDAPSyncStateControl.DELETE) {
+                present.add(_uuid);
+            }
+            switch (_state.getState()) {
+                case LDAPSyncStateControl.ADD:
+                    deliver(new LDAPChangeEvent(LDAPChangeEvent.ADD, _e.getID(), null, _uuid, _e,
+                            _state.getCookie()));
+                    break;
+                case LDAPSyncStateControl.MODIFY:
+                    if (_previousDN != null && !_previousDN.equalsIgnoreCase(_e.getID())) {
+                        deliver(new LDAPChangeEvent(LDAPChangeEvent.RENAME, _e.getID(), _previousDN, _uuid, _e,
+                                _state.getCookie()));
+                    } else {
+                        deliver(new LDAPChangeEvent(LDAPChangeEvent.MODIFY, _e.getID(), null, _uuid, _e,
+                                _state.getCookie()));
+                    }
+                    break;
+                case LDAPSyncStateControl.DELETE:
+                    deliver(new LDAPChangeEvent(LDAPChangeEvent.DELETE, _e.getID(), null, _uuid, _e,
+                            _state.getCookie()));
+                    break;
+                default:
+                    if (_state.getCookie() != null) {
+                        storeCookie(_state.getCookie());
+                    }
+                    break;
+            }
+        }
+        if (!running) {
+            return null;
+        }
+        LDAPSyncDoneControl _done = LDAPSyncDoneControl.getInstance(ctx.getResponseControls());
+        if (mode == LDAPSyncRequestControl.REFRESH_AND_PERSIST && _done != null && _done.getCookie() != null) {
+            storeCookie(_done.getCookie());
+        }
+        return _done;
+    }
+
+    /*
+     * entryUUID of all the entries present on the server
+     */
+    private Set<String> searchEntryUUIDs(final LdapContext ctx) throws NamingException, IOException, LDAPException {
+        final Set<String> _present = new HashSet<String>();
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctls.setReturningAttributes(new String[] { "entryUUID" });
+        new LDAPDirectoryReader(connection, baseDN).pagedSearch(ctx, baseDN, filter, null, ctls, null,
+                LDAPDirectoryReader.DEFAULT_PAGE_SIZE, new LDAPSearchHandler() {
+                    @Override
+                    public boolean handle(final Identity entry) {
+                        String _uuid = getEntryUUID(entry);
+                        if (_uuid != null) {
+                            _present.add(_uuid);
+                        }
+                        return running;
+                    }
+                });
+        return _present;
+    }
+}
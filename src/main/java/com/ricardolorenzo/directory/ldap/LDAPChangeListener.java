@@ -0,0 +1,36 @@
+/*
+ * LDAPChangeListener class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+/**
+ * Receives the changes of the entries from a <code>LDAPChangeFeed</code>, in the order they are
+ * sent by the server
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public interface LDAPChangeListener {
+    /**
+     * Process one change. If the change can not be processed, the feed is restarted from the
+     * last change processed by all the listeners, and the change is received again
+     *
+     * @param event
+     *            LDAPChangeEvent
+     * @exception LDAPException
+     */
+    public void entryChanged(LDAPChangeEvent event) throws LDAPException;
+}
@@ -0,0 +1,199 @@
+/*
+ * LDAPCompiledQuery class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable query compiled from a <code>LDAPDirectoryQuery</code>. The filter is built only once
+ * as a template where the conditions with the <code>LDAPDirectoryQuery.ARGUMENT</code> value are
+ * replaced by <code>{0}</code>, <code>{1}</code>, ... in the order of the conditions. The values
+ * of the arguments are encoded by JNDI when the query is executed, so the same object can be
+ * cached and used by several threads at the same time.
+ *
+ * The conditions are normalized with <code>LDAPQueryPlanner</code>, the arguments are numbered
+ * before so they keep their positions.
+ *
+ * <code>BRANCH</code> conditions need a search on every execution and can not be compiled.
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public final class LDAPCompiledQuery {
+    private final String filter;
+    private final int arguments;
+    private final String[] attributes;
+    private final String baseDN;
+
+    /*
+     * Numbered argument, written as a reference in the filter template
+     */
+    private static final class Argument {
+        private final int position;
+
+        private Argument(final int position) {
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + this.position + "}";
+        }
+    }
+
+    private LDAPCompiledQuery(final String filter, final int arguments, final String[] attributes,
+            final String baseDN) {
+        this.filter = filter;
+        this.arguments = arguments;
+        this.attributes = attributes;
+        this.baseDN = baseDN;
+    }
+
+    /**
+     * Compiles the conditions of a query. The query is not modified
+     *
+     * @param q
+     *            LDAPDirectoryQuery
+     * @return LDAPCompiledQuery
+     * @exception LDAPException
+     */
+    public static LDAPCompiledQuery compile(final LDAPDirectoryQuery q) throws LDAPException {
+        if (q == null) {
+            throw new LDAPException("invalid query");
+        }
+        if (q.totalConditions() == 0) {
+            throw new LDAPException("query without conditions");
+        }
+        int[] _arguments = new int[] { 0 };
+        String _filter = getQueryFilter(LDAPQueryPlanner.plan(numberArguments(q, _arguments)));
+        if (_filter.isEmpty()) {
+            _filter = "(objectClass=*)";
+        }
+        String[] _attributes = q.getReturningAttributes();
+        if (_attributes != null) {
+            _attributes = _attributes.clone();
+        }
+        return new LDAPCompiledQuery(_filter, _arguments[0], _attributes, q.getBaseDN());
+    }
+
+    /*
+     * Copy of the query where every ARGUMENT value is replaced by its numbered argument, in the
+     * order of the conditions
+     */
+    private static LDAPDirectoryQuery numberArguments(final LDAPDirectoryQuery q, final int[] arguments)
+            throws LDAPException {
+        List<Object> _conditions = new ArrayList<Object>();
+        for (Object _o : q.getConditions()) {
+            if (_o instanceof LDAPDirectoryQuery) {
+                _conditions.add(numberArguments((LDAPDirectoryQuery) _o, arguments));
+            } else if (_o instanceof Object[]) {
+                Object[] _condition = (Object[]) _o;
+                if (((Integer) _condition[0]).intValue() == LDAPDirectoryQuery.BRANCH) {
+                    throw new LDAPException("branch conditions can not be compiled");
+                }
+                if (_condition[2] == LDAPDirectoryQuery.ARGUMENT) {
+                    _condition = new Object[] { _condition[0], _condition[1], new Argument(arguments[0]) };
+                    arguments[0]++;
+                }
+                _conditions.add(_condition);
+            }
+        }
+        return new LDAPDirectoryQuery(q, _conditions);
+    }
+
+    private static String getQueryFilter(final LDAPDirectoryQuery q) throws LDAPException {
+        StringBuilder _sb = new StringBuilder();
+        List<Object> _conditions = q.getConditions();
+        for (Object _o : _conditions) {
+            if (_o instanceof LDAPDirectoryQuery) {
+                _sb.append(getQueryFilter((LDAPDirectoryQuery) _o));
+            } else if (_o instanceof Object[]) {
+                Object[] _condition = (Object[]) _o;
+                String _value;
+                if (_condition[2] instanceof Argument) {
+                    _value = _condition[2].toString();
+                } else {
+                    _value = escapeTemplate(String.valueOf(_condition[2]));
+                }
+                _sb.append(LDAPDirectoryReader.getConditionFilter(new Object[] { _condition[0], _condition[1],
+                        _value }));
+            }
+        }
+        if (q.totalConditions() > 1) {
+            _sb.insert(0, q.getType() == LDAPDirectoryQuery.OR ? "(|" : "(&");
+            _sb.append(")");
+        }
+        return _sb.toString();
+    }
+
+    /*
+     * JNDI reads braces of the filter as argument references
+     */
+    private static String escapeTemplate(final String value) {
+        if (value.indexOf('{') == -1 && value.indexOf('}') == -1) {
+            return value;
+        }
+        return value.replace("{", "\\7b").replace("}", "\\7d");
+    }
+
+    /**
+     * Returns the number of arguments needed to execute the query
+     *
+     * @return int
+     */
+    public int getArgumentCount() {
+        return this.arguments;
+    }
+
+    /**
+     * Returns the Distinguished Name where the query starts, or <code>null</code> to use the base
+     * DN of the reader
+     *
+     * @return String
+     */
+    public String getBaseDN() {
+        return this.baseDN;
+    }
+
+    /**
+     * Returns the filter template
+     *
+     * @return String
+     */
+    public String getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Returns the attributes requested for the matching entries, or <code>null</code> if the
+     * entries must contain all their attributes
+     *
+     * @return String[]
+     */
+    public String[] getReturningAttributes() {
+        if (this.attributes == null) {
+            return null;
+        }
+        return this.attributes.clone();
+    }
+
+    @Override
+    public String toString() {
+        return this.filter;
+    }
+}
@@ -23,11 +23,19 @@ package com.ricardolorenzo.directory.ldap;
  * @version 0.1
  */
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
@@ -46,43 +54,70 @@ public class LDAPConnection {
     public static final int ONE_SCOPE = SearchControls.ONELEVEL_SCOPE;
     public static final int OBJECT_SCOPE = SearchControls.OBJECT_SCOPE;
     private Hashtable<String, String> env;
-    private LdapContext ctx;
-    private String server;
-    private int port;
-    private boolean secure = false;
-    private int countLimit = -1;
-    private int scope = SearchControls.SUBTREE_SCOPE;
+    private final List<LDAPServer> servers;
+    private volatile int primary = 0;
+    private volatile int port;
+    private volatile boolean secure = false;
+    private volatile int countLimit = -1;
+    private volatile int scope = SearchControls.SUBTREE_SCOPE;
+    private volatile long poolTimeout = LDAPConnectionPool.DEFAULT_TIMEOUT;
+    private final LDAPBranchCache branchCache = new LDAPBranchCache();
+    private volatile String entryDNAttribute;
 
     /**
      * LDAPConnection constructor
      * 
      * @param server
-     *            Server name or address
+     *            Server name or address. Several servers can be separated by commas or spaces,
+     *            optionally with their own port, like <code>host1:389,host2:3389</code>. The first
+     *            server is the primary server for writes
      * @exception LDAPException
      */
     public LDAPConnection(final String server) throws LDAPException {
-        env = new Hashtable<String, String>();
-        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        env.put(Context.REFERRAL, "follow");
-        this.server = server;
-        port = DEFAULT_PORT;
+        this(server, DEFAULT_PORT);
     }
 
     /**
      * LDAPConnection. constructor
      * 
      * @param server
-     *            Server name or address
+     *            Server name or address. Several servers can be separated by commas or spaces,
+     *            optionally with their own port, like <code>host1:389,host2:3389</code>. The first
+     *            server is the primary server for writes
      * @param port
-     *            Server port
-     * @exception LDAPException
+     *            Server port, used for the servers without their own port
+     * @exception IllegalArgumentException
+     *                if the server definition is not valid
      */
     public LDAPConnection(final String server, final int port) {
         env = new Hashtable<String, String>();
         env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
         env.put(Context.REFERRAL, "follow");
-        this.server = server;
         this.port = port;
+        try {
+            servers = new CopyOnWriteArrayList<LDAPServer>(parseServers(server));
+        } catch (LDAPException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /*
+     * Servers of a list of server definitions separated by commas or spaces
+     */
+    private List<LDAPServer> parseServers(final String server) throws LDAPException {
+        if (server == null) {
+            throw new LDAPException("invalid server");
+        }
+        List<LDAPServer> _servers = new ArrayList<LDAPServer>();
+        for (String _definition : server.trim().split("[,\\s]+")) {
+            if (!_definition.isEmpty()) {
+                _servers.add(LDAPServer.parse(this, _definition));
+            }
+        }
+        if (_servers.isEmpty()) {
+            throw new LDAPException("invalid server");
+        }
+        return _servers;
     }
 
     /**
@@ -95,11 +130,11 @@ public class LDAPConnection {
      * @exception LDAPException
      */
     public void authenticate(final String DN, final String password) throws LDAPException {
-        env.put(Context.SECURITY_AUTHENTICATION, "simple");
-        env.put(Context.SECURITY_PRINCIPAL, DN);
-        env.put(Context.SECURITY_CREDENTIALS, password);
-        connect();
-        disconnect();
+        Hashtable<String, String> _env = new Hashtable<String, String>(env);
+        _env.put(Context.SECURITY_AUTHENTICATION, "simple");
+        _env.put(Context.SECURITY_PRINCIPAL, DN);
+        _env.put(Context.SECURITY_CREDENTIALS, password);
+        bind(_env);
     }
 
     /**
@@ -122,28 +157,58 @@ public class LDAPConnection {
         if (password == null || password.isEmpty()) {
             throw new LDAPException("Invalid empty password");
         }
+        Hashtable<String, String> _env = new Hashtable<String, String>(env);
         switch (authenticationType) {
             default:
                 throw new LDAPException("Invalid authentication type");
             case AUTHENTICATION_NONE:
-                env.put(Context.SECURITY_AUTHENTICATION, "none");
+                _env.put(Context.SECURITY_AUTHENTICATION, "none");
                 break;
             case AUTHENTICATION_SIMPLE:
-                env.put(Context.SECURITY_AUTHENTICATION, "simple");
+                _env.put(Context.SECURITY_AUTHENTICATION, "simple");
                 break;
             case AUTHENTICATION_STRONG:
-                env.put(Context.SECURITY_AUTHENTICATION, "strong");
+                _env.put(Context.SECURITY_AUTHENTICATION, "strong");
                 break;
         }
-        env.put(Context.SECURITY_PRINCIPAL, DN);
-        env.put(Context.SECURITY_CREDENTIALS, password);
-        connect();
-        disconnect();
+        _env.put(Context.SECURITY_PRINCIPAL, DN);
+        _env.put(Context.SECURITY_CREDENTIALS, password);
+        bind(_env);
+    }
+
+    /*
+     * Binds a separate connection with the user credentials, the pooled connections keep the
+     * credentials defined with setUser()
+     */
+    private void bind(final Hashtable<String, String> _env) throws LDAPException {
+        LDAPException _error = null;
+        for (LDAPServer _server : getCandidates(RO)) {
+            LdapContext _ctx;
+            try {
+                _ctx = createContext(_server, _env);
+            } catch (LDAPException e) {
+                if (_server.isAvailable()) {
+                    /*
+                     * The server answered, so the credentials are not valid
+                     */
+                    throw e;
+                }
+                _error = e;
+                continue;
+            }
+            try {
+                _ctx.close();
+            } catch (NamingException e) {
+                log.log(java.util.logging.Level.ALL, "authenticate() - " + e.getMessage());
+            }
+            return;
+        }
+        throw _error;
     }
 
     /**
-     * Start a connection to the server
-     * 
+     * Borrows a read only connection from the pool
+     *
      * @return DirContext
      * @exception LDAPException
      */
@@ -152,76 +217,260 @@ public class LDAPConnection {
     }
 
     /**
-     * Start a connection to the server and specify if the connection is read only or read-write
-     * 
+     * Borrows a connection from the pool and specify if the connection is read only or read-write.
+     * The connection must be returned using <code>disconnect(DirContext)</code>
+     *
+     * Read only connections go to the available server with the lowest average latency and number
+     * of requests in progress. Read-write connections go to the primary server, or to the next
+     * server if the primary server does not respond
+     *
      * <code>LDAPConnection.RO</code> <code>LDAPConnection.RW</code>
-     * 
+     *
      * @param type
      *            int
      * @return DirContext
      * @exception LDAPException
      */
     protected LdapContext connect(final int type) throws LDAPException {
+        LDAPException _error = null;
+        for (LDAPServer _server : getCandidates(type)) {
+            try {
+                return _server.borrow(type);
+            } catch (LDAPException e) {
+                if (type == RW && _server.isAvailable()) {
+                    /*
+                     * The server answered, writes only fail over when the server is down
+                     */
+                    throw e;
+                }
+                log.log(java.util.logging.Level.ALL, "connect() - " + _server.getHost() + " - " + e.getMessage());
+                _error = e;
+            }
+        }
+        throw _error;
+    }
+
+    /**
+     * Borrows a connection from a specific server, identified by the host name of the server
+     * definition or by the host name reported by the server. Returns <code>null</code> if no
+     * server is known by that name or if the server is not available
+     *
+     * @param type
+     *            int
+     * @param host
+     *            String
+     * @return LdapContext
+     * @exception LDAPException
+     */
+    protected LdapContext connect(final int type, final String host) throws LDAPException {
+        for (LDAPServer _server : servers) {
+            if (!_server.isNamed(host)) {
+                continue;
+            }
+            if (!_server.isAvailable()) {
+                return null;
+            }
+            try {
+                return _server.borrow(type);
+            } catch (LDAPException e) {
+                if (_server.isAvailable()) {
+                    throw e;
+                }
+                log.log(java.util.logging.Level.ALL, "connect() - " + _server.getHost() + " - " + e.getMessage());
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Available servers first, ordered by score for reads and starting with the primary server for
+     * writes. Servers marked as down are kept at the end in case all of them failed recently
+     */
+    private List<LDAPServer> getCandidates(final int type) {
+        List<LDAPServer> _available = new ArrayList<LDAPServer>();
+        List<LDAPServer> _down = new ArrayList<LDAPServer>();
+        int _size = servers.size();
+        int _primary = type == RW ? primary : 0;
+        for (int i = 0; i < _size; i++) {
+            LDAPServer _server = servers.get((_primary + i) % _size);
+            if (_server.isAvailable()) {
+                _available.add(_server);
+            } else {
+                _down.add(_server);
+            }
+        }
+        if (type != RW && _available.size() > 1) {
+            Collections.sort(_available, new Comparator<LDAPServer>() {
+                @Override
+                public int compare(final LDAPServer _a, final LDAPServer _b) {
+                    return Double.compare(_a.getScore(), _b.getScore());
+                }
+            });
+        }
+        _available.addAll(_down);
+        return _available;
+    }
+
+    /**
+     * Creates a new bound context to a server. Used by the connection pools
+     *
+     * @param server
+     *            LDAPServer
+     * @param type
+     *            int
+     * @return LdapContext
+     * @exception LDAPException
+     */
+    protected LdapContext createContext(final LDAPServer server, final int type) throws LDAPException {
+        return createContext(server, new Hashtable<String, String>(env));
+    }
+
+    private LdapContext createContext(final LDAPServer server, final Hashtable<String, String> _env)
+            throws LDAPException {
         try {
-            if (ctx == null) {
-                env.put("java.naming.ldap.attributes.binary",
-                        "jpegPhoto userCertificate userSMIMECertificate userPKCS12 cACertificate");
-                if (type == RW) {
-                    if (secure) {
-                        if (port == DEFAULT_PORT) {
-                            env.put(Context.PROVIDER_URL, "ldaps://" + server + ":636");
-                        } else {
-                            env.put(Context.PROVIDER_URL, "ldaps://" + server + ":" + port);
-                        }
-                    } else {
-                        env.put(Context.PROVIDER_URL, "ldap://" + server + ":" + port);
-                    }
+            int _port = server.getPort() > 0 ? server.getPort() : port;
+            LDAPSchema _schema = server.getSchema();
+            _env.put("java.naming.ldap.attributes.binary",
+                    _schema != null ? _schema.getBinaryAttributes() : LDAPSchema.DEFAULT_BINARY_ATTRIBUTES);
+            if (secure) {
+                if (_port == DEFAULT_PORT) {
+                    _env.put(Context.PROVIDER_URL, "ldaps://" + server.getHost() + ":636");
                 } else {
-                    if (secure) {
-                        if (port == DEFAULT_PORT) {
-                            env.put(Context.PROVIDER_URL, "ldaps://" + server + ":636");
-                        } else {
-                            env.put(Context.PROVIDER_URL, "ldaps://" + server + ":" + port);
-                        }
-                    } else {
-                        env.put(Context.PROVIDER_URL, "ldap://" + server + ":" + port);
-                    }
-                }
-                ctx = new InitialLdapContext(env, null);
-                if (ctx == null) {
-                    throw new LDAPException("Unknown directory error - " + env.get(Context.PROVIDER_URL));
+                    _env.put(Context.PROVIDER_URL, "ldaps://" + server.getHost() + ":" + _port);
                 }
+            } else {
+                _env.put(Context.PROVIDER_URL, "ldap://" + server.getHost() + ":" + _port);
+            }
+            LdapContext _ctx = new InitialLdapContext(_env, null);
+            if (_ctx == null) {
+                throw new LDAPException("Unknown directory error - " + _env.get(Context.PROVIDER_URL));
             }
-            return ctx;
+            server.markUp();
+            if (_schema == null) {
+                readSchema(server, _ctx);
+            }
+            return _ctx;
         } catch (NullPointerException e) {
             log.log(java.util.logging.Level.ALL, "connect() null pointer");
-            throw new LDAPException("Unknown directory error - " + env.get(Context.PROVIDER_URL));
+            throw new LDAPException("Unknown directory error - " + _env.get(Context.PROVIDER_URL));
         } catch (NamingException e) {
+            if (e instanceof CommunicationException || e instanceof ServiceUnavailableException) {
+                server.markDown();
+            }
             log.log(java.util.logging.Level.ALL, "connect() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         }
     }
 
+    /*
+     * Reads the schema of the server with the first context created, the binary attributes of
+     * the schema are applied to that context and to the next ones. If the schema can not be read,
+     * it is read again with the next context
+     */
+    private void readSchema(final LDAPServer server, final LdapContext ctx) {
+        try {
+            LDAPSchema _schema = LDAPSchema.read(ctx);
+            ctx.addToEnvironment("java.naming.ldap.attributes.binary", _schema.getBinaryAttributes());
+            server.setSchema(_schema);
+        } catch (NamingException e) {
+            log.log(java.util.logging.Level.ALL, "readSchema() - " + e.getMessage());
+        }
+    }
+
     /**
-     * Close the connection with the server
-     * 
+     * Close all the pooled connections with the servers. Connections currently in use will be
+     * closed when they are returned
+     *
      * @exception LDAPException
      */
     public void disconnect() throws LDAPException {
-        try {
-            if (ctx != null) {
-                ctx.close();
-                ctx = null;
+        resetPools();
+    }
+
+    /**
+     * Returns a connection to its pool
+     *
+     * @param ctx
+     *            Connection obtained using <code>connect()</code>
+     */
+    protected void disconnect(final DirContext ctx) {
+        if (ctx == null) {
+            return;
+        }
+        LdapContext _ctx = (LdapContext) ctx;
+        for (LDAPServer _server : servers) {
+            if (_server.contains(_ctx)) {
+                _server.release(_ctx);
+                return;
             }
-        } catch (NullPointerException e) {
-            log.log(java.util.logging.Level.ALL, "disconnect() null pointer");
-            throw new LDAPException("Unknown directory error - " + env.get(Context.PROVIDER_URL));
-        } catch (NamingException e) {
-            log.log(java.util.logging.Level.ALL, "disconnect() - " + e.getMessage());
-            throw new LDAPException(e.getMessage());
         }
     }
 
+    /**
+     * Closes a connection instead of returning it to its pool, when the state of the connection on
+     * the server is not known. The server stays available
+     *
+     * @param ctx
+     *            Connection obtained using <code>connect()</code>
+     */
+    protected void discard(final DirContext ctx) {
+        if (ctx == null) {
+            return;
+        }
+        LdapContext _ctx = (LdapContext) ctx;
+        for (LDAPServer _server : servers) {
+            if (_server.contains(_ctx)) {
+                _server.discard(_ctx);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Discards a connection if the error means that the connection is not usable anymore
+     *
+     * @param ctx
+     *            Connection obtained using <code>connect()</code>
+     * @param e
+     *            Error received using the connection
+     */
+    protected void invalidate(final DirContext ctx, final NamingException e) {
+        if (ctx == null) {
+            return;
+        }
+        if (!(e instanceof CommunicationException) && !(e instanceof ServiceUnavailableException)) {
+            return;
+        }
+        LdapContext _ctx = (LdapContext) ctx;
+        for (LDAPServer _server : servers) {
+            if (_server.contains(_ctx)) {
+                _server.invalidate(_ctx);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the cache of resolved <code>BRANCH</code> conditions
+     *
+     * @return LDAPBranchCache
+     */
+    public LDAPBranchCache getBranchCache() {
+        return branchCache;
+    }
+
+    /**
+     * Returns the attribute that contains the Distinguished Name of the entries, usually
+     * <code>distinguishedName</code> on Microsoft Active Directory and <code>entryDN</code> on
+     * other servers. Returns <code>null</code> until it is detected or defined
+     *
+     * @return String
+     */
+    public String getEntryDNAttribute() {
+        return entryDNAttribute;
+    }
+
     /**
      * Return the connection count limit
      * 
@@ -231,6 +480,77 @@ public class LDAPConnection {
         return countLimit;
     }
 
+    /**
+     * Returns the schema of the primary server, or <code>null</code> if it could not be read
+     *
+     * @return LDAPSchema
+     */
+    public LDAPSchema getSchema() {
+        LDAPSchema _schema = getPrimary().getSchema();
+        if (_schema != null) {
+            return _schema;
+        }
+        for (LDAPServer _server : servers) {
+            if (_server.getSchema() != null) {
+                return _server.getSchema();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the schema of the server of a connection, or <code>null</code> if it could not be
+     * read
+     *
+     * @param ctx
+     *            Connection obtained using <code>connect()</code>
+     * @return LDAPSchema
+     */
+    protected LDAPSchema getSchema(final DirContext ctx) {
+        LDAPServer _server = getServer(ctx);
+        if (_server != null) {
+            return _server.getSchema();
+        }
+        return getSchema();
+    }
+
+    /**
+     * Returns the server of a connection, or <code>null</code> if the connection does not belong
+     * to any server
+     *
+     * @param ctx
+     *            Connection obtained using <code>connect()</code>
+     * @return LDAPServer
+     */
+    protected LDAPServer getServer(final DirContext ctx) {
+        if (ctx instanceof LdapContext) {
+            for (LDAPServer _server : servers) {
+                if (_server.contains((LdapContext) ctx)) {
+                    return _server;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the primary server, used for writes while it is available
+     *
+     * @return LDAPServer
+     */
+    public LDAPServer getPrimary() {
+        return servers.get(primary);
+    }
+
+    /**
+     * Returns the servers of the connection
+     *
+     * @return List<LDAPServer>
+     */
+    public List<LDAPServer> getServers() {
+        return Collections.unmodifiableList(servers);
+    }
+
     /**
      * Returns the scope of the connection
      * 
@@ -287,6 +607,92 @@ public class LDAPConnection {
             env.remove("com.sun.jndi.ldap.connect.pool");
             env.remove("com.sun.jndi.ldap.connect.pool.timeout");
         }
+        resetPools();
+    }
+
+    /**
+     * Records the time of a request on the latency average of the server of a connection
+     *
+     * @param ctx
+     *            Connection obtained using <code>connect()</code>
+     * @param nanoseconds
+     *            long
+     */
+    protected void recordLatency(final DirContext ctx, final long nanoseconds) {
+        LDAPServer _server = getServer(ctx);
+        if (_server != null) {
+            _server.recordLatency(nanoseconds);
+        }
+    }
+
+    /**
+     * Sets the maximum number of connections of both read only and read-write pools
+     *
+     * @param size
+     *            int
+     */
+    public void setPoolSize(final int size) {
+        setPoolSize(RO, size);
+        setPoolSize(RW, size);
+    }
+
+    /**
+     * Sets the maximum number of connections of a pool
+     *
+     * <code>LDAPConnection.RO</code> <code>LDAPConnection.RW</code>
+     *
+     * @param type
+     *            int
+     * @param size
+     *            int
+     */
+    public synchronized void setPoolSize(final int type, final int size) {
+        for (LDAPServer _server : servers) {
+            LDAPConnectionPool _pool = new LDAPConnectionPool(this, _server, type, size);
+            _pool.setTimeout(poolTimeout);
+            _server.setPool(_pool);
+        }
+    }
+
+    /**
+     * Sets the maximum time to wait for a pooled connection
+     *
+     * @param milliseconds
+     *            long
+     */
+    public void setPoolTimeout(final long milliseconds) {
+        poolTimeout = Math.abs(milliseconds);
+        for (LDAPServer _server : servers) {
+            _server.getPool(RO).setTimeout(poolTimeout);
+            _server.getPool(RW).setTimeout(poolTimeout);
+        }
+    }
+
+    /**
+     * Sets the attribute that contains the Distinguished Name of the entries
+     *
+     * @param attribute
+     *            String
+     */
+    public void setEntryDNAttribute(final String attribute) {
+        entryDNAttribute = attribute;
+    }
+
+    /**
+     * Sets the primary server, used for writes while it is available
+     *
+     * @param host
+     *            Server name or address, as defined on the connection
+     * @exception LDAPException
+     */
+    public void setPrimary(final String host) throws LDAPException {
+        for (int i = 0; i < servers.size(); i++) {
+            if (servers.get(i).getHost().equalsIgnoreCase(host)) {
+                primary = i;
+                return;
+            }
+        }
+        throw new LDAPException("server not found [" + host + "]");
     }
 
     /**
@@ -296,6 +702,7 @@ public class LDAPConnection {
      */
     public void setPort(final int port) {
         this.port = port;
+        resetPools();
     }
 
     /**
@@ -315,6 +722,7 @@ public class LDAPConnection {
             env.remove(Context.SECURITY_PROTOCOL);
             secure = false;
         }
+        resetPools();
     }
 
     /**
@@ -335,6 +743,7 @@ public class LDAPConnection {
             env.remove(Context.SECURITY_PROTOCOL);
             secure = false;
         }
+        resetPools();
     }
 
     /**
@@ -368,6 +777,7 @@ public class LDAPConnection {
      */
     public void setTimeout(final int milliseconds) {
         env.put("com.sun.jndi.ldap.connect.timeout", String.valueOf(Math.abs(milliseconds)));
+        resetPools();
     }
 
     /**
@@ -383,5 +793,15 @@ public class LDAPConnection {
         env.put(Context.SECURITY_AUTHENTICATION, "simple");
         env.put(Context.SECURITY_PRINCIPAL, DN);
         env.put(Context.SECURITY_CREDENTIALS, password);
+        resetPools();
+    }
+
+    /*
+     * Pooled connections created with the previous parameters are discarded
+     */
+    private void resetPools() {
+        for (LDAPServer _server : servers) {
+            _server.clear();
+        }
     }
 }
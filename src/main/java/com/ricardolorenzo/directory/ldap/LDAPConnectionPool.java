@@ -0,0 +1,405 @@
+/*
+ * LDAPConnectionPool class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Bounded pool of already bound <code>LdapContext</code> objects. A context can only be used by
+ * one thread at the same time, so every borrowed context must be returned to the pool using
+ * <code>release()</code> or discarded using <code>invalidate()</code>
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPConnectionPool {
+    private final static Logger _log = Logger.getLogger(LDAPConnectionPool.class.getName());
+    public static final int DEFAULT_SIZE = 10;
+    public static final long DEFAULT_TIMEOUT = 30000L;
+    public static final long DEFAULT_IDLE_TIME = 600000L;
+    private final LDAPConnection connection;
+    private final LDAPServer server;
+    private final int type;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<PooledContext> idle;
+    private final Map<LdapContext, PooledContext> borrowed;
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile long maxIdleTime = DEFAULT_IDLE_TIME;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean closed = false;
+
+    private static final class PooledContext {
+        private final LdapContext ctx;
+        private final long generation;
+        private long lastUsed;
+
+        private PooledContext(final LdapContext ctx, final long generation) {
+            this.ctx = ctx;
+            this.generation = generation;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * LDAPConnectionPool constructor
+     *
+     * @param connection
+     *            LDAPConnection used to create new contexts
+     * @param server
+     *            LDAPServer where the contexts are connected
+     * @param type
+     *            <code>LDAPConnection.RO</code> or <code>LDAPConnection.RW</code>
+     * @param maxSize
+     *            Maximum number of contexts, idle or borrowed
+     */
+    public LDAPConnectionPool(final LDAPConnection connection, final LDAPServer server, final int type,
+            final int maxSize) {
+        this.connection = connection;
+        this.server = server;
+        this.type = type;
+        this.maxSize = maxSize > 0 ? maxSize : DEFAULT_SIZE;
+        this.permits = new Semaphore(this.maxSize, true);
+        this.idle = new LinkedBlockingDeque<PooledContext>();
+        this.borrowed = new ConcurrentHashMap<LdapContext, PooledContext>();
+    }
+
+    /**
+     * Borrows a context from the pool. If there is no idle context available and the pool has not
+     * reached the maximum size, a new context is created. Otherwise waits until the pool timeout
+     *
+     * @return LdapContext
+     * @exception LDAPException
+     */
+    public LdapContext borrow() throws LDAPException {
+        if (closed) {
+            throw new LDAPException("connection pool closed");
+        }
+        try {
+            if (!permits.tryAcquire()) {
+                waits.incrementAndGet();
+                if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    timeouts.incrementAndGet();
+                    throw new LDAPException("connection pool exhausted, timeout after " + timeout + " ms");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LDAPException("interrupted while waiting for a connection");
+        }
+        try {
+            PooledContext _pc;
+            while ((_pc = idle.pollFirst()) != null) {
+                if (_pc.generation == generation.get() && System.currentTimeMillis() - _pc.lastUsed < maxIdleTime) {
+                    borrowed.put(_pc.ctx, _pc);
+                    borrows.incrementAndGet();
+                    return _pc.ctx;
+                }
+                destroy(_pc.ctx);
+            }
+            LdapContext ctx = connection.createContext(server, type);
+            created.incrementAndGet();
+            borrowed.put(ctx, new PooledContext(ctx, generation.get()));
+            borrows.incrementAndGet();
+            return ctx;
+        } catch (LDAPException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all the idle contexts. Contexts currently borrowed will be closed when they return
+     * to the pool. Used when the connection parameters change
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        PooledContext _pc;
+        while ((_pc = idle.pollFirst()) != null) {
+            destroy(_pc.ctx);
+        }
+    }
+
+    /**
+     * Closes the pool and all the idle contexts
+     */
+    public void close() {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * Verify if a context was borrowed from this pool
+     *
+     * @param ctx
+     *            LdapContext
+     * @return boolean
+     */
+    public boolean contains(final LdapContext ctx) {
+        return ctx != null && borrowed.containsKey(ctx);
+    }
+
+    private void destroy(final LdapContext ctx) {
+        try {
+            ctx.close();
+        } catch (NamingException e) {
+            _log.log(java.util.logging.Level.ALL, "destroy() - " + e.getMessage());
+        } finally {
+            destroyed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Discards a borrowed context, for example after a communication error
+     *
+     * @param ctx
+     *            LdapContext
+     */
+    public void invalidate(final LdapContext ctx) {
+        if (ctx == null) {
+            return;
+        }
+        PooledContext _pc = borrowed.remove(ctx);
+        if (_pc == null) {
+            return;
+        }
+        destroy(ctx);
+        permits.release();
+    }
+
+    /**
+     * Replaces a borrowed context that failed with a communication error by a new one, for
+     * example when a firewall dropped the idle connection. The idle contexts not used since the
+     * failed one was returned are closed too, their connections are probably dropped as well.
+     * Throws an exception if the new context can not be created
+     *
+     * @param ctx
+     *            LdapContext
+     * @exception LDAPException
+     */
+    public void replace(final LdapContext ctx) throws LDAPException {
+        if (ctx == null) {
+            return;
+        }
+        PooledContext _pc = borrowed.remove(ctx);
+        if (_pc == null) {
+            return;
+        }
+        try {
+            destroy(ctx);
+            for (PooledContext _idle : idle) {
+                if (_idle.lastUsed <= _pc.lastUsed && idle.remove(_idle)) {
+                    destroy(_idle.ctx);
+                }
+            }
+            if (closed) {
+                return;
+            }
+            LdapContext _ctx = connection.createContext(server, type);
+            created.incrementAndGet();
+            idle.offerFirst(new PooledContext(_ctx, generation.get()));
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Returns a borrowed context to the pool
+     *
+     * @param ctx
+     *            LdapContext
+     */
+    public void release(final LdapContext ctx) {
+        if (ctx == null) {
+            return;
+        }
+        PooledContext _pc = borrowed.remove(ctx);
+        if (_pc == null) {
+            return;
+        }
+        try {
+            if (closed || _pc.generation != generation.get()) {
+                destroy(ctx);
+                return;
+            }
+            try {
+                ctx.setRequestControls(null);
+            } catch (NamingException e) {
+                destroy(ctx);
+                return;
+            }
+            _pc.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(_pc);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sets the maximum time that a context can stay idle before being closed
+     *
+     * @param milliseconds
+     *            long
+     */
+    public void setMaxIdleTime(final long milliseconds) {
+        maxIdleTime = Math.abs(milliseconds);
+    }
+
+    /**
+     * Sets the maximum time to wait for a context when the pool is exhausted
+     *
+     * @param milliseconds
+     *            long
+     */
+    public void setTimeout(final long milliseconds) {
+        timeout = Math.abs(milliseconds);
+    }
+
+    /**
+     * Returns the number of contexts currently borrowed
+     *
+     * @return int
+     */
+    public int getActiveCount() {
+        return borrowed.size();
+    }
+
+    /**
+     * Returns the number of times a context was borrowed
+     *
+     * @return long
+     */
+    public long getBorrowCount() {
+        return borrows.get();
+    }
+
+    /**
+     * Returns the number of contexts created by the pool
+     *
+     * @return long
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * Returns the number of contexts closed by the pool
+     *
+     * @return long
+     */
+    public long getDestroyedCount() {
+        return destroyed.get();
+    }
+
+    /**
+     * Returns the number of idle contexts
+     *
+     * @return int
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Returns the maximum number of contexts
+     *
+     * @return int
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of borrow requests that fail after waiting the pool timeout
+     *
+     * @return long
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the server of the pool
+     *
+     * @return LDAPServer
+     */
+    public LDAPServer getServer() {
+        return server;
+    }
+
+    /**
+     * Returns the type of the pool, <code>LDAPConnection.RO</code> or
+     * <code>LDAPConnection.RW</code>
+     *
+     * @return int
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Returns the number of borrow requests that had to wait for a context
+     *
+     * @return long
+     */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder _sb = new StringBuilder();
+        _sb.append(type == LDAPConnection.RW ? "RW" : "RO");
+        _sb.append(" pool ");
+        _sb.append(server.getHost());
+        _sb.append(" [max=");
+        _sb.append(maxSize);
+        _sb.append(", active=");
+        _sb.append(getActiveCount());
+        _sb.append(", idle=");
+        _sb.append(getIdleCount());
+        _sb.append(", created=");
+        _sb.append(getCreatedCount());
+        _sb.append(", destroyed=");
+        _sb.append(getDestroyedCount());
+        _sb.append(", borrows=");
+        _sb.append(getBorrowCount());
+        _sb.append(", waits=");
+        _sb.append(getWaitCount());
+        _sb.append(", timeouts=");
+        _sb.append(getTimeoutCount());
+        _sb.append("]");
+        return _sb.toString();
+    }
+}
@@ -23,6 +23,7 @@ package com.ricardolorenzo.directory.ldap;
  * @version 0.1
  */
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class LDAPDirectoryQuery {
@@ -38,9 +39,17 @@ public class LDAPDirectoryQuery {
     public static final int APPROXIMATE = 7;
     public static final int GREATER = 8;
     public static final int LOWER = 9;
+    /**
+     * Condition value that marks an argument of a compiled query
+     * 
+     * @see LDAPCompiledQuery
+     */
+    public static final Object ARGUMENT = new Object();
     private int type;
     private List<Object> conditions;
     private int offset;
+    private String[] attributes;
+    private String baseDN;
 
     /**
      * Instance a new <code>DirectoryQuery</code> object
@@ -63,6 +72,17 @@ public class LDAPDirectoryQuery {
         this.type = type;
     }
 
+    /*
+     * Copy of a query with other conditions, used by the planner
+     */
+    LDAPDirectoryQuery(LDAPDirectoryQuery q, List<Object> conditions) {
+        this.conditions = conditions;
+        this.offset = 0;
+        this.type = q.type;
+        this.attributes = q.attributes;
+        this.baseDN = q.baseDN;
+    }
+
     /**
      * Add new condition to the query, key refers to the name of the attribute and value refers to
      * the match value
@@ -125,6 +145,16 @@ public class LDAPDirectoryQuery {
         return _condition;
     }
 
+    /**
+     * Returns all the conditions of the query, without moving the offset used by
+     * <code>nextCondition()</code>
+     * 
+     * @return List<Object>
+     */
+    public List<Object> getConditions() {
+        return Collections.unmodifiableList(this.conditions);
+    }
+
     /**
      * Returns the total number of conditions, without taken care about BRANCH conditions
      * 
@@ -142,6 +172,48 @@ public class LDAPDirectoryQuery {
         return this.conditions.size() + k;
     }
 
+    /**
+     * Returns the Distinguished Name where the query starts, or <code>null</code> to use the base
+     * DN of the reader
+     * 
+     * @return String
+     */
+    public String getBaseDN() {
+        return this.baseDN;
+    }
+
+    /**
+     * Defines the Distinguished Name where the query starts. <code>BRANCH</code> conditions are
+     * resolved under it
+     * 
+     * @param baseDN
+     *            String
+     */
+    public void setBaseDN(String baseDN) {
+        this.baseDN = baseDN;
+    }
+
+    /**
+     * Returns the attributes requested for the matching entries, or <code>null</code> if the
+     * entries must contain all their attributes
+     * 
+     * @return String[]
+     */
+    public String[] getReturningAttributes() {
+        return this.attributes;
+    }
+
+    /**
+     * Defines the attributes requested for the matching entries. Only those attributes are
+     * transferred from the server
+     * 
+     * @param attributes
+     *            String[]
+     */
+    public void setReturningAttributes(String[] attributes) {
+        this.attributes = attributes;
+    }
+
     /**
      * Returns type of query (for example OR or AND)
      * 
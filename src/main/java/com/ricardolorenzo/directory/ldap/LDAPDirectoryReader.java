@@ -19,21 +19,37 @@ package com.ricardolorenzo.directory.ldap;
 import java.io.IOException;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
+import javax.naming.InvalidNameException;
+import javax.naming.LimitExceededException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
+import javax.naming.directory.NoSuchAttributeException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
 import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 import javax.naming.ldap.SortControl;
 
 import com.ricardolorenzo.identity.Identity;
@@ -46,8 +62,17 @@ import com.ricardolorenzo.identity.Identity;
  */
 public class LDAPDirectoryReader {
     private final static Logger _log = Logger.getLogger(LDAPDirectoryReader.class.getName());
+    public static final int DEFAULT_PAGE_SIZE = 500;
+    private static final String[] DEFAULT_ATTRIBUTES = new String[] { "modifyTimestamp", "*" };
+    private static final int DN_FILTER_SIZE = 100;
+    static final String[] NO_ATTRIBUTES = new String[] { "1.1" };
+    private static final String TYPES_ONLY = "java.naming.ldap.typesOnly";
+    private static final String MSAD_CAPABILITY_OID = "1.2.840.113556.1.4.800";
+    private static final String MSAD_CONTAINER_FILTER = "(|(objectClass=organizationalUnit)(objectClass=container)"
+            + "(objectClass=builtinDomain))";
+    private static final String MSAD_SHOW_DELETED_OID = "1.2.840.113556.1.4.417";
     private LDAPConnection connection;
-    private String baseDN;
+    private final String baseDN;
 
     /**
      * LDAPDirectoryQuery constructor
@@ -63,7 +88,8 @@ public class LDAPDirectoryReader {
     }
 
     /**
-     * Verify if an entry Distinguished Name already exists on directory
+     * Verify if an entry Distinguished Name already exists on directory. No attribute of the entry
+     * is transferred
      * 
      * @param DN
      *            Distinguished Name of the entry
@@ -71,30 +97,53 @@ public class LDAPDirectoryReader {
      * @exception LDAPException
      */
     public boolean checkEntry(final String DN) throws LDAPException {
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
-            if (ctx.getAttributes(DN) != null) {
+            if (timedGetAttributes(ctx, DN, NO_ATTRIBUTES) != null) {
                 return true;
             }
+        } catch (NameNotFoundException e) {
+            return false;
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "checkEntry() null pointer");
             throw new LDAPException("add entry null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "checkEntry() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
 
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
         return false;
     }
 
+    /**
+     * Verify which entries of a list of Distinguished Names exist on directory, with a few requests
+     * and without transferring any attribute
+     * 
+     * @param DNs
+     *            Distinguished Names of the entries
+     * @return Map<String, Boolean> with the requested Distinguished Names as keys
+     * @exception LDAPException
+     */
+    public Map<String, Boolean> checkEntries(final Collection<String> DNs) throws LDAPException {
+        Map<String, Boolean> results = new LinkedHashMap<String, Boolean>();
+        Map<String, Identity> _entries = getEntries(DNs, NO_ATTRIBUTES);
+        for (String _DN : DNs) {
+            results.put(_DN, Boolean.valueOf(_entries.containsKey(_DN)));
+        }
+        return results;
+    }
+
     /**
      * Check if an entry has specific attribute value. This method is more efficient than getting a
-     * complete <code>LDAPDirectoryEntry</code> and check the value
+     * complete <code>LDAPDirectoryEntry</code> and check the value, a single value is tested with
+     * the LDAP compare operation
      * 
      * @param DN
      *            Distinguished Name of the entry
@@ -107,8 +156,9 @@ public class LDAPDirectoryReader {
      */
     public boolean checkEntryAttribute(final String DN, final String attribute, final Object value)
             throws LDAPException {
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
@@ -131,26 +181,43 @@ public class LDAPDirectoryReader {
                     _sb.append(")");
                 }
             } else {
-                _sb.append("(");
-                _sb.append(attribute);
-                _sb.append("={0})");
-                _values = new Object[] { value };
+                return compare(connection, ctx, DN, attribute, value);
             }
 
             SearchControls ctls = new SearchControls();
             ctls.setReturningAttributes(new String[0]);
             ctls.setSearchScope(SearchControls.OBJECT_SCOPE);
 
-            NamingEnumeration<SearchResult> _answer = ctx.search(DN, _sb.toString(), _values, ctls);
+            NamingEnumeration<SearchResult> _answer = timedSearch(ctx, DN, _sb.toString(), _values, ctls);
             return _answer.hasMoreElements();
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "checkEntryAttribute() null pointer");
             throw new LDAPException("check entry null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "checkEntryAttribute() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
+        }
+    }
+
+    /*
+     * The JNDI provider sends a base search with a single equality filter and without returning
+     * attributes as an LDAP compare operation, so the values of the attribute are never
+     * transferred
+     */
+    static boolean compare(final LDAPConnection connection, final DirContext ctx, final String DN,
+            final String attribute, final Object value) throws NamingException {
+        SearchControls ctls = new SearchControls();
+        ctls.setReturningAttributes(new String[0]);
+        ctls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        try {
+            NamingEnumeration<SearchResult> _answer = timedSearch(connection, ctx, DN, "(" + attribute + "={0})",
+                    new Object[] { value }, ctls);
+            return _answer.hasMoreElements();
+        } catch (NoSuchAttributeException e) {
+            return false;
         }
     }
 
@@ -163,30 +230,34 @@ public class LDAPDirectoryReader {
      * @exception LDAPException
      */
     public boolean checkSearch(final LDAPDirectoryQuery q) throws LDAPException {
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
             SearchControls ctls = new SearchControls();
             ctls.setCountLimit(2);
+            ctls.setReturningAttributes(NO_ATTRIBUTES);
             ctls.setSearchScope(connection.getScope());
 
+            String base = getSearchBase(ctx, q);
             String filter = getQueryString(ctx, q);
-            NamingEnumeration<SearchResult> answer = ctx.search(baseDN, filter, ctls);
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, filter, null, ctls);
             return answer.hasMoreElements();
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "checkSearch() null pointer");
             throw new LDAPException("check search nullpointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "checkSearch() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
-    private final static String getConditionFilter(final Object[] _condition) throws LDAPException {
+    final static String getConditionFilter(final Object[] _condition) throws LDAPException {
         StringBuilder filter = new StringBuilder();
         int type = ((Integer) _condition[0]).intValue();
         String value = String.valueOf(_condition[2]), condition = String.valueOf(_condition[1]);
@@ -226,14 +297,16 @@ public class LDAPDirectoryReader {
         return filter.toString();
     }
 
-    private final static String getQueryFilter(final LDAPDirectoryQuery _q) throws LDAPException {
+    final static String getQueryFilter(final LDAPDirectoryQuery _q) throws LDAPException {
         StringBuilder filter = new StringBuilder();
-        while (_q.hasMoreConditions()) {
-            Object _o = _q.nextCondition();
+        for (Object _o : _q.getConditions()) {
             if (_o instanceof LDAPDirectoryQuery) {
                 filter.append(getQueryFilter((LDAPDirectoryQuery) _o));
             } else if (_o instanceof Object[]) {
-                filter.append(getConditionFilter((Object[]) _o));
+                Object[] _condition = (Object[]) _o;
+                if (((Integer) _condition[0]).intValue() != LDAPDirectoryQuery.BRANCH) {
+                    filter.append(getConditionFilter(_condition));
+                }
             }
         }
         if (_q.getType() == LDAPDirectoryQuery.OR) {
@@ -252,40 +325,73 @@ public class LDAPDirectoryReader {
 
     private String getQueryString(final DirContext ctx, final LDAPDirectoryQuery q) throws NamingException,
             LDAPException {
-        StringBuilder filter = new StringBuilder();
-        while (q.hasMoreConditions()) {
-            Object _condition = q.nextCondition();
-            if (_condition instanceof LDAPDirectoryQuery) {
-                filter.append(getQueryFilter((LDAPDirectoryQuery) _condition));
-            } else if (_condition instanceof Object[]) {
-                int type = ((Integer) ((Object[]) _condition)[0]).intValue();
-                String value = (String) ((Object[]) _condition)[2];
-                if (type == LDAPDirectoryQuery.BRANCH) {
-                    SearchControls ctls = new SearchControls();
-                    ctls.setSearchScope(LDAPConnection.ONE_SCOPE);
-                    NamingEnumeration<SearchResult> answer = ctx.search(baseDN, "(" + ((Object[]) _condition)[1] + "="
-                            + value + ")", ctls);
-                    while (answer.hasMoreElements()) {
-                        SearchResult sr = answer.nextElement();
-                        baseDN = sr.getName() + "," + baseDN;
+        String filter = LDAPQueryPlanner.getFilter(q);
+        if (_log.isLoggable(java.util.logging.Level.FINE)) {
+            _log.log(java.util.logging.Level.FINE, "search filter - " + filter);
+        }
+        return filter;
+    }
+
+    /*
+     * Base DN of a query. BRANCH conditions are resolved one level under the previous base, using
+     * the branch cache of the connection to avoid a search for every query
+     */
+    private String getSearchBase(final DirContext ctx, final LDAPDirectoryQuery q) throws NamingException {
+        String _base = q.getBaseDN() != null ? q.getBaseDN() : baseDN;
+        LDAPBranchCache _cache = connection.getBranchCache();
+        for (Object _o : q.getConditions()) {
+            if (!(_o instanceof Object[])) {
+                continue;
+            }
+            Object[] _condition = (Object[]) _o;
+            if (((Integer) _condition[0]).intValue() != LDAPDirectoryQuery.BRANCH) {
+                continue;
+            }
+            String _attribute = String.valueOf(_condition[1]);
+            String _value = String.valueOf(_condition[2]);
+            String _branch = _cache.get(_base, _attribute, _value);
+            if (_branch == null) {
+                SearchControls ctls = new SearchControls();
+                ctls.setSearchScope(LDAPConnection.ONE_SCOPE);
+                ctls.setReturningAttributes(new String[0]);
+                ctls.setCountLimit(1);
+                NamingEnumeration<SearchResult> answer = timedSearch(ctx, _base, "(" + _attribute + "=" + _value
+                        + ")", null, ctls);
+                try {
+                    if (answer.hasMoreElements()) {
+                        _branch = answer.nextElement().getNameInNamespace();
+                        _cache.put(_base, _attribute, _value, _branch);
                     }
-                } else {
-                    filter.append(getConditionFilter(((Object[]) _condition)));
+                } finally {
+                    answer.close();
                 }
             }
-        }
-        if (q.getType() == LDAPDirectoryQuery.OR) {
-            if (q.totalConditions() > 1) {
-                filter.insert(0, "(|");
-                filter.append(")");
+            if (_branch != null) {
+                _base = _branch;
             }
-        } else {
-            if (q.totalConditions() > 1) {
-                filter.insert(0, "(&");
-                filter.append(")");
+        }
+        return _base;
+    }
+
+    /*
+     * Attributes requested by the query, or all of them by default. The extra attributes are
+     * always requested because the reader needs them
+     */
+    private static String[] getReturningAttributes(final LDAPDirectoryQuery q, final String... extra) {
+        String[] _attributes = q.getReturningAttributes();
+        if (_attributes == null) {
+            _attributes = DEFAULT_ATTRIBUTES;
+        }
+        if (extra.length == 0) {
+            return _attributes;
+        }
+        List<String> _aux = new ArrayList<String>(Arrays.asList(_attributes));
+        for (String _name : extra) {
+            if (_name != null && !_aux.contains(_name)) {
+                _aux.add(_name);
             }
         }
-        return filter.toString();
+        return _aux.toArray(new String[_aux.size()]);
     }
 
     /**
@@ -319,8 +425,8 @@ public class LDAPDirectoryReader {
 
     /**
      * Gets an <code>LDAPDirectoryEntry</code> object that represent an entry on directory. You can
-     * provide a list of attributes to be ignored when load the entry data. Look for attribute
-     * matches using a map of values
+     * provide a list of attributes to be ignored when load the entry data, their values are not
+     * requested to the server. Look for attribute matches using a map of values
      * 
      * @param DN
      *            Distinguished Name of the entry
@@ -336,13 +442,24 @@ public class LDAPDirectoryReader {
     public LDAPDirectoryEntry getEntry(final String DN, final List<String> ignore_attributes,
             final Map<String, String> attribute_matches) throws LDAPException {
         LDAPDirectoryEntry _e = null;
+        DirContext ctx = null;
         try {
             _e = new LDAPDirectoryEntry(DN);
-            DirContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
-            Attributes atts = ctx.getAttributes(DN);
+            String[] _attributes = null;
+            if (ignore_attributes != null && !ignore_attributes.isEmpty()) {
+                /*
+                 * the ignored attributes are not transferred, only the others are requested
+                 */
+                _attributes = getAttributeNames(ctx, DN, ignore_attributes);
+                if (_attributes == null) {
+                    return null;
+                }
+            }
+            Attributes atts = timedGetAttributes(ctx, DN, _attributes);
             if (atts == null) {
                 return null;
             }
@@ -350,34 +467,209 @@ public class LDAPDirectoryReader {
             NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) atts.getAll();
             while (ne.hasMore()) {
                 Attribute att = ne.next();
-                if (ignore_attributes == null || !ignore_attributes.contains(att.getID())) {
+                String _name = LDAPAttributeValueIterator.getAttributeName(att);
+                if (ignore_attributes == null || !ignore_attributes.contains(_name)) {
                     List<Object> _values = new ArrayList<Object>();
-                    @SuppressWarnings("unchecked")
-                    NamingEnumeration<Object> nea = (NamingEnumeration<Object>) att.getAll();
-                    while (nea.hasMore()) {
-                        Object _value = nea.next();
-                        if (attribute_matches == null || !attribute_matches.containsKey(att.getID())) {
+                    for (Object _value : getValues(ctx, DN, att)) {
+                        if (attribute_matches == null || !attribute_matches.containsKey(_name)) {
                             _values.add(_value);
-                        } else if (attribute_matches.get(att.getID()) != null
-                                && String.valueOf(_value).contains(attribute_matches.get(att.getID()))) {
+                        } else if (attribute_matches.get(_name) != null
+                                && String.valueOf(_value).contains(attribute_matches.get(_name))) {
                             _values.add(_value);
                         }
                     }
-                    _e.setAttribute(att.getID(), _values.toArray());
+                    _e.setAttribute(_name, _values.toArray());
                 }
             }
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "getEntry() null pointer");
             throw new LDAPException("get entry null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "getEntry() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
         return _e;
     }
 
+    /**
+     * Gets an <code>LDAPDirectoryEntry</code> object that represent an entry on directory, only
+     * with the requested attributes
+     * 
+     * @param DN
+     *            Distinguished Name of the entry
+     * @param attributes
+     *            Names of the attributes to load, <code>null</code> to load all of them
+     * @return LDAPDirectoryEntry
+     * @exception LDAPException
+     */
+    public LDAPDirectoryEntry getEntry(final String DN, final String[] attributes) throws LDAPException {
+        if (attributes == null) {
+            return getEntry(DN, null, null);
+        }
+        DirContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            Attributes atts = timedGetAttributes(ctx, DN, attributes);
+            if (atts == null) {
+                return null;
+            }
+            LDAPDirectoryEntry _e = new LDAPDirectoryEntry(DN);
+            @SuppressWarnings("unchecked")
+            NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) atts.getAll();
+            while (ne.hasMore()) {
+                Attribute att = ne.next();
+                _e.setAttribute(LDAPAttributeValueIterator.getAttributeName(att), getValues(ctx, DN, att));
+            }
+            return _e;
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "getEntry() null pointer");
+            throw new LDAPException("get entry null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "getEntry() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+    }
+
+    /**
+     * Gets several entries using their Distinguished Names. The names under the base DN are
+     * searched in groups, with an OR filter on the attribute that contains the Distinguished Name,
+     * so a long list only needs a few requests and the names not found do not exist. The names out
+     * of the base DN, or all of them if the schema of the server does not define that attribute,
+     * are read one by one. The entries that do not exist are not included in the result
+     * 
+     * @param DNs
+     *            Distinguished Names of the entries
+     * @param attributes
+     *            Names of the attributes to load, <code>null</code> to load all of them
+     * @return Map<String, Identity> with the requested Distinguished Names as keys
+     * @exception LDAPException
+     */
+    public Map<String, Identity> getEntries(final Collection<String> DNs, final String[] attributes)
+            throws LDAPException {
+        Map<String, Identity> results = new LinkedHashMap<String, Identity>();
+        Map<LdapName, String> _pending = new LinkedHashMap<LdapName, String>();
+        for (String _DN : DNs) {
+            try {
+                _pending.put(new LdapName(_DN), _DN);
+            } catch (InvalidNameException e) {
+                throw new LDAPException("invalid distinguished name [" + _DN + "]");
+            }
+        }
+        if (_pending.isEmpty()) {
+            return results;
+        }
+        DirContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            String _attribute = getEntryDNAttribute(ctx);
+            SearchControls ctls = new SearchControls();
+            ctls.setReturningAttributes(attributes);
+            ctls.setSearchScope(LDAPConnection.SUBTREE_SCOPE);
+
+            LDAPSchema _schema = connection.getSchema(ctx);
+            LdapName _base = new LdapName(baseDN);
+            List<String> _names = new ArrayList<String>();
+            if (_schema != null && _schema.hasAttribute(_attribute)) {
+                for (Map.Entry<LdapName, String> _p : _pending.entrySet()) {
+                    if (_p.getKey().startsWith(_base)) {
+                        _names.add(_p.getValue());
+                    }
+                }
+            }
+            for (int _offset = 0; _offset < _names.size(); _offset += DN_FILTER_SIZE) {
+                List<String> _chunk = _names.subList(_offset, Math.min(_offset + DN_FILTER_SIZE, _names.size()));
+                StringBuilder _filter = new StringBuilder();
+                _filter.append("(|");
+                for (int i = 0; i < _chunk.size(); i++) {
+                    _filter.append("(");
+                    _filter.append(_attribute);
+                    _filter.append("={");
+                    _filter.append(i);
+                    _filter.append("})");
+                }
+                _filter.append(")");
+                NamingEnumeration<SearchResult> answer = timedSearch(ctx, baseDN, _filter.toString(),
+                        _chunk.toArray(), ctls);
+                while (answer.hasMoreElements()) {
+                    LDAPDirectoryEntry _e = getEntry(ctx, answer.nextElement(), baseDN);
+                    String _DN = _pending.get(new LdapName(_e.getID()));
+                    if (_DN != null) {
+                        results.put(_DN, _e);
+                    }
+                }
+                for (String _DN : _chunk) {
+                    _pending.remove(new LdapName(_DN));
+                }
+            }
+
+            for (Map.Entry<LdapName, String> _p : _pending.entrySet()) {
+                try {
+                    Attributes atts = timedGetAttributes(ctx, _p.getValue(), attributes);
+                    LDAPDirectoryEntry _e = new LDAPDirectoryEntry(_p.getValue());
+                    @SuppressWarnings("unchecked")
+                    NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) atts.getAll();
+                    while (ne.hasMore()) {
+                        Attribute att = ne.next();
+                        _e.setAttribute(LDAPAttributeValueIterator.getAttributeName(att),
+                                getValues(ctx, _p.getValue(), att));
+                    }
+                    results.put(_p.getValue(), _e);
+                } catch (NameNotFoundException e) {
+                    // entry does not exists
+                }
+            }
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "getEntries() null pointer");
+            throw new LDAPException("get entries null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "getEntries() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+        return results;
+    }
+
+    /*
+     * Attribute with the Distinguished Name of the entries, detected once per connection using
+     * the capabilities of the server
+     */
+    private String getEntryDNAttribute(final DirContext ctx) throws NamingException {
+        String _attribute = connection.getEntryDNAttribute();
+        if (_attribute != null) {
+            return _attribute;
+        }
+        _attribute = "entryDN";
+        if (isActiveDirectory(ctx)) {
+            _attribute = "distinguishedName";
+        }
+        connection.setEntryDNAttribute(_attribute);
+        return _attribute;
+    }
+
+    /*
+     * Verify if the server is a Microsoft Active Directory domain controller, using the
+     * capabilities of the server
+     */
+    private boolean isActiveDirectory(final DirContext ctx) throws NamingException {
+        Attribute _capabilities = timedGetAttributes(ctx, "", new String[] { "supportedCapabilities" }).get(
+                "supportedCapabilities");
+        return _capabilities != null && _capabilities.contains(MSAD_CAPABILITY_OID);
+    }
+
     /**
      * Gets values of an entry attribute using a Distinguished Name and the name of the attribute
      * 
@@ -390,44 +682,55 @@ public class LDAPDirectoryReader {
      */
     public List<Object> getEntryAttribute(final String DN, final String attribute) throws LDAPException {
         List<Object> _values = new ArrayList<Object>();
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
-            Attributes _atts = null;
-            if ("modifyTimestamp".equals(attribute)) {
-                String[] _attributeName = new String[1];
-                _attributeName[0] = attribute;
-                _atts = ctx.getAttributes(DN, _attributeName);
-            } else {
-                _atts = ctx.getAttributes(DN);
-                if (_atts == null) {
-                    throw new LDAPException("entry not found [" + DN + "]");
-                }
+            Attributes _atts = timedGetAttributes(ctx, DN, new String[] { attribute });
+            if (_atts == null) {
+                throw new LDAPException("entry not found [" + DN + "]");
             }
             Attribute _att = _atts.get(attribute);
             if (_att == null) {
-                throw new LDAPException("attribute [" + attribute + "] not found in entry");
+                /*
+                 * the attribute can be returned only as a range of values
+                 */
+                _att = LDAPAttributeValueIterator.readRange(ctx, DN, attribute, 0);
             }
-
-            @SuppressWarnings("unchecked")
-            NamingEnumeration<Object> _ne = (NamingEnumeration<Object>) _att.getAll();
-            while (_ne.hasMore()) {
-                _values.add(_ne.next());
+            if (_att == null) {
+                throw new LDAPException("attribute [" + attribute + "] not found in entry");
             }
+            _values.addAll(Arrays.asList(getValues(ctx, DN, _att)));
             return _values;
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "getEntryAttribute() null pointer");
             throw new LDAPException("get entry attribute null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "getEntryAttribute() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
+    /**
+     * Gets the values of an entry attribute one range at a time, without loading all of them in
+     * memory. Useful for very large multi-valued attributes like the <code>member</code>
+     * attribute of big groups
+     * 
+     * @param DN
+     *            Distinguished Name of the entry
+     * @param attribute
+     *            name of the attribute
+     * @return LDAPAttributeValueIterator
+     */
+    public LDAPAttributeValueIterator getEntryAttributeValues(final String DN, final String attribute) {
+        return new LDAPAttributeValueIterator(connection, DN, attribute);
+    }
+
     /**
      * Search for entry that matches the specific <code>DirectoryQuery</code> conditions
      * 
@@ -438,28 +741,27 @@ public class LDAPDirectoryReader {
      */
     public List<Identity> search(final LDAPDirectoryQuery q) throws LDAPException {
         List<Identity> results = new ArrayList<Identity>();
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
             SearchControls ctls = new SearchControls();
-            List<String> _aux = new ArrayList<String>();
-            _aux.add("modifyTimestamp");
-            _aux.add("*");
-            ctls.setReturningAttributes(_aux.toArray(new String[_aux.size()]));
+            ctls.setReturningAttributes(getReturningAttributes(q));
             if (connection.hasCountLimit()) {
                 ctls.setCountLimit(connection.getCountLimit());
             }
             ctls.setSearchScope(connection.getScope());
 
+            String base = getSearchBase(ctx, q);
             String filter = getQueryString(ctx, q);
-            NamingEnumeration<SearchResult> answer = ctx.search(baseDN, filter, ctls);
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, filter, null, ctls);
             while (answer.hasMoreElements()) {
                 SearchResult sr = answer.nextElement();
                 LDAPDirectoryEntry _e = null;
                 if (sr.getName().isEmpty()) {
-                    _e = new LDAPDirectoryEntry(baseDN);
+                    _e = new LDAPDirectoryEntry(base);
                 } else {
                     _e = new LDAPDirectoryEntry(sr.getNameInNamespace());
                     /*
@@ -472,13 +774,7 @@ public class LDAPDirectoryReader {
                 NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) sr.getAttributes().getAll();
                 while (ne.hasMore()) {
                     Attribute att = ne.next();
-                    Object[] attrs = new Object[att.size()];
-                    @SuppressWarnings("unchecked")
-                    NamingEnumeration<Object> nea = (NamingEnumeration<Object>) att.getAll();
-                    for (int i = 0; nea.hasMore(); i++) {
-                        attrs[i] = nea.next();
-                    }
-                    _e.setAttribute(att.getID(), attrs);
+                    _e.setAttribute(LDAPAttributeValueIterator.getAttributeName(att), getValues(ctx, _e.getID(), att));
                 }
                 results.add(_e);
             }
@@ -486,14 +782,470 @@ public class LDAPDirectoryReader {
             _log.log(java.util.logging.Level.ALL, "search() null pointer");
             throw new LDAPException("search null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "search() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+        return results;
+    }
+
+    /**
+     * Search for entry that matches a compiled query, using the values of the arguments
+     * 
+     * @param q
+     *            LDAPCompiledQuery
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @return List<DirectoryEntry>
+     * @exception LDAPException
+     */
+    public List<Identity> search(final LDAPCompiledQuery q, final Object... arguments) throws LDAPException {
+        if (arguments.length != q.getArgumentCount()) {
+            throw new LDAPException("invalid number of query arguments, " + q.getArgumentCount() + " expected");
+        }
+        List<Identity> results = new ArrayList<Identity>();
+        DirContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            SearchControls ctls = new SearchControls();
+            if (q.getReturningAttributes() != null) {
+                ctls.setReturningAttributes(q.getReturningAttributes());
+            } else {
+                ctls.setReturningAttributes(DEFAULT_ATTRIBUTES);
+            }
+            if (connection.hasCountLimit()) {
+                ctls.setCountLimit(connection.getCountLimit());
+            }
+            ctls.setSearchScope(connection.getScope());
+
+            String base = q.getBaseDN() != null ? q.getBaseDN() : baseDN;
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, q.getFilter(), arguments, ctls);
+            while (answer.hasMoreElements()) {
+                results.add(getEntry(ctx, answer.nextElement(), base));
+            }
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "search() null pointer");
+            throw new LDAPException("search null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "search() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
+        }
+        return results;
+    }
+
+    /**
+     * Search for the first entries that match a compiled query. The server stops after the limit
+     * of entries or the time limit, and the entries found until then are returned
+     * 
+     * @param q
+     *            LDAPCompiledQuery
+     * @param limit
+     *            Maximum number of entries
+     * @param timeLimit
+     *            Time limit of the search in milliseconds, <code>0</code> to wait indefinitely
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @return List<DirectoryEntry>
+     * @exception LDAPException
+     */
+    public List<Identity> searchFirst(final LDAPCompiledQuery q, final int limit, final int timeLimit,
+            final Object... arguments) throws LDAPException {
+        if (arguments.length != q.getArgumentCount()) {
+            throw new LDAPException("invalid number of query arguments, " + q.getArgumentCount() + " expected");
+        }
+        if (limit <= 0) {
+            throw new LDAPException("invalid search limit");
+        }
+        List<Identity> results = new ArrayList<Identity>();
+        DirContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            SearchControls ctls = new SearchControls();
+            if (q.getReturningAttributes() != null) {
+                ctls.setReturningAttributes(q.getReturningAttributes());
+            } else {
+                ctls.setReturningAttributes(DEFAULT_ATTRIBUTES);
+            }
+            ctls.setCountLimit(limit);
+            ctls.setTimeLimit(timeLimit);
+            ctls.setSearchScope(connection.getScope());
+
+            String base = q.getBaseDN() != null ? q.getBaseDN() : baseDN;
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, q.getFilter(), arguments, ctls);
+            try {
+                while (results.size() < limit && answer.hasMore()) {
+                    results.add(getEntry(ctx, answer.next(), base));
+                }
+            } catch (LimitExceededException e) {
+                // the entries found until the limit
+            } finally {
+                answer.close();
+            }
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "searchFirst() null pointer");
+            throw new LDAPException("search null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "searchFirst() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+        return results;
+    }
+
+    /**
+     * Search for entries that match a compiled query, running one search for every container
+     * directly under the base DN on the executor. The base DN itself and the entries directly under
+     * it are searched too, so the searches cover the same entries as a single search of the base DN,
+     * with the limit described on <code>getContainers()</code>. At most
+     * <code>threads</code> searches run at the same time, and never more than the size of the read
+     * only pool of the servers. The entries are sent to the handler, in the calling thread, as
+     * they arrive from any of the searches, through a queue of one page of entries
+     * 
+     * @param q
+     *            LDAPCompiledQuery
+     * @param executor
+     *            ExecutorService that runs the searches
+     * @param threads
+     *            Maximum number of searches running at the same time
+     * @param pageSize
+     *            Number of entries per page
+     * @param handler
+     *            LDAPSearchHandler that receives the entries
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @exception LDAPException
+     */
+    public void parallelSearch(final LDAPCompiledQuery q, final ExecutorService executor, final int threads,
+            final int pageSize, final LDAPSearchHandler handler, final Object... arguments) throws LDAPException {
+        if (handler == null) {
+            throw new LDAPException("invalid search handler");
+        }
+        if (arguments.length != q.getArgumentCount()) {
+            throw new LDAPException("invalid number of query arguments, " + q.getArgumentCount() + " expected");
+        }
+        String base = q.getBaseDN() != null ? q.getBaseDN() : baseDN;
+        List<ContainerSearch> _searches = new ArrayList<ContainerSearch>();
+        _searches.add(new ContainerSearch(q, base, LDAPConnection.ONE_SCOPE, pageSize, arguments));
+        for (String _container : searchContainers(base)) {
+            _searches.add(new ContainerSearch(q, _container, LDAPConnection.SUBTREE_SCOPE, pageSize, arguments));
+        }
+        int _limit = Math.max(1, Math.min(threads, getReadPoolSize()));
+        BlockingQueue<Object> _queue = new ArrayBlockingQueue<Object>(pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE);
+        List<Future<?>> _futures = new ArrayList<Future<?>>();
+        int _next = 0;
+        int _running = 0;
+        try {
+            while (_next < _searches.size() || _running > 0) {
+                while (_running < _limit && _next < _searches.size()) {
+                    _futures.add(executor.submit(_searches.get(_next++).into(_queue)));
+                    _running++;
+                }
+                Object _item = _queue.take();
+                if (_item instanceof SearchDone) {
+                    _running--;
+                    if (((SearchDone) _item).error != null) {
+                        throw ((SearchDone) _item).error;
+                    }
+                } else if (!handler.handle((Identity) _item)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LDAPException("interrupted while waiting for the search results");
+        } finally {
+            for (Future<?> _f : _futures) {
+                _f.cancel(true);
+            }
+        }
+    }
+
+    /*
+     * Smallest read only pool of the servers, the searches of parallelSearch() can go to any of
+     * them
+     */
+    private int getReadPoolSize() {
+        int _size = Integer.MAX_VALUE;
+        for (LDAPServer _server : connection.getServers()) {
+            _size = Math.min(_size, _server.getPool(LDAPConnection.RO).getMaxSize());
+        }
+        return _size;
+    }
+
+    /**
+     * Search for entries that match a compiled query in one partition of the base DN. When the
+     * container is the base DN itself, the base DN entry and the entries directly under it are
+     * searched, the entries under every other container are searched with
+     * <code>SUBTREE_SCOPE</code>. Together with <code>getContainers()</code>, the search of every
+     * partition covers the same entries as a single search of the base DN
+     * 
+     * @param q
+     *            LDAPCompiledQuery
+     * @param container
+     *            Distinguished Name of the container, <code>null</code> for the base DN
+     * @param pageSize
+     *            Number of entries per page
+     * @param handler
+     *            LDAPSearchHandler that receives the entries
+     * @param arguments
+     *            Values of the query arguments, in order
+     * @exception LDAPException
+     */
+    public void searchContainer(final LDAPCompiledQuery q, final String container, final int pageSize,
+            final LDAPSearchHandler handler, final Object... arguments) throws LDAPException {
+        if (handler == null) {
+            throw new LDAPException("invalid search handler");
+        }
+        if (arguments.length != q.getArgumentCount()) {
+            throw new LDAPException("invalid number of query arguments, " + q.getArgumentCount() + " expected");
+        }
+        String base = q.getBaseDN() != null ? q.getBaseDN() : baseDN;
+        int scope = LDAPConnection.SUBTREE_SCOPE;
+        if (container == null || container.equalsIgnoreCase(base)) {
+            scope = LDAPConnection.ONE_SCOPE;
+        } else {
+            base = container;
+        }
+        new ContainerSearch(q, base, scope, pageSize, arguments).search(handler);
+    }
+
+    /*
+     * Marks the end of one of the searches of parallelSearch() on the queue
+     */
+    private static final class SearchDone {
+        private final LDAPException error;
+
+        private SearchDone(final LDAPException error) {
+            this.error = error;
+        }
+    }
+
+    /*
+     * Search of one partition. With ONE_SCOPE the base entry is searched first with OBJECT_SCOPE.
+     * With SUBTREE_SCOPE the container entry itself is skipped, it is returned by the ONE_SCOPE
+     * search of the base DN
+     */
+    private final class ContainerSearch {
+        private final LDAPCompiledQuery q;
+        private final String base;
+        private final int scope;
+        private final int pageSize;
+        private final Object[] arguments;
+
+        private ContainerSearch(final LDAPCompiledQuery q, final String base, final int scope, final int pageSize,
+                final Object[] arguments) {
+            this.q = q;
+            this.base = base;
+            this.scope = scope;
+            this.pageSize = pageSize;
+            this.arguments = arguments;
+        }
+
+        /*
+         * Task that puts the entries on the queue, followed by a SearchDone. It waits while the
+         * queue is full and stops when it is cancelled
+         */
+        private Runnable into(final BlockingQueue<Object> queue) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    LDAPException _error = null;
+                    try {
+                        search(new LDAPSearchHandler() {
+                            @Override
+                            public boolean handle(final Identity identity) {
+                                try {
+                                    queue.put(identity);
+                                    return true;
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                    return false;
+                                }
+                            }
+                        });
+                    } catch (LDAPException e) {
+                        _error = e;
+                    } catch (RuntimeException e) {
+                        _log.log(java.util.logging.Level.ALL, "parallelSearch() - " + e);
+                        _error = new LDAPException(String.valueOf(e.getMessage()));
+                    }
+                    try {
+                        if (!Thread.currentThread().isInterrupted()) {
+                            queue.put(new SearchDone(_error));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+        }
+
+        private void search(final LDAPSearchHandler handler) throws LDAPException {
+            LdapContext ctx = null;
+            try {
+                ctx = connection.connect();
+                if (ctx == null) {
+                    throw new LDAPException("directory service not available");
+                }
+                SearchControls ctls = new SearchControls();
+                if (q.getReturningAttributes() != null) {
+                    ctls.setReturningAttributes(q.getReturningAttributes());
+                } else {
+                    ctls.setReturningAttributes(DEFAULT_ATTRIBUTES);
+                }
+                if (scope == LDAPConnection.ONE_SCOPE) {
+                    ctls.setSearchScope(LDAPConnection.OBJECT_SCOPE);
+                    if (!pagedSearch(ctx, base, q.getFilter(), arguments, ctls, null, pageSize, handler)) {
+                        return;
+                    }
+                }
+                ctls.setSearchScope(scope);
+                pagedSearch(ctx, base, q.getFilter(), arguments, ctls, null, pageSize, new LDAPSearchHandler() {
+                    @Override
+                    public boolean handle(final Identity identity) throws LDAPException {
+                        if (scope == LDAPConnection.SUBTREE_SCOPE && base.equals(identity.getID())) {
+                            return true;
+                        }
+                        return handler.handle(identity);
+                    }
+                });
+            } catch (NullPointerException e) {
+                _log.log(java.util.logging.Level.ALL, "parallelSearch() null pointer");
+                throw new LDAPException("parallel search null pointer");
+            } catch (NamingException e) {
+                connection.invalidate(ctx, e);
+                _log.log(java.util.logging.Level.ALL, "parallelSearch() - " + e.getMessage());
+                throw new LDAPException(e.getMessage());
+            } catch (IOException e) {
+                _log.log(java.util.logging.Level.ALL, "parallelSearch() - " + e.getMessage());
+                throw new LDAPException(e.getMessage());
+            } finally {
+                connection.disconnect(ctx);
+            }
+        }
+    }
+
+    /**
+     * Returns the Distinguished Names of the entries directly under the base DN that can contain
+     * other entries, whatever their object class is. Entries that report
+     * <code>hasSubordinates=FALSE</code> are left out, the search of the base DN with
+     * <code>ONE_SCOPE</code> already returns them.
+     * 
+     * Microsoft Active Directory does not publish <code>hasSubordinates</code>, so there the
+     * containers are the entries of class <code>organizationalUnit</code>, <code>container</code>
+     * or <code>builtinDomain</code>. Entries under other kinds of entries directly under the base
+     * DN, like the devices under a user, are not searched
+     * 
+     * @return List<String>
+     * @exception LDAPException
+     */
+    public List<String> getContainers() throws LDAPException {
+        return searchContainers(baseDN);
+    }
+
+    /*
+     * Distinguished Names of the entries directly under a base DN that can contain other entries
+     */
+    private List<String> searchContainers(final String base) throws LDAPException {
+        final List<String> results = new ArrayList<String>();
+        LdapContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            String _filter = "(objectClass=*)";
+            SearchControls ctls = new SearchControls();
+            ctls.setReturningAttributes(new String[] { "hasSubordinates" });
+            if (isActiveDirectory(ctx)) {
+                _filter = MSAD_CONTAINER_FILTER;
+                ctls.setReturningAttributes(NO_ATTRIBUTES);
+            }
+            ctls.setSearchScope(LDAPConnection.ONE_SCOPE);
+            pagedSearch(ctx, base, _filter, null, ctls, null, DEFAULT_PAGE_SIZE, new LDAPSearchHandler() {
+                @Override
+                public boolean handle(final Identity entry) {
+                    if (!"FALSE".equalsIgnoreCase(entry.getAttributeFirstStringValue("hasSubordinates"))) {
+                        results.add(entry.getID());
+                    }
+                    return true;
+                }
+            });
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "searchContainers() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } catch (IOException e) {
+            _log.log(java.util.logging.Level.ALL, "searchContainers() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
         }
         return results;
     }
 
+    /**
+     * Counts the entries that match the specific <code>DirectoryQuery</code> conditions. The
+     * search is paged and requests no attributes, and the results are counted without creating
+     * the entries
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param pageSize
+     *            Number of entries per page
+     * @return long
+     * @exception LDAPException
+     */
+    public long count(final LDAPDirectoryQuery q, final int pageSize) throws LDAPException {
+        final long[] _count = new long[] { 0 };
+        LdapContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            SearchControls ctls = new SearchControls();
+            ctls.setReturningAttributes(NO_ATTRIBUTES);
+            ctls.setSearchScope(connection.getScope());
+
+            String base = getSearchBase(ctx, q);
+            String filter = getQueryString(ctx, q);
+            pagedSearchResults(ctx, base, filter, null, ctls, null, pageSize, new SearchResultHandler() {
+                @Override
+                public boolean handle(final SearchResult sr) {
+                    _count[0]++;
+                    return true;
+                }
+            });
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "count() null pointer");
+            throw new LDAPException("count null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "count() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } catch (IOException e) {
+            _log.log(java.util.logging.Level.ALL, "count() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+        return _count[0];
+    }
+
     /**
      * Search for entry that matches the specific <code>DirectoryQuery</code> conditions. Returns a
      * <code>java.util.List<String></code> with the Distinguished names of the entries that match
@@ -505,19 +1257,22 @@ public class LDAPDirectoryReader {
      */
     public List<String> searchDN(final LDAPDirectoryQuery q) throws LDAPException {
         List<String> results = new ArrayList<String>();
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
             SearchControls ctls = new SearchControls();
+            ctls.setReturningAttributes(new String[0]);
             if (connection.hasCountLimit()) {
                 ctls.setCountLimit(connection.getCountLimit());
             }
             ctls.setSearchScope(connection.getScope());
 
+            String base = getSearchBase(ctx, q);
             String filter = getQueryString(ctx, q);
-            NamingEnumeration<SearchResult> answer = ctx.search(baseDN, filter, ctls);
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, filter, null, ctls);
             while (answer.hasMoreElements()) {
                 SearchResult sr = answer.nextElement();
                 results.add(sr.getNameInNamespace());
@@ -526,10 +1281,11 @@ public class LDAPDirectoryReader {
             _log.log(java.util.logging.Level.ALL, "searchDN() null pointer");
             throw new LDAPException("search DN null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "searchDN() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
         return results;
     }
@@ -548,12 +1304,14 @@ public class LDAPDirectoryReader {
      */
     public List<String> searchDN(final LDAPDirectoryQuery q, final Integer limit) throws LDAPException {
         List<String> results = new ArrayList<String>();
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
             SearchControls ctls = new SearchControls();
+            ctls.setReturningAttributes(new String[0]);
             if (connection.hasCountLimit()) {
                 ctls.setCountLimit(connection.getCountLimit());
             }
@@ -562,8 +1320,9 @@ public class LDAPDirectoryReader {
             }
             ctls.setSearchScope(connection.getScope());
 
+            String base = getSearchBase(ctx, q);
             String filter = getQueryString(ctx, q);
-            NamingEnumeration<SearchResult> answer = ctx.search(baseDN, filter, ctls);
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, filter, null, ctls);
             while (answer.hasMoreElements()) {
                 SearchResult sr = answer.nextElement();
                 results.add(sr.getNameInNamespace());
@@ -572,14 +1331,418 @@ public class LDAPDirectoryReader {
             _log.log(java.util.logging.Level.ALL, "searchDN() null pointer");
             throw new LDAPException("search DN null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "searchDN() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
         return results;
     }
 
+    /**
+     * Search for entry that matches the specific <code>DirectoryQuery</code> conditions, using the
+     * paged results control (RFC 2696). Entries are sent to the handler while they arrive, so only
+     * one page of results is kept in memory
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param pageSize
+     *            Number of entries requested per page
+     * @param handler
+     *            LDAPSearchHandler that receives the entries
+     * @exception LDAPException
+     */
+    public void search(final LDAPDirectoryQuery q, final int pageSize, final LDAPSearchHandler handler)
+            throws LDAPException {
+        if (handler == null) {
+            throw new LDAPException("invalid search handler");
+        }
+        LdapContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            SearchControls ctls = new SearchControls();
+            ctls.setReturningAttributes(getReturningAttributes(q));
+            if (connection.hasCountLimit()) {
+                ctls.setCountLimit(connection.getCountLimit());
+            }
+            ctls.setSearchScope(connection.getScope());
+
+            String base = getSearchBase(ctx, q);
+            String filter = getQueryString(ctx, q);
+            pagedSearch(ctx, base, filter, null, ctls, null, pageSize, handler);
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "search() null pointer");
+            throw new LDAPException("search null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "search() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } catch (IOException e) {
+            _log.log(java.util.logging.Level.ALL, "search() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+    }
+
+    /*
+     * Receives the results of a paged search as they are read, before any entry is created
+     */
+    private interface SearchResultHandler {
+        boolean handle(SearchResult sr) throws NamingException, LDAPException;
+    }
+
+    /*
+     * Runs the search page by page on the same context, sending the entries to the handler. The
+     * filter arguments are optional. Returns false if the handler stopped the search
+     */
+    boolean pagedSearch(final LdapContext ctx, final String base, final String filter,
+            final Object[] arguments, final SearchControls ctls, final Control control, final int pageSize,
+            final LDAPSearchHandler handler) throws NamingException, IOException, LDAPException {
+        return pagedSearchResults(ctx, base, filter, arguments, ctls, control, pageSize, new SearchResultHandler() {
+            @Override
+            public boolean handle(final SearchResult sr) throws NamingException, LDAPException {
+                return handler.handle(getEntry(ctx, sr, base));
+            }
+        });
+    }
+
+    /*
+     * Runs the search page by page on the same context, sending the raw results to the handler
+     */
+    private boolean pagedSearchResults(final LdapContext ctx, final String base, final String filter,
+            final Object[] arguments, final SearchControls ctls, final Control control, final int pageSize,
+            final SearchResultHandler handler) throws NamingException, IOException, LDAPException {
+        int _pageSize = pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE;
+        byte[] _cookie = null;
+        do {
+            List<Control> _request = new ArrayList<Control>();
+            if (_cookie == null) {
+                _request.add(new PagedResultsControl(_pageSize, Control.NONCRITICAL));
+            } else {
+                _request.add(new PagedResultsControl(_pageSize, _cookie, Control.CRITICAL));
+            }
+            if (control != null) {
+                _request.add(control);
+            }
+            ctx.setRequestControls(_request.toArray(new Control[_request.size()]));
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, filter, arguments, ctls);
+            while (answer.hasMoreElements()) {
+                if (!handler.handle(answer.nextElement())) {
+                    abandonPagedSearch(ctx, base, filter, arguments, ctls, control, answer);
+                    return false;
+                }
+            }
+            _cookie = getCookie(ctx);
+        } while (_cookie != null);
+        return true;
+    }
+
+    /*
+     * Releases the paged result set kept by the server when the handler stops a search. The rest of
+     * the page is read to get the last cookie, and a request with that cookie and size 0 ends the
+     * paging (RFC 2696). If that fails the context is discarded, so it does not go back to the pool
+     * with the result set still open
+     */
+    private void abandonPagedSearch(final LdapContext ctx, final String base, final String filter,
+            final Object[] arguments, final SearchControls ctls, final Control control,
+            final NamingEnumeration<SearchResult> answer) {
+        try {
+            while (answer.hasMoreElements()) {
+                answer.nextElement();
+            }
+            byte[] _cookie = getCookie(ctx);
+            if (_cookie == null) {
+                return;
+            }
+            List<Control> _request = new ArrayList<Control>();
+            _request.add(new PagedResultsControl(0, _cookie, Control.CRITICAL));
+            if (control != null) {
+                _request.add(control);
+            }
+            ctx.setRequestControls(_request.toArray(new Control[_request.size()]));
+            timedSearch(ctx, base, filter, arguments, ctls).close();
+        } catch (NamingException e) {
+            _log.log(java.util.logging.Level.ALL, "abandonPagedSearch() - " + e.getMessage());
+            connection.discard(ctx);
+        } catch (IOException e) {
+            _log.log(java.util.logging.Level.ALL, "abandonPagedSearch() - " + e.getMessage());
+            connection.discard(ctx);
+        }
+    }
+
+    /*
+     * Cookie of the last page of a paged search, null if it was the last page
+     */
+    private static byte[] getCookie(final LdapContext ctx) throws NamingException {
+        byte[] _cookie = null;
+        Control[] _controls = ctx.getResponseControls();
+        if (_controls != null) {
+            for (Control _control : _controls) {
+                if (_control instanceof PagedResultsResponseControl) {
+                    _cookie = ((PagedResultsResponseControl) _control).getCookie();
+                }
+            }
+        }
+        if (_cookie != null && _cookie.length == 0) {
+            return null;
+        }
+        return _cookie;
+    }
+
+    /**
+     * Search for entries changed on a Microsoft Active Directory domain controller after an update
+     * sequence number (<code>uSNChanged</code>). The search is sent to the domain controller
+     * named by <code>server</code>, and the rootDSE and the entries are read using the same
+     * connection, so all the sequence numbers belong to the same domain controller.
+     * 
+     * Returns the rootDSE of the domain controller with the attributes <code>dnsHostName</code>
+     * and <code>highestCommittedUSN</code>, read before the search. If the domain controller that
+     * generated the sequence number is not available, the search is sent to other server, all the
+     * entries are returned and the deleted entries are not searched
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param server
+     *            Host name of the domain controller that generated the sequence number
+     * @param usn
+     *            Update sequence number, <code>0</code> to get all the entries
+     * @param pageSize
+     *            Number of entries requested per page
+     * @param handler
+     *            LDAPSearchHandler that receives the changed entries
+     * @param deletedHandler
+     *            LDAPSearchHandler that receives the deleted entries (tombstones), can be null
+     * @return LDAPDirectoryEntry
+     * @exception LDAPException
+     */
+    public LDAPDirectoryEntry searchChanges(final LDAPDirectoryQuery q, final String server, final long usn,
+            final int pageSize, final LDAPSearchHandler handler, final LDAPSearchHandler deletedHandler)
+            throws LDAPException {
+        if (handler == null) {
+            throw new LDAPException("invalid search handler");
+        }
+        LdapContext ctx = null;
+        try {
+            if (server != null && usn > 0) {
+                ctx = connectServer(server);
+            }
+            if (ctx == null) {
+                ctx = connection.connect();
+            }
+            if (ctx == null) {
+                throw new LDAPException("directory service not available");
+            }
+            LDAPDirectoryEntry _rootDSE = new LDAPDirectoryEntry("");
+            Attributes _atts = readRootDSE(ctx, "dnsHostName", "highestCommittedUSN");
+            if (_atts.get("dnsHostName") == null || _atts.get("highestCommittedUSN") == null) {
+                throw new LDAPException("directory server does not provide update sequence numbers");
+            }
+            _rootDSE.setAttribute("dnsHostName", _atts.get("dnsHostName").get());
+            _rootDSE.setAttribute("highestCommittedUSN", _atts.get("highestCommittedUSN").get());
+
+            long _usn = usn;
+            if (server == null || !server.equalsIgnoreCase(String.valueOf(_atts.get("dnsHostName").get()))) {
+                _usn = 0;
+            }
+
+            SearchControls ctls = new SearchControls();
+            ctls.setReturningAttributes(getReturningAttributes(q, "uSNChanged"));
+            ctls.setSearchScope(connection.getScope());
+
+            String base = getSearchBase(ctx, q);
+            StringBuilder _filter = new StringBuilder();
+            _filter.append("(&");
+            _filter.append(getQueryString(ctx, q));
+            if (_usn > 0) {
+                _filter.append("(uSNChanged>=");
+                _filter.append(_usn + 1);
+                _filter.append(")");
+            }
+            _filter.append(")");
+            if (!pagedSearch(ctx, base, _filter.toString(), null, ctls, null, pageSize, handler)) {
+                return _rootDSE;
+            }
+
+            if (deletedHandler != null && _usn > 0) {
+                _filter.insert(2, "(isDeleted=TRUE)");
+                ctls.setReturningAttributes(new String[] { "*", "uSNChanged", "isDeleted", "lastKnownParent",
+                        "msDS-LastKnownRDN" });
+                pagedSearch(ctx, base, _filter.toString(), null, ctls, new BasicControl(MSAD_SHOW_DELETED_OID,
+                        Control.CRITICAL, null), pageSize, deletedHandler);
+            }
+            return _rootDSE;
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "searchChanges() null pointer");
+            throw new LDAPException("search changes null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "searchChanges() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } catch (IOException e) {
+            _log.log(java.util.logging.Level.ALL, "searchChanges() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+    }
+
+    /*
+     * Borrows a read only context from the server with a host name, the one of the server
+     * definition or the one reported on the rootDSE. The servers that did not report their name
+     * yet are asked for it. Returns null if the server is not available
+     */
+    private LdapContext connectServer(final String host) throws LDAPException {
+        LdapContext ctx = connection.connect(LDAPConnection.RO, host);
+        if (ctx != null) {
+            return ctx;
+        }
+        for (LDAPServer _server : connection.getServers()) {
+            if (_server.getDnsHostName() != null || !_server.isAvailable()) {
+                continue;
+            }
+            LdapContext _ctx;
+            try {
+                _ctx = _server.borrow(LDAPConnection.RO);
+            } catch (LDAPException e) {
+                continue;
+            }
+            try {
+                readRootDSE(_ctx, "dnsHostName");
+                if (_server.isNamed(host)) {
+                    ctx = _ctx;
+                    _ctx = null;
+                    return ctx;
+                }
+            } catch (NamingException e) {
+                connection.invalidate(_ctx, e);
+            } finally {
+                connection.disconnect(_ctx);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Reads attributes of the rootDSE. The host name reported by the server is kept on the
+     * server of the context
+     */
+    private Attributes readRootDSE(final LdapContext ctx, final String... attributes) throws NamingException {
+        Attributes _atts = timedGetAttributes(ctx, "", attributes);
+        Attribute _name = _atts.get("dnsHostName");
+        LDAPServer _server = connection.getServer(ctx);
+        if (_name != null && _server != null) {
+            _server.setDnsHostName(String.valueOf(_name.get()));
+        }
+        return _atts;
+    }
+
+    /*
+     * Search that records the time until the server answers on the latency of the server of the
+     * context. The time spent reading the next entries and in the handlers is not included. The
+     * filter arguments are optional
+     */
+    private NamingEnumeration<SearchResult> timedSearch(final DirContext ctx, final String base,
+            final String filter, final Object[] arguments, final SearchControls ctls) throws NamingException {
+        return timedSearch(connection, ctx, base, filter, arguments, ctls);
+    }
+
+    private static NamingEnumeration<SearchResult> timedSearch(final LDAPConnection connection,
+            final DirContext ctx, final String base, final String filter, final Object[] arguments,
+            final SearchControls ctls) throws NamingException {
+        long _start = System.nanoTime();
+        try {
+            if (arguments != null) {
+                return ctx.search(base, filter, arguments, ctls);
+            }
+            return ctx.search(base, filter, ctls);
+        } finally {
+            connection.recordLatency(ctx, System.nanoTime() - _start);
+        }
+    }
+
+    /*
+     * Reads attributes of an entry and records the time on the latency of the server of the
+     * context. All the attributes are read if the attribute names are null
+     */
+    private Attributes timedGetAttributes(final DirContext ctx, final String DN, final String[] attributes)
+            throws NamingException {
+        long _start = System.nanoTime();
+        try {
+            return ctx.getAttributes(DN, attributes);
+        } finally {
+            connection.recordLatency(ctx, System.nanoTime() - _start);
+        }
+    }
+
+    /*
+     * Reads the names of the attributes of an entry without their values and returns the names
+     * that are not ignored, or null if the entry does not exist
+     */
+    private String[] getAttributeNames(final DirContext ctx, final String DN, final List<String> ignore_attributes)
+            throws NamingException {
+        Attributes _atts = null;
+        ctx.addToEnvironment(TYPES_ONLY, "true");
+        try {
+            _atts = timedGetAttributes(ctx, DN, null);
+        } finally {
+            ctx.removeFromEnvironment(TYPES_ONLY);
+        }
+        if (_atts == null) {
+            return null;
+        }
+        List<String> _names = new ArrayList<String>();
+        @SuppressWarnings("unchecked")
+        NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) _atts.getAll();
+        while (ne.hasMore()) {
+            String _name = LDAPAttributeValueIterator.getAttributeName(ne.next());
+            if (!ignore_attributes.contains(_name)) {
+                _names.add(_name);
+            }
+        }
+        return _names.toArray(new String[_names.size()]);
+    }
+
+    static LDAPDirectoryEntry getEntry(final DirContext ctx, final SearchResult sr, final String base)
+            throws NamingException {
+        LDAPDirectoryEntry _e = null;
+        if (sr.getName().isEmpty()) {
+            _e = new LDAPDirectoryEntry(base);
+        } else {
+            _e = new LDAPDirectoryEntry(sr.getNameInNamespace());
+        }
+        @SuppressWarnings("unchecked")
+        NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) sr.getAttributes().getAll();
+        while (ne.hasMore()) {
+            Attribute att = ne.next();
+            _e.setAttribute(LDAPAttributeValueIterator.getAttributeName(att), getValues(ctx, _e.getID(), att));
+        }
+        return _e;
+    }
+
+    /*
+     * Values of an attribute. When the server returns only a range of the values, the next ranges
+     * are read until the last one
+     */
+    private static Object[] getValues(final DirContext ctx, final String DN, final Attribute att)
+            throws NamingException {
+        List<Object> _values = new ArrayList<Object>(att.size());
+        String _name = LDAPAttributeValueIterator.getAttributeName(att);
+        for (Attribute _att = att; _att != null;) {
+            NamingEnumeration<?> nea = _att.getAll();
+            while (nea.hasMore()) {
+                _values.add(nea.next());
+            }
+            int _next = LDAPAttributeValueIterator.getNextRange(_att);
+            _att = _next < 0 ? null : LDAPAttributeValueIterator.readRange(ctx, DN, _name, _next);
+        }
+        return _values.toArray();
+    }
+
     /**
      * Search for entry that matches the specific <code>DirectoryQuery</code> conditions. Results
      * will be order using the values of a specific attribute
@@ -592,9 +1755,10 @@ public class LDAPDirectoryReader {
      * @exception LDAPException
      */
     public List<Identity> sortedSearch(final LDAPDirectoryQuery q, final String attribute) throws LDAPException {
-        TreeMap<String, Identity> results = new TreeMap<String, Identity>(Collator.getInstance(new Locale("es")));
+        List<Identity> results = new ArrayList<Identity>();
+        LdapContext ctx = null;
         try {
-            LdapContext ctx = connection.connect();
+            ctx = connection.connect();
             if (ctx == null) {
                 throw new LDAPException("Directory service not available");
             }
@@ -602,44 +1766,131 @@ public class LDAPDirectoryReader {
             if (connection.hasCountLimit()) {
                 ctls.setCountLimit(connection.getCountLimit());
             }
+            if (q.getReturningAttributes() != null) {
+                ctls.setReturningAttributes(getReturningAttributes(q, attribute));
+            }
             ctls.setSearchScope(connection.getScope());
             ctx.setRequestControls(new Control[] { new SortControl(attribute, Control.NONCRITICAL) });
 
+            String base = getSearchBase(ctx, q);
             String filter = getQueryString(ctx, q);
-            NamingEnumeration<SearchResult> answer = ctx.search(baseDN, filter, ctls);
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, filter, null, ctls);
             while (answer.hasMoreElements()) {
-                SearchResult sr = answer.nextElement();
-                LDAPDirectoryEntry _e = new LDAPDirectoryEntry(sr.getNameInNamespace());
-                @SuppressWarnings("unchecked")
-                NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) sr.getAttributes().getAll();
-                while (ne.hasMore()) {
-                    Attribute att = ne.next();
-                    Object[] attrs = new Object[att.size()];
-                    @SuppressWarnings("unchecked")
-                    NamingEnumeration<Object> nea = (NamingEnumeration<Object>) att.getAll();
-                    for (int i = 0; nea.hasMore(); i++) {
-                        attrs[i] = nea.next();
-                    }
-                    _e.setAttribute(att.getID(), attrs);
-                }
-                String _value = String.valueOf(_e.getAttribute(attribute)[0]);
-                while (results.containsKey(_value)) {
-                    _value = _value.concat("0");
-                }
-                results.put(_value, _e);
+                results.add(getEntry(ctx, answer.nextElement(), base));
+            }
+        } catch (NullPointerException e) {
+            _log.log(java.util.logging.Level.ALL, "sortedSearch() null pointer");
+            throw new LDAPException("sorted search null pointer");
+        } catch (NamingException e) {
+            connection.invalidate(ctx, e);
+            _log.log(java.util.logging.Level.ALL, "sortedSearch() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } catch (IOException e) {
+            _log.log(java.util.logging.Level.ALL, "sortedSearch() - " + e.getMessage());
+            throw new LDAPException(e.getMessage());
+        } finally {
+            connection.disconnect(ctx);
+        }
+        /*
+         * Stable sort, entries with the same value keep the order of the server
+         */
+        Collections.sort(results, getSortComparator(attribute));
+        return results;
+    }
+
+    /**
+     * Search for a window of the entries that matches the specific <code>DirectoryQuery</code>
+     * conditions, ordered using the values of a specific attribute. The directory server sorts the
+     * entries and returns only the window, using the server side sort and virtual list view
+     * controls. If the server does not support them, the window is extracted on the client
+     * 
+     * @param q
+     *            DirectoryQuery
+     * @param attribute
+     *            Name of the attribute that determines the order
+     * @param offset
+     *            Position of the first entry of the window, starting from <code>0</code>
+     * @param count
+     *            Number of entries of the window
+     * @param contextID
+     *            Context returned with the previous window, or <code>null</code>
+     * @return LDAPSortedPage
+     * @exception LDAPException
+     */
+    public LDAPSortedPage sortedSearch(final LDAPDirectoryQuery q, final String attribute, final int offset,
+            final int count, final byte[] contextID) throws LDAPException {
+        if (offset < 0 || count <= 0) {
+            throw new LDAPException("invalid sorted search window");
+        }
+        List<Identity> results = new ArrayList<Identity>();
+        LdapContext ctx = null;
+        try {
+            ctx = connection.connect();
+            if (ctx == null) {
+                throw new LDAPException("Directory service not available");
+            }
+            SearchControls ctls = new SearchControls();
+            if (q.getReturningAttributes() != null) {
+                ctls.setReturningAttributes(getReturningAttributes(q, attribute));
+            }
+            ctls.setSearchScope(connection.getScope());
+            ctx.setRequestControls(new Control[] { new SortControl(attribute, Control.NONCRITICAL),
+                    new LDAPVirtualListViewControl(offset + 1, count, contextID, Control.NONCRITICAL) });
+
+            String base = getSearchBase(ctx, q);
+            String filter = getQueryString(ctx, q);
+            NamingEnumeration<SearchResult> answer = timedSearch(ctx, base, filter, null, ctls);
+            while (answer.hasMoreElements()) {
+                results.add(getEntry(ctx, answer.nextElement(), base));
+            }
+
+            LDAPVirtualListViewResponseControl _response = LDAPVirtualListViewResponseControl.getInstance(ctx
+                    .getResponseControls());
+            if (_response == null) {
+                Collections.sort(results, getSortComparator(attribute));
+                int _from = Math.min(offset, results.size());
+                int _to = Math.min(offset + count, results.size());
+                return new LDAPSortedPage(new ArrayList<Identity>(results.subList(_from, _to)), _from,
+                        results.size(), null);
             }
+            if (_response.getResult() != 0) {
+                throw new LDAPException("virtual list view error " + _response.getResult());
+            }
+            return new LDAPSortedPage(results, _response.getTargetPosition() - 1, _response.getContentCount(),
+                    _response.getContextID());
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "sortedSearch() null pointer");
             throw new LDAPException("sorted search null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "sortedSearch() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } catch (IOException e) {
             _log.log(java.util.logging.Level.ALL, "sortedSearch() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
-        return new ArrayList<Identity>(results.values());
+    }
+
+    /*
+     * Orders the entries by the first value of the attribute, entries without the attribute first
+     */
+    private static Comparator<Identity> getSortComparator(final String attribute) {
+        final Collator _collator = Collator.getInstance(new Locale("es"));
+        return new Comparator<Identity>() {
+            @Override
+            public int compare(final Identity o1, final Identity o2) {
+                return _collator.compare(getSortValue(o1), getSortValue(o2));
+            }
+
+            private String getSortValue(final Identity e) {
+                Object[] _values = e.getAttribute(attribute);
+                if (_values == null || _values.length == 0) {
+                    return "";
+                }
+                return String.valueOf(_values[0]);
+            }
+        };
     }
 }
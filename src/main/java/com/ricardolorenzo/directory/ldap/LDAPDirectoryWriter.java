@@ -18,6 +18,7 @@ package com.ricardolorenzo.directory.ldap;
 
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -33,6 +34,7 @@ import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
+import javax.naming.directory.NoSuchAttributeException;
 
 /**
  * LDAP editor for directory entries
@@ -191,8 +193,9 @@ public class LDAPDirectoryWriter {
     }
 
     private void addEntryLDAPv3(final LDAPDirectoryEntry entry) throws LDAPException {
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect(LDAPConnection.RW);
+            ctx = connection.connect(LDAPConnection.RW);
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
@@ -217,16 +220,18 @@ public class LDAPDirectoryWriter {
             _log.log(java.util.logging.Level.ALL, "addEntryLDAPv3() nullpointer");
             throw new LDAPException("add entry null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "addEntryLDAPv3() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
     private void addEntryMSAD(final LDAPDirectoryEntry entry) throws LDAPException {
+        DirContext _ctx = null;
         try {
-            DirContext _ctx = connection.connect(LDAPConnection.RW);
+            _ctx = connection.connect(LDAPConnection.RW);
             if (_ctx == null) {
                 throw new LDAPException("directory service not available");
             }
@@ -293,22 +298,26 @@ public class LDAPDirectoryWriter {
             _log.log(java.util.logging.Level.ALL, "addEntryMSAD() nullpointer");
             throw new LDAPException("LDAPEditor.addEntryMSAD() nullpointer");
         } catch (NamingException e) {
+            connection.invalidate(_ctx, e);
             _log.log(java.util.logging.Level.ALL, "addEntryMSAD() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(_ctx);
         }
     }
 
     /**
      * Adds an attribute to an entry on the directory efficiently. This method is more efficient
-     * than update the entire entry
+     * than update the entire entry. Every value is tested with the LDAP compare operation and only
+     * the missing values are added, so the current values of the attribute are never transferred.
+     * Single valued attributes on the schema of the server are replaced without any compare
      * 
      * @param entry
      *            LDAPDirectoryEntry
      * @exception LDAPException
      */
     public void addEntryAttribute(final String DN, final String attribute, final Object value) throws LDAPException {
+        DirContext ctx = null;
         try {
             if (DN == null || DN.isEmpty()) {
                 throw new LDAPException("invalid entry DN");
@@ -319,48 +328,37 @@ public class LDAPDirectoryWriter {
             if (value == null) {
                 throw new LDAPException("invalid attribute value");
             }
-            DirContext ctx = connection.connect(LDAPConnection.RW);
+            ctx = connection.connect(LDAPConnection.RW);
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
 
-            int _mode = -1;
-            Attributes _atts = ctx.getAttributes(DN, new String[] { attribute });
-            Attribute _att;
-            if (_atts != null) {
-                _att = _atts.get(attribute);
-                if (_att == null) {
-                    _att = new BasicAttribute(attribute, true);
-                    _mode = DirContext.ADD_ATTRIBUTE;
-                } else {
-                    _mode = DirContext.REPLACE_ATTRIBUTE;
-                }
-            } else {
-                _att = new BasicAttribute(attribute);
-                _mode = DirContext.ADD_ATTRIBUTE;
+            Object[] _values = value instanceof Object[] ? (Object[]) value : new Object[] { value };
+            LDAPSchema _schema = connection.getSchema(ctx);
+            if (_values.length == 1 && _schema != null && _schema.isSingleValued(attribute)) {
+                ctx.modifyAttributes(DN, new ModificationItem[] { new ModificationItem(DirContext.REPLACE_ATTRIBUTE,
+                        new BasicAttribute(attribute, _values[0])) });
+                return;
             }
-            if (value instanceof Object[]) {
-                for (Object o : (Object[]) value) {
-                    if (!_att.contains(o)) {
-                        _att.add(o);
-                    }
-                }
-            } else {
-                if (!_att.contains(value)) {
-                    _att.add(value);
+            Attribute _att = new BasicAttribute(attribute, true);
+            for (Object o : _values) {
+                if (!_att.contains(o) && !LDAPDirectoryReader.compare(connection, ctx, DN, attribute, o)) {
+                    _att.add(o);
                 }
             }
             if (_att.size() > 0) {
-                ctx.modifyAttributes(DN, new ModificationItem[] { new ModificationItem(_mode, _att) });
+                ctx.modifyAttributes(DN,
+                        new ModificationItem[] { new ModificationItem(DirContext.ADD_ATTRIBUTE, _att) });
             }
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "addEntryAttribute() null pointer");
             throw new LDAPException("add entry attribute null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "addEntryAttribute() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
@@ -373,6 +371,7 @@ public class LDAPDirectoryWriter {
      */
     public void addEntryAttributeWithoutCheck(final String DN, final String attribute, final Object value)
             throws LDAPException {
+        DirContext ctx = null;
         try {
             if (DN == null || DN.isEmpty()) {
                 throw new LDAPException("invalid entry DN");
@@ -383,7 +382,7 @@ public class LDAPDirectoryWriter {
             if (value == null) {
                 throw new LDAPException("invalid attribute value");
             }
-            DirContext ctx = connection.connect(LDAPConnection.RW);
+            ctx = connection.connect(LDAPConnection.RW);
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
@@ -409,10 +408,11 @@ public class LDAPDirectoryWriter {
             _log.log(java.util.logging.Level.ALL, "addEntryAttributeWithoutCheck() null pointer");
             throw new LDAPException("add entry attribute null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "addEntryAttributeWithoutCheck() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
@@ -424,8 +424,8 @@ public class LDAPDirectoryWriter {
      * @exception LDAPException
      */
     public void changeEntry(final String oldDN, final String newDN) throws LDAPException {
+        DirContext _ctx = null;
         try {
-            DirContext _ctx = null;
             try {
                 _ctx = connection.connect(LDAPConnection.RW);
             } catch (LDAPException e) {
@@ -439,64 +439,49 @@ public class LDAPDirectoryWriter {
             _log.log(java.util.logging.Level.ALL, "changeEntry() null pointer");
             throw new LDAPException("change entry null pointer");
         } catch (NamingException e) {
+            connection.invalidate(_ctx, e);
             _log.log(java.util.logging.Level.ALL, "changeEntry() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(_ctx);
         }
     }
 
-    private static final boolean compare(final Object _a, final Object _b) {
-        if (_a == null && _b == null) {
+    /*
+     * Compares the values of an entry with the values on the directory, in the same order. The
+     * string values are compared without case unless the equality matching rule of the attribute
+     * on the schema is case sensitive
+     */
+    private static final boolean compare(final LDAPSchema schema, final String attribute, final Object _a,
+            final Object _b) {
+        if (_a == null || _b == null) {
             return false;
         }
-        if (_a.equals(_b)) {
-            return true;
+        boolean _caseIgnore = schema == null || schema.isCaseIgnore(attribute);
+        Object[] _av = _a instanceof Object[] ? (Object[]) _a : new Object[] { _a };
+        Object[] _bv = _b instanceof Object[] ? (Object[]) _b : new Object[] { _b };
+        if (_av.length != _bv.length || _bv.length == 0) {
+            return false;
         }
-        if (_a instanceof Object[] && _b instanceof Object[]) {
-            if (((Object[]) _a).length != ((Object[]) _b).length || ((Object[]) _b).length == 0) {
+        for (int x = 0; x < _bv.length; x++) {
+            if (!compareValue(_av[x], _bv[x], _caseIgnore)) {
                 return false;
             }
-            for (int x = 0; x < ((Object[]) _b).length; x++) {
-                if (((Object[]) _a)[x] instanceof String && ((Object[]) _b)[x] instanceof String) {
-                    if (!(((String) ((Object[]) _a)[x]).equalsIgnoreCase((String) ((Object[]) _b)[x]))) {
-                        return false;
-                    }
-                } else if (!((Object[]) _a)[x].equals(((Object[]) _b)[x])) {
-                    return false;
-                }
-            }
-            return true;
         }
-        if (_a instanceof Object[]) {
-            if (((Object[]) _a).length > 1) {
-                return false;
-            }
-            if (((Object[]) _a)[0] instanceof String && _b instanceof String) {
-                if (((String) ((Object[]) _a)[0]).equalsIgnoreCase((String) _b)) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (((Object[]) _a)[0].equals(_b)) {
-                return true;
-            }
+        return true;
+    }
+
+    private static final boolean compareValue(final Object _a, final Object _b, final boolean caseIgnore) {
+        if (_a == null || _b == null) {
+            return _a == _b;
         }
-        if (_b instanceof Object[]) {
-            if (((Object[]) _b).length > 1) {
-                return false;
-            }
-            if (((Object[]) _b)[0] instanceof String && _a instanceof String) {
-                if (((String) ((Object[]) _b)[0]).equalsIgnoreCase((String) _a)) {
-                    return true;
-                } else {
-                    return false;
-                }
-            } else if (((Object[]) _b)[0].equals(_a)) {
-                return true;
-            }
+        if (_a instanceof byte[] && _b instanceof byte[]) {
+            return Arrays.equals((byte[]) _a, (byte[]) _b);
         }
-        return false;
+        if (caseIgnore && _a instanceof String && _b instanceof String) {
+            return ((String) _a).equalsIgnoreCase((String) _b);
+        }
+        return _a.equals(_b);
     }
 
     private static byte[] encodePasswordForMSAD(final String password) throws java.io.UnsupportedEncodingException {
@@ -505,7 +490,7 @@ public class LDAPDirectoryWriter {
     }
 
     /**
-     * Verify if an entry has an specific attribute value
+     * Verify if an entry has an specific attribute value, using the LDAP compare operation
      * 
      * @param DN
      *            String
@@ -517,6 +502,7 @@ public class LDAPDirectoryWriter {
      */
     public boolean hasEntryAttributeValue(final String DN, final String attribute, final Object value)
             throws LDAPException {
+        DirContext ctx = null;
         try {
             if (DN == null || DN.isEmpty()) {
                 throw new LDAPException("invalid entry DN");
@@ -527,28 +513,21 @@ public class LDAPDirectoryWriter {
             if (value == null) {
                 return false;
             }
-            DirContext ctx = connection.connect(LDAPConnection.RW);
+            ctx = connection.connect(LDAPConnection.RW);
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
 
-            Attributes _atts = ctx.getAttributes(DN, new String[] { attribute });
-            if (_atts == null) {
-                return false;
-            }
-            Attribute _att = _atts.get(attribute);
-            if (_att == null) {
-                return false;
-            }
-            return _att.contains(value);
+            return LDAPDirectoryReader.compare(connection, ctx, DN, attribute, value);
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "hasEntryAttributeValue() null pointer");
             throw new LDAPException("has entry attribute value null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "hasEntryAttributeValue() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
@@ -560,32 +539,38 @@ public class LDAPDirectoryWriter {
      * @exception LDAPException
      */
     public void removeTree(final String DN) throws LDAPException {
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect(LDAPConnection.RW);
+            ctx = connection.connect(LDAPConnection.RW);
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
 
-            NamingEnumeration<NameClassPair> _ne = null;
+            List<String> _children = new ArrayList<String>();
             try {
                 NameParser parser = ctx.getNameParser("");
                 Name _n = parser.parse(scapeSlashes(DN));
-                _ne = ctx.list(_n);
+                NamingEnumeration<NameClassPair> _ne = ctx.list(_n);
+                while (_ne.hasMoreElements()) {
+                    _children.add(_ne.next().getName());
+                }
             } finally {
-                connection.disconnect();
+                /*
+                 * The connection returns to the pool before the recursion
+                 */
+                connection.disconnect(ctx);
+                ctx = null;
             }
 
-            if (_ne != null) {
-                while (_ne.hasMoreElements()) {
-                    NameClassPair _child = _ne.next();
-                    removeTree(_child.getName() + "," + DN);
-                }
+            for (String _child : _children) {
+                removeTree(_child + "," + DN);
             }
             removeEntry(DN);
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "removeTree() null pointer");
             throw new LDAPException("remove tree null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "removeTree() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         }
@@ -599,8 +584,9 @@ public class LDAPDirectoryWriter {
      * @exception LDAPException
      */
     public void removeEntry(final String DN) throws LDAPException {
+        DirContext ctx = null;
         try {
-            DirContext ctx = connection.connect(LDAPConnection.RW);
+            ctx = connection.connect(LDAPConnection.RW);
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
@@ -612,10 +598,11 @@ public class LDAPDirectoryWriter {
             _log.log(java.util.logging.Level.ALL, "removeEntry() null pointer");
             throw new LDAPException("remove entry null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "removeEntry() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
@@ -632,6 +619,7 @@ public class LDAPDirectoryWriter {
      */
     public void removeEntryAttributeValue(final String DN, final String attribute, final Object value)
             throws LDAPException {
+        DirContext ctx = null;
         try {
             if (DN == null || DN.isEmpty()) {
                 throw new LDAPException("invalid entry DN");
@@ -642,34 +630,24 @@ public class LDAPDirectoryWriter {
             if (value == null) {
                 throw new LDAPException("invalid attribute value");
             }
-            DirContext ctx = connection.connect(LDAPConnection.RW);
+            ctx = connection.connect(LDAPConnection.RW);
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
 
-            Attributes _atts = ctx.getAttributes(DN, new String[] { attribute });
-            if (_atts == null) {
-                throw new LDAPException("attribute [" + attribute + "] not found in entry");
-            }
-            Attribute _att = _atts.get(attribute);
-            if (_att == null) {
-                throw new LDAPException("attribute [" + attribute + "] not found in entry");
-            }
-            /*
-             * if(!_att.contains(value)) { throw new LDAPException("attribute [" + attribute +
-             * "] not found in entry"); }
-             */
-
             ctx.modifyAttributes(DN, new ModificationItem[] { new ModificationItem(DirContext.REMOVE_ATTRIBUTE,
                     new BasicAttribute(attribute, value)) });
+        } catch (NoSuchAttributeException e) {
+            throw new LDAPException("attribute [" + attribute + "] not found in entry");
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "removeEntryAttributeValue() null pointer");
             throw new LDAPException("remove entry attribute null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "removeEntryAttributeValue() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
@@ -716,6 +694,7 @@ public class LDAPDirectoryWriter {
      * @exception LDAPException
      */
     public void updateEntryAttribute(final String DN, final String attribute, final Object value) throws LDAPException {
+        DirContext ctx = null;
         try {
             if (DN == null || DN.isEmpty()) {
                 throw new LDAPException("invalid entry DN");
@@ -726,28 +705,16 @@ public class LDAPDirectoryWriter {
             if (value == null) {
                 throw new LDAPException("invalid attribute value");
             }
-            DirContext ctx = connection.connect(LDAPConnection.RW);
+            ctx = connection.connect(LDAPConnection.RW);
             if (ctx == null) {
                 throw new LDAPException("directory service not available");
             }
 
-            int _mode = -1;
-            Attributes _atts = ctx.getAttributes(DN, new String[] { attribute });
-            Attribute _att;
-            if (_atts != null) {
-                _att = _atts.get(attribute);
-                if (_att == null) {
-                    _att = new BasicAttribute(attribute, true);
-                    _mode = DirContext.ADD_ATTRIBUTE;
-                } else {
-                    _mode = DirContext.REPLACE_ATTRIBUTE;
-                }
-            } else {
-                _att = new BasicAttribute(attribute);
-                _mode = DirContext.ADD_ATTRIBUTE;
-            }
-
-            _att = new BasicAttribute(attribute, true);
+            /*
+             * REPLACE creates the attribute when it does not exist, and removes it when there are
+             * no values, so the current values are not read
+             */
+            Attribute _att = new BasicAttribute(attribute, true);
             if (value instanceof Object[]) {
                 for (Object o : (Object[]) value) {
                     if (!_att.contains(o)) {
@@ -759,26 +726,23 @@ public class LDAPDirectoryWriter {
                     _att.add(value);
                 }
             }
-            if (_att.size() > 0) {
-                ctx.modifyAttributes(DN, new ModificationItem[] { new ModificationItem(_mode, _att) });
-            } else {
-                _mode = DirContext.REMOVE_ATTRIBUTE;
-                ctx.modifyAttributes(DN, new ModificationItem[] { new ModificationItem(_mode, _att) });
-            }
+            ctx.modifyAttributes(DN,
+                    new ModificationItem[] { new ModificationItem(DirContext.REPLACE_ATTRIBUTE, _att) });
         } catch (NullPointerException e) {
             _log.log(java.util.logging.Level.ALL, "updateEntryAttribute() null pointer");
             throw new LDAPException("update entry attribute() null pointer");
         } catch (NamingException e) {
+            connection.invalidate(ctx, e);
             _log.log(java.util.logging.Level.ALL, "updateEntryAttribute() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(ctx);
         }
     }
 
     private void updateEntryLDAPv3(final LDAPDirectoryEntry entry) throws LDAPException {
+        DirContext _ctx = null;
         try {
-            DirContext _ctx = null;
             if (entry != null && entry.getAttribute("modifytimestamp") != null) {
                 entry.removeAttribute("modifytimestamp");
             }
@@ -795,6 +759,7 @@ public class LDAPDirectoryWriter {
             NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) attrs.getAll();
             Map<String, Object[]> hma = entry.getAttributes();
             List<ModificationItem> _mods = new ArrayList<ModificationItem>();
+            LDAPSchema _schema = connection.getSchema(_ctx);
             while (ne.hasMore()) {
                 Attribute att = ne.next();
                 if (hma.containsKey(att.getID().toLowerCase())) {
@@ -807,7 +772,7 @@ public class LDAPDirectoryWriter {
                         _actualValues[x] = att.get(x);
                     }
                     Object[] _value = hma.get(att.getID().toLowerCase());
-                    if (compare(_value, _actualValues) && !"gidnumber".equals(att.getID().toLowerCase())) {
+                    if (compare(_schema, att.getID(), _value, _actualValues) && !"gidnumber".equals(att.getID().toLowerCase())) {
                         hma.remove(att.getID().toLowerCase());
                         continue;
                     }
@@ -844,16 +809,17 @@ public class LDAPDirectoryWriter {
             _log.log(java.util.logging.Level.ALL, "updateEntryLDAPv3() null pointer");
             throw new LDAPException("update entry null pointer");
         } catch (NamingException e) {
+            connection.invalidate(_ctx, e);
             _log.log(java.util.logging.Level.ALL, "updateEntryLDAPv3() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(_ctx);
         }
     }
 
     private void updateEntryMSAD(final LDAPDirectoryEntry entry) throws LDAPException {
+        DirContext _ctx = null;
         try {
-            DirContext _ctx = null;
             try {
                 _ctx = connection.connect(LDAPConnection.RW);
             } catch (LDAPException e) {
@@ -867,19 +833,23 @@ public class LDAPDirectoryWriter {
             NamingEnumeration<Attribute> ne = (NamingEnumeration<Attribute>) attrs.getAll();
             Map<String, Object[]> hma = entry.getAttributes();
             List<ModificationItem> _mods = new ArrayList<ModificationItem>();
+            LDAPSchema _schema = connection.getSchema(_ctx);
             while (ne.hasMore()) {
                 Attribute att = ne.next();
                 if (hma.containsKey(att.getID().toLowerCase())) {
                     if (MSAD_ATTRIBUTES.contains(att.getID().toLowerCase())) {
                         Object[] _value = hma.remove(att.getID().toLowerCase());
-                        if (!compare(_value, att.get())) {
+                        Object[] _actualValues = new Object[att.size()];
+                        for (int x = 0; x < att.size(); x++) {
+                            _actualValues[x] = att.get(x);
+                        }
+                        if (_value.length > 1 && isSingleValued(_schema, att.getID())) {
+                            _value = new Object[] { _value[0] };
+                        }
+                        if (!compare(_schema, att.getID(), _value, _actualValues)) {
                             BasicAttribute ba = new BasicAttribute(att.getID());
-                            if ("telephonenumber".equals(att.getID().toLowerCase())) {
-                                ba.add((_value[0] == "" || "null".equals(_value[0])) ? " " : _value[0]);
-                            } else {
-                                for (int j = 0; j < _value.length; j++) {
-                                    ba.add((_value[j] == "" || "null".equals(_value[j])) ? " " : _value[j]);
-                                }
+                            for (int j = 0; j < _value.length; j++) {
+                                ba.add((_value[j] == "" || "null".equals(_value[j])) ? " " : _value[j]);
                             }
                             _mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, ba));
                         }
@@ -912,7 +882,7 @@ public class LDAPDirectoryWriter {
 
                 BasicAttribute att = new BasicAttribute(name);
                 if (MSAD_ATTRIBUTES.contains(att.getID().toLowerCase())) {
-                    if ("telephonenumber".equals(att.getID().toLowerCase())) {
+                    if (isSingleValued(_schema, name)) {
                         att.add(hma.get(name)[0]);
                     } else {
                         for (Object o : hma.get(name)) {
@@ -929,11 +899,23 @@ public class LDAPDirectoryWriter {
             _log.log(java.util.logging.Level.ALL, "updateEntryMSAD() null pointer");
             throw new LDAPException("update entry null pointer");
         } catch (NamingException e) {
+            connection.invalidate(_ctx, e);
             _log.log(java.util.logging.Level.ALL, "updateEntryMSAD() - " + e.getMessage());
             throw new LDAPException(e.getMessage());
         } finally {
-            connection.disconnect();
+            connection.disconnect(_ctx);
+        }
+    }
+
+    /*
+     * Single valued attributes on the schema of the server. Without schema, only
+     * telephoneNumber is handled as single valued, as Microsoft Active Directory defines it
+     */
+    private static final boolean isSingleValued(final LDAPSchema schema, final String attribute) {
+        if (schema == null || !schema.hasAttribute(attribute)) {
+            return "telephonenumber".equals(attribute.toLowerCase());
         }
+        return schema.isSingleValued(attribute);
     }
 
     private static final String scapeSlashes(final String text) {
@@ -0,0 +1,113 @@
+/*
+ * LDAPEntryChangeControl class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * Entry change notification control (draft-ietf-ldapext-psearch). Sent by the server with every
+ * entry of a persistent search, contains the type of change and the previous name of renamed
+ * entries
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPEntryChangeControl extends BasicControl {
+    private static final long serialVersionUID = 2674019837265019462L;
+    public static final String OID = "2.16.840.1.113730.3.4.7";
+    private final int changeType;
+    private final String previousDN;
+    private final long changeNumber;
+
+    /**
+     * LDAPEntryChangeControl constructor
+     *
+     * @param control
+     *            Response control received with the <code>OID</code> of this control
+     * @exception IOException
+     */
+    public LDAPEntryChangeControl(final Control control) throws IOException {
+        super(OID, control.isCritical(), control.getEncodedValue());
+        int[] _position = new int[] { 0 };
+        int _end = LDAPBERCodec.readSequence(value, _position);
+        changeType = (int) LDAPBERCodec.readInteger(value, _position, LDAPBERCodec.ENUMERATED);
+        if (LDAPBERCodec.hasElement(value, _position, _end, LDAPBERCodec.OCTET_STRING)) {
+            previousDN = new String(LDAPBERCodec.readContent(value, _position, LDAPBERCodec.OCTET_STRING), "UTF-8");
+        } else {
+            previousDN = null;
+        }
+        if (LDAPBERCodec.hasElement(value, _position, _end, LDAPBERCodec.INTEGER)) {
+            changeNumber = LDAPBERCodec.readInteger(value, _position, LDAPBERCodec.INTEGER);
+        } else {
+            changeNumber = -1;
+        }
+    }
+
+    /**
+     * Returns the first control of the response with the <code>OID</code> of this control, or
+     * <code>null</code>
+     *
+     * @param controls
+     *            Response controls
+     * @return LDAPEntryChangeControl
+     * @exception IOException
+     */
+    public static LDAPEntryChangeControl getInstance(final Control[] controls) throws IOException {
+        if (controls == null) {
+            return null;
+        }
+        for (Control _c : controls) {
+            if (_c instanceof LDAPEntryChangeControl) {
+                return (LDAPEntryChangeControl) _c;
+            } else if (OID.equals(_c.getID())) {
+                return new LDAPEntryChangeControl(_c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the change number of the server, or <code>-1</code> if the server does not send it
+     *
+     * @return long
+     */
+    public long getChangeNumber() {
+        return changeNumber;
+    }
+
+    /**
+     * Returns the type of change, <code>LDAPPersistentSearchControl.ADD</code>,
+     * <code>DELETE</code>, <code>MODIFY</code> or <code>MODDN</code>
+     *
+     * @return int
+     */
+    public int getChangeType() {
+        return changeType;
+    }
+
+    /**
+     * Returns the previous Distinguished Name of a renamed entry, or <code>null</code>
+     *
+     * @return String
+     */
+    public String getPreviousDN() {
+        return previousDN;
+    }
+}
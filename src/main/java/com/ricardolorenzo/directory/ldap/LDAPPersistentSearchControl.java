@@ -0,0 +1,66 @@
+/*
+ * LDAPPersistentSearchControl class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * Persistent search request control (draft-ietf-ldapext-psearch). The search is kept open and
+ * the server sends the entries when they change
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPPersistentSearchControl extends BasicControl {
+    private static final long serialVersionUID = -4519283754096512387L;
+    public static final String OID = "2.16.840.1.113730.3.4.3";
+    public static final int ADD = 1;
+    public static final int DELETE = 2;
+    public static final int MODIFY = 4;
+    public static final int MODDN = 8;
+    public static final int ANY = ADD | DELETE | MODIFY | MODDN;
+
+    /**
+     * LDAPPersistentSearchControl constructor
+     *
+     * @param changeTypes
+     *            Types of changes to receive, <code>ADD</code>, <code>DELETE</code>,
+     *            <code>MODIFY</code> and <code>MODDN</code> combined
+     * @param changesOnly
+     *            <code>false</code> to receive also the entries that match the search when it
+     *            starts
+     * @param returnECs
+     *            <code>true</code> to receive an entry change notification control with every
+     *            entry
+     * @param criticality
+     *            boolean
+     */
+    public LDAPPersistentSearchControl(final int changeTypes, final boolean changesOnly, final boolean returnECs,
+            final boolean criticality) {
+        super(OID, criticality, encode(changeTypes, changesOnly, returnECs));
+    }
+
+    private static byte[] encode(final int changeTypes, final boolean changesOnly, final boolean returnECs) {
+        ByteArrayOutputStream _value = new ByteArrayOutputStream();
+        LDAPBERCodec.writeInteger(_value, LDAPBERCodec.INTEGER, changeTypes);
+        LDAPBERCodec.writeBoolean(_value, changesOnly);
+        LDAPBERCodec.writeBoolean(_value, returnECs);
+        return LDAPBERCodec.sequence(_value);
+    }
+}
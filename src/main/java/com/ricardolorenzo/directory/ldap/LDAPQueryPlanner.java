@@ -0,0 +1,196 @@
+/*
+ * LDAPQueryPlanner class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Normalizes the conditions of a <code>LDAPDirectoryQuery</code> before the filter is generated.
+ * Nested groups with a single condition or with the same type of their parent are flattened,
+ * repeated conditions and conditions that match every entry (<code>objectClass=*</code>) are
+ * removed, and the conditions of every group are ordered so the selective equality terms come
+ * first and the substring and negated terms come last. Servers without a good filter optimizer
+ * evaluate the conditions in the order they are received.
+ *
+ * The planned query is a new object, the original query is not modified.
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public final class LDAPQueryPlanner {
+    private static final Comparator<Object> CONDITION_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(final Object o1, final Object o2) {
+            return getRank(o1) - getRank(o2);
+        }
+    };
+
+    private LDAPQueryPlanner() {
+    }
+
+    /**
+     * Returns the final filter of a query, as it is sent to the directory server.
+     * <code>BRANCH</code> conditions are not part of the filter
+     *
+     * @param q
+     *            LDAPDirectoryQuery
+     * @return String
+     * @exception LDAPException
+     */
+    public static String getFilter(final LDAPDirectoryQuery q) throws LDAPException {
+        String _filter = LDAPDirectoryReader.getQueryFilter(plan(q));
+        if (_filter.isEmpty()) {
+            return "(objectClass=*)";
+        }
+        return _filter;
+    }
+
+    /**
+     * Returns a normalized copy of a query. A planned group without conditions matches every
+     * entry
+     *
+     * @param q
+     *            LDAPDirectoryQuery
+     * @return LDAPDirectoryQuery
+     */
+    public static LDAPDirectoryQuery plan(final LDAPDirectoryQuery q) {
+        List<Object> _conditions = new ArrayList<Object>();
+        Set<String> _keys = new HashSet<String>();
+        for (Object _o : q.getConditions()) {
+            if (_o instanceof LDAPDirectoryQuery) {
+                LDAPDirectoryQuery _child = plan((LDAPDirectoryQuery) _o);
+                List<Object> _childConditions = _child.getConditions();
+                if (_childConditions.isEmpty()) {
+                    if (q.getType() == LDAPDirectoryQuery.OR) {
+                        return new LDAPDirectoryQuery(q, new ArrayList<Object>());
+                    }
+                } else if (_childConditions.size() == 1 || _child.getType() == q.getType()) {
+                    for (Object _c : _childConditions) {
+                        addCondition(_conditions, _keys, _c);
+                    }
+                } else {
+                    addCondition(_conditions, _keys, _child);
+                }
+            } else if (_o instanceof Object[]) {
+                Object[] _condition = (Object[]) _o;
+                if (isTautology(_condition)) {
+                    if (q.getType() == LDAPDirectoryQuery.OR) {
+                        return new LDAPDirectoryQuery(q, new ArrayList<Object>());
+                    }
+                } else {
+                    addCondition(_conditions, _keys, _condition);
+                }
+            }
+        }
+        Collections.sort(_conditions, CONDITION_ORDER);
+        return new LDAPDirectoryQuery(q, _conditions);
+    }
+
+    private static void addCondition(final List<Object> conditions, final Set<String> keys, final Object condition) {
+        String _key = getKey(condition);
+        if (_key == null || keys.add(_key)) {
+            conditions.add(condition);
+        }
+    }
+
+    /*
+     * Key used to find repeated conditions, or null when the condition must be kept
+     */
+    private static String getKey(final Object o) {
+        if (o instanceof LDAPDirectoryQuery) {
+            LDAPDirectoryQuery _q = (LDAPDirectoryQuery) o;
+            StringBuilder _sb = new StringBuilder();
+            _sb.append(_q.getType() == LDAPDirectoryQuery.OR ? "(|" : "(&");
+            for (Object _c : _q.getConditions()) {
+                String _key = getKey(_c);
+                if (_key == null) {
+                    return null;
+                }
+                _sb.append(_key);
+            }
+            _sb.append(")");
+            return _sb.toString();
+        }
+        Object[] _condition = (Object[]) o;
+        int _type = ((Integer) _condition[0]).intValue();
+        if (_type == LDAPDirectoryQuery.BRANCH || _condition[2] == LDAPDirectoryQuery.ARGUMENT
+                || !(_condition[2] instanceof String)) {
+            return null;
+        }
+        StringBuilder _sb = new StringBuilder();
+        _sb.append("(");
+        _sb.append(_type);
+        _sb.append(":");
+        _sb.append(String.valueOf(_condition[1]).toLowerCase());
+        _sb.append("=");
+        _sb.append(_condition[2]);
+        _sb.append(")");
+        return _sb.toString();
+    }
+
+    /*
+     * Lower ranks are evaluated first. BRANCH conditions keep their relative order at the
+     * beginning, because every branch is resolved under the previous one
+     */
+    private static int getRank(final Object o) {
+        if (o instanceof LDAPDirectoryQuery) {
+            return 6;
+        }
+        Object[] _condition = (Object[]) o;
+        if ("*".equals(_condition[2])) {
+            return 6;
+        }
+        switch (((Integer) _condition[0]).intValue()) {
+            case LDAPDirectoryQuery.BRANCH:
+                return 0;
+            case LDAPDirectoryQuery.EXACT:
+                if ("objectclass".equalsIgnoreCase(String.valueOf(_condition[1]))) {
+                    return 2;
+                }
+                return 1;
+            case LDAPDirectoryQuery.GREATER:
+            case LDAPDirectoryQuery.LOWER:
+                return 3;
+            case LDAPDirectoryQuery.STARTS_WITH:
+                return 4;
+            case LDAPDirectoryQuery.APPROXIMATE:
+                return 5;
+            case LDAPDirectoryQuery.ENDS_WITH:
+            case LDAPDirectoryQuery.CONTAINS:
+                return 7;
+            default:
+                return 8;
+        }
+    }
+
+    private static boolean isTautology(final Object[] condition) {
+        switch (((Integer) condition[0]).intValue()) {
+            case LDAPDirectoryQuery.EXACT:
+            case LDAPDirectoryQuery.STARTS_WITH:
+            case LDAPDirectoryQuery.ENDS_WITH:
+            case LDAPDirectoryQuery.CONTAINS:
+                return "*".equals(condition[2]) && "objectclass".equalsIgnoreCase(String.valueOf(condition[1]));
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * LDAPSchema class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+
+/**
+ * Attribute types of the subschema subentry of a directory server (RFC 4512). It is read once per
+ * server and tells which attributes have binary values, which ones are single valued and which
+ * equality matching rule they use
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPSchema {
+    /**
+     * Binary attributes used when the schema of the server is not available
+     */
+    public static final String DEFAULT_BINARY_ATTRIBUTES = "jpegPhoto userCertificate userSMIMECertificate userPKCS12 cACertificate";
+    private static final Set<String> BINARY_SYNTAXES = new HashSet<String>(Arrays.asList(
+            "1.3.6.1.4.1.1466.115.121.1.4", "1.3.6.1.4.1.1466.115.121.1.5", "1.3.6.1.4.1.1466.115.121.1.8",
+            "1.3.6.1.4.1.1466.115.121.1.9", "1.3.6.1.4.1.1466.115.121.1.10", "1.3.6.1.4.1.1466.115.121.1.23",
+            "1.3.6.1.4.1.1466.115.121.1.28", "1.3.6.1.4.1.1466.115.121.1.40", "1.3.6.1.4.1.1466.115.121.1.49",
+            "1.2.840.113556.1.4.907"));
+    private static final Set<String> CASE_IGNORE_RULES = new HashSet<String>(Arrays.asList("2.5.13.1",
+            "distinguishednamematch", "2.5.13.2", "caseignorematch", "2.5.13.3", "caseignoreorderingmatch",
+            "2.5.13.4", "caseignoresubstringsmatch", "2.5.13.11", "caseignorelistmatch", "2.5.13.12",
+            "caseignorelistsubstringsmatch", "1.3.6.1.4.1.1466.109.114.2", "caseignoreia5match",
+            "1.3.6.1.4.1.1466.109.114.3", "caseignoreia5substringsmatch"));
+    private final Map<String, AttributeType> types;
+    private final String binaryAttributes;
+
+    private static final class AttributeType {
+        private final List<String> names = new ArrayList<String>();
+        private String oid;
+        private String superior;
+        private String equality;
+        private String syntax;
+        private boolean singleValue;
+    }
+
+    private LDAPSchema(final Map<String, AttributeType> types) {
+        this.types = types;
+        Set<String> _binary = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        _binary.addAll(Arrays.asList(DEFAULT_BINARY_ATTRIBUTES.split(" ")));
+        for (AttributeType _type : new HashSet<AttributeType>(types.values())) {
+            if (_type.syntax != null && BINARY_SYNTAXES.contains(_type.syntax) && !_type.names.isEmpty()) {
+                _binary.add(_type.names.get(0));
+            }
+        }
+        StringBuilder _sb = new StringBuilder();
+        for (String _name : _binary) {
+            if (_sb.length() > 0) {
+                _sb.append(" ");
+            }
+            _sb.append(_name);
+        }
+        this.binaryAttributes = _sb.toString();
+    }
+
+    /**
+     * Reads the attribute types of the subschema subentry published by the server
+     *
+     * @param ctx
+     *            DirContext
+     * @return LDAPSchema
+     * @exception NamingException
+     */
+    public static LDAPSchema read(final DirContext ctx) throws NamingException {
+        Attribute _subentry = ctx.getAttributes("", new String[] { "subschemaSubentry" }).get("subschemaSubentry");
+        if (_subentry == null || _subentry.size() == 0) {
+            throw new NamingException("subschema subentry not published by the server");
+        }
+        Attributes _schema = ctx.getAttributes(String.valueOf(_subentry.get()), new String[] { "attributeTypes" });
+        List<String> _descriptions = new ArrayList<String>();
+        Attribute _types = _schema.get("attributeTypes");
+        if (_types != null) {
+            NamingEnumeration<?> _values = _types.getAll();
+            while (_values.hasMore()) {
+                _descriptions.add(String.valueOf(_values.next()));
+            }
+        }
+        return parse(_descriptions);
+    }
+
+    /**
+     * Builds the schema from attribute type descriptions, like
+     * <code>( 2.5.4.3 NAME ( 'cn' 'commonName' ) SUP name )</code>
+     *
+     * @param descriptions
+     *            Values of the <code>attributeTypes</code> attribute
+     * @return LDAPSchema
+     */
+    public static LDAPSchema parse(final List<String> descriptions) {
+        Map<String, AttributeType> _types = new HashMap<String, AttributeType>();
+        for (String _description : descriptions) {
+            AttributeType _type = parseAttributeType(_description);
+            if (_type == null) {
+                continue;
+            }
+            _types.put(_type.oid.toLowerCase(), _type);
+            for (String _name : _type.names) {
+                _types.put(_name.toLowerCase(), _type);
+            }
+        }
+        for (AttributeType _type : new HashSet<AttributeType>(_types.values())) {
+            Set<AttributeType> _visited = new HashSet<AttributeType>();
+            for (AttributeType _s = _types.get(lower(_type.superior)); _s != null && _visited.add(_s); _s = _types
+                    .get(lower(_s.superior))) {
+                if (_type.syntax == null) {
+                    _type.syntax = _s.syntax;
+                }
+                if (_type.equality == null) {
+                    _type.equality = _s.equality;
+                }
+            }
+        }
+        return new LDAPSchema(Collections.unmodifiableMap(_types));
+    }
+
+    private static String lower(final String value) {
+        return value == null ? null : value.toLowerCase();
+    }
+
+    private static AttributeType parseAttributeType(final String description) {
+        List<String> _tokens = tokenize(description);
+        if (_tokens.size() < 3 || !"(".equals(_tokens.get(0))) {
+            return null;
+        }
+        AttributeType _type = new AttributeType();
+        _type.oid = _tokens.get(1);
+        for (int i = 2; i < _tokens.size(); i++) {
+            String _token = _tokens.get(i);
+            if ("SINGLE-VALUE".equals(_token)) {
+                _type.singleValue = true;
+            } else if ("NAME".equals(_token) || "SUP".equals(_token) || "EQUALITY".equals(_token)
+                    || "SYNTAX".equals(_token) || "DESC".equals(_token) || "ORDERING".equals(_token)
+                    || "SUBSTR".equals(_token) || "USAGE".equals(_token) || _token.startsWith("X-")) {
+                List<String> _values = new ArrayList<String>();
+                i = readValues(_tokens, i + 1, _values);
+                if (_values.isEmpty()) {
+                    continue;
+                }
+                if ("NAME".equals(_token)) {
+                    _type.names.addAll(_values);
+                } else if ("SUP".equals(_token)) {
+                    _type.superior = _values.get(0);
+                } else if ("EQUALITY".equals(_token)) {
+                    _type.equality = _values.get(0);
+                } else if ("SYNTAX".equals(_token)) {
+                    String _syntax = _values.get(0);
+                    if (_syntax.indexOf('{') != -1) {
+                        _syntax = _syntax.substring(0, _syntax.indexOf('{'));
+                    }
+                    _type.syntax = _syntax;
+                }
+            }
+        }
+        return _type;
+    }
+
+    /*
+     * Reads a single value or a list of values between parentheses, returns the position of the
+     * last token read
+     */
+    private static int readValues(final List<String> tokens, final int position, final List<String> values) {
+        if (position >= tokens.size()) {
+            return position;
+        }
+        if (!"(".equals(tokens.get(position))) {
+            values.add(tokens.get(position));
+            return position;
+        }
+        int i = position + 1;
+        for (; i < tokens.size() && !")".equals(tokens.get(i)); i++) {
+            if (!"$".equals(tokens.get(i))) {
+                values.add(tokens.get(i));
+            }
+        }
+        return i;
+    }
+
+    private static List<String> tokenize(final String description) {
+        List<String> _tokens = new ArrayList<String>();
+        int _length = description.length();
+        for (int i = 0; i < _length; i++) {
+            char _c = description.charAt(i);
+            if (Character.isWhitespace(_c)) {
+                continue;
+            } else if (_c == '(' || _c == ')') {
+                _tokens.add(String.valueOf(_c));
+            } else if (_c == '\'') {
+                int _end = description.indexOf('\'', i + 1);
+                if (_end == -1) {
+                    _end = _length;
+                }
+                _tokens.add(description.substring(i + 1, _end));
+                i = _end;
+            } else {
+                int _end = i;
+                while (_end < _length && !Character.isWhitespace(description.charAt(_end))
+                        && description.charAt(_end) != '(' && description.charAt(_end) != ')') {
+                    _end++;
+                }
+                _tokens.add(description.substring(i, _end));
+                i = _end - 1;
+            }
+        }
+        return _tokens;
+    }
+
+    /**
+     * Returns the names of the binary attributes separated by spaces, as expected by the
+     * <code>java.naming.ldap.attributes.binary</code> property
+     *
+     * @return String
+     */
+    public String getBinaryAttributes() {
+        return this.binaryAttributes;
+    }
+
+    /**
+     * Returns the equality matching rule of an attribute, or <code>null</code> if the attribute
+     * has none or it is not defined
+     *
+     * @param attribute
+     *            Name or OID of the attribute
+     * @return String
+     */
+    public String getEqualityRule(final String attribute) {
+        AttributeType _type = this.types.get(lower(attribute));
+        if (_type == null) {
+            return null;
+        }
+        return _type.equality;
+    }
+
+    /**
+     * Verify if an attribute is defined on the schema
+     *
+     * @param attribute
+     *            Name or OID of the attribute
+     * @return boolean
+     */
+    public boolean hasAttribute(final String attribute) {
+        return attribute != null && this.types.containsKey(attribute.toLowerCase());
+    }
+
+    /**
+     * Verify if the values of an attribute are binary
+     *
+     * @param attribute
+     *            Name or OID of the attribute
+     * @return boolean
+     */
+    public boolean isBinary(final String attribute) {
+        AttributeType _type = this.types.get(lower(attribute));
+        return _type != null && _type.syntax != null && BINARY_SYNTAXES.contains(_type.syntax);
+    }
+
+    /**
+     * Verify if the values of an attribute are compared without case. Attributes without a known
+     * equality matching rule are compared without case
+     *
+     * @param attribute
+     *            Name or OID of the attribute
+     * @return boolean
+     */
+    public boolean isCaseIgnore(final String attribute) {
+        String _rule = getEqualityRule(attribute);
+        if (_rule == null) {
+            return !isBinary(attribute);
+        }
+        return CASE_IGNORE_RULES.contains(_rule.toLowerCase());
+    }
+
+    /**
+     * Verify if an attribute can have only one value
+     *
+     * @param attribute
+     *            Name or OID of the attribute
+     * @return boolean
+     */
+    public boolean isSingleValued(final String attribute) {
+        AttributeType _type = this.types.get(lower(attribute));
+        return _type != null && _type.singleValue;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * LDAPSearchHandler interface
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import com.ricardolorenzo.identity.Identity;
+
+/**
+ * Receives the entries of a streaming search, one by one, while the search is still running
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public interface LDAPSearchHandler {
+    /**
+     * Process one entry of the search results
+     *
+     * @param identity
+     *            Identity
+     * @return boolean <code>false</code> to stop the search
+     * @exception LDAPException
+     */
+    public boolean handle(Identity identity) throws LDAPException;
+}
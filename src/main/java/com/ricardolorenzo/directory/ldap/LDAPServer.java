@@ -0,0 +1,394 @@
+/*
+ * LDAPServer class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.ldap.LdapContext;
+
+/**
+ * One directory server (or replica) used by an <code>LDAPConnection</code>. Keeps its own read
+ * only and read-write pools, the number of requests in progress and an exponentially weighted
+ * moving average of the time needed by the requests
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPServer {
+    public static final double EWMA_WEIGHT = 0.2;
+    public static final long DEFAULT_RETRY_INTERVAL = 30000L;
+    private final String host;
+    private final int port;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Map<LdapContext, Borrowed> borrowed = new ConcurrentHashMap<LdapContext, Borrowed>();
+    private volatile LDAPConnectionPool roPool;
+    private volatile LDAPConnectionPool rwPool;
+    private final AtomicLong latency = new AtomicLong(Double.doubleToLongBits(0));
+    private volatile long downUntil = 0;
+    private volatile LDAPSchema schema;
+    private volatile String dnsHostName;
+
+    private static final class Borrowed {
+        private final LDAPConnectionPool pool;
+
+        private Borrowed(final LDAPConnectionPool pool) {
+            this.pool = pool;
+        }
+    }
+
+    /**
+     * LDAPServer constructor
+     *
+     * @param connection
+     *            LDAPConnection that owns the server
+     * @param host
+     *            Server name or address
+     * @param port
+     *            Server port, <code>0</code> to use the port of the connection
+     */
+    protected LDAPServer(final LDAPConnection connection, final String host, final int port) {
+        this.host = host;
+        this.port = port;
+        this.roPool = new LDAPConnectionPool(connection, this, LDAPConnection.RO, LDAPConnectionPool.DEFAULT_SIZE);
+        this.rwPool = new LDAPConnectionPool(connection, this, LDAPConnection.RW, LDAPConnectionPool.DEFAULT_SIZE);
+    }
+
+    /**
+     * Parse a server definition like <code>host</code> or <code>host:port</code>
+     *
+     * @param connection
+     *            LDAPConnection that owns the server
+     * @param definition
+     *            String
+     * @return LDAPServer
+     * @exception LDAPException
+     */
+    protected static LDAPServer parse(final LDAPConnection connection, final String definition)
+            throws LDAPException {
+        String _definition = definition.trim();
+        int _port = 0;
+        int _index = _definition.lastIndexOf(':');
+        if (_index > 0 && _definition.indexOf(']') < _index) {
+            try {
+                _port = Integer.parseInt(_definition.substring(_index + 1));
+            } catch (NumberFormatException e) {
+                throw new LDAPException("invalid server port [" + definition + "]");
+            }
+            _definition = _definition.substring(0, _index);
+        }
+        if (_definition.isEmpty()) {
+            throw new LDAPException("invalid server [" + definition + "]");
+        }
+        return new LDAPServer(connection, _definition, _port);
+    }
+
+    /**
+     * Borrows a context from the pool of this server
+     *
+     * @param type
+     *            <code>LDAPConnection.RO</code> or <code>LDAPConnection.RW</code>
+     * @return LdapContext
+     * @exception LDAPException
+     */
+    protected LdapContext borrow(final int type) throws LDAPException {
+        LDAPConnectionPool _pool = getPool(type);
+        LdapContext _ctx = _pool.borrow();
+        borrowed.put(_ctx, new Borrowed(_pool));
+        outstanding.incrementAndGet();
+        return _ctx;
+    }
+
+    /**
+     * Verify if a context was borrowed from this server
+     *
+     * @param ctx
+     *            LdapContext
+     * @return boolean
+     */
+    protected boolean contains(final LdapContext ctx) {
+        return ctx != null && borrowed.containsKey(ctx);
+    }
+
+    /**
+     * Returns a context to the pool of this server
+     *
+     * @param ctx
+     *            LdapContext
+     */
+    protected void release(final LdapContext ctx) {
+        Borrowed _b = borrowed.remove(ctx);
+        if (_b == null) {
+            return;
+        }
+        outstanding.decrementAndGet();
+        _b.pool.release(ctx);
+    }
+
+    /**
+     * Discards a context after a communication error and opens a new one in its place. The server
+     * is marked as not available only if the new context can not be created, a single dropped
+     * connection does not make the server unavailable
+     *
+     * @param ctx
+     *            LdapContext
+     */
+    protected void invalidate(final LdapContext ctx) {
+        Borrowed _b = borrowed.remove(ctx);
+        if (_b == null) {
+            return;
+        }
+        outstanding.decrementAndGet();
+        try {
+            _b.pool.replace(ctx);
+        } catch (LDAPException e) {
+            markDown();
+        }
+    }
+
+    /**
+     * Closes a context instead of returning it to the pool, the server stays available. Returns
+     * <code>false</code> if the context was not borrowed from this server
+     *
+     * @param ctx
+     *            LdapContext
+     * @return boolean
+     */
+    protected boolean discard(final LdapContext ctx) {
+        Borrowed _b = borrowed.remove(ctx);
+        if (_b == null) {
+            return false;
+        }
+        outstanding.decrementAndGet();
+        _b.pool.invalidate(ctx);
+        return true;
+    }
+
+    /**
+     * Updates the latency average with the time of one request. Only the time the server needs
+     * to answer must be recorded, not the time the caller keeps the context
+     *
+     * @param nanoseconds
+     *            long
+     */
+    protected void recordLatency(final long nanoseconds) {
+        double _ms = nanoseconds / 1000000D;
+        long _current;
+        double _latency;
+        do {
+            _current = latency.get();
+            _latency = Double.longBitsToDouble(_current);
+            if (_latency == 0) {
+                _latency = _ms;
+            } else {
+                _latency = (EWMA_WEIGHT * _ms) + ((1 - EWMA_WEIGHT) * _latency);
+            }
+        } while (!latency.compareAndSet(_current, Double.doubleToLongBits(_latency)));
+    }
+
+    /**
+     * Clears the pools of the server, used when the connection parameters change
+     */
+    protected void clear() {
+        roPool.clear();
+        rwPool.clear();
+    }
+
+    /**
+     * Closes the pools of the server
+     */
+    protected void close() {
+        roPool.close();
+        rwPool.close();
+    }
+
+    /**
+     * Returns the host name reported by the server on the rootDSE (<code>dnsHostName</code>), or
+     * <code>null</code> if it is not read yet
+     *
+     * @return String
+     */
+    public String getDnsHostName() {
+        return dnsHostName;
+    }
+
+    /**
+     * Returns the server name or address
+     *
+     * @return String
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns the average time of the requests in milliseconds
+     *
+     * @return double
+     */
+    public double getLatency() {
+        return Double.longBitsToDouble(latency.get());
+    }
+
+    /**
+     * Returns the number of requests in progress
+     *
+     * @return int
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Returns the connection pool for the type of connection
+     *
+     * <code>LDAPConnection.RO</code> <code>LDAPConnection.RW</code>
+     *
+     * @param type
+     *            int
+     * @return LDAPConnectionPool
+     */
+    public LDAPConnectionPool getPool(final int type) {
+        if (type == LDAPConnection.RW) {
+            return rwPool;
+        }
+        return roPool;
+    }
+
+    /**
+     * Returns the server port, <code>0</code> if the server uses the port of the connection
+     *
+     * @return int
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the schema read from the server, or <code>null</code> if it is not read yet
+     *
+     * @return LDAPSchema
+     */
+    public LDAPSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Returns the score used to select a server for reads. Lower is better
+     *
+     * @return double
+     */
+    public double getScore() {
+        return (getLatency() + 1) * (outstanding.get() + 1);
+    }
+
+    /**
+     * Verify if the server is available, it is not if some request failed with a communication
+     * error in the last <code>DEFAULT_RETRY_INTERVAL</code> milliseconds
+     *
+     * @return boolean
+     */
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= downUntil;
+    }
+
+    /**
+     * Marks the server as not available during <code>DEFAULT_RETRY_INTERVAL</code> milliseconds
+     */
+    protected void markDown() {
+        downUntil = System.currentTimeMillis() + DEFAULT_RETRY_INTERVAL;
+        roPool.clear();
+        rwPool.clear();
+    }
+
+    /**
+     * Marks the server as available
+     */
+    protected void markUp() {
+        downUntil = 0;
+    }
+
+    /**
+     * Verify if the server is known by a host name, the one of the server definition or the one
+     * reported by the server
+     *
+     * @param name
+     *            String
+     * @return boolean
+     */
+    public boolean isNamed(final String name) {
+        return name != null && (name.equalsIgnoreCase(host) || name.equalsIgnoreCase(dnsHostName));
+    }
+
+    /**
+     * Defines the host name reported by the server on the rootDSE
+     *
+     * @param name
+     *            String
+     */
+    protected void setDnsHostName(final String name) {
+        this.dnsHostName = name;
+    }
+
+    /**
+     * Replaces the pool for a type of connection
+     *
+     * @param pool
+     *            LDAPConnectionPool
+     */
+    protected void setPool(final LDAPConnectionPool pool) {
+        LDAPConnectionPool _old;
+        if (pool.getType() == LDAPConnection.RW) {
+            _old = rwPool;
+            rwPool = pool;
+        } else {
+            _old = roPool;
+            roPool = pool;
+        }
+        _old.close();
+    }
+
+    /**
+     * Defines the schema read from the server
+     *
+     * @param schema
+     *            LDAPSchema
+     */
+    protected void setSchema(final LDAPSchema schema) {
+        this.schema = schema;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder _sb = new StringBuilder();
+        _sb.append(host);
+        if (port > 0) {
+            _sb.append(":");
+            _sb.append(port);
+        }
+        _sb.append(" [latency=");
+        _sb.append(String.format("%.2f", getLatency()));
+        _sb.append(" ms, outstanding=");
+        _sb.append(outstanding.get());
+        _sb.append(", available=");
+        _sb.append(isAvailable());
+        _sb.append("]");
+        return _sb.toString();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * LDAPSortedPage class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.ricardolorenzo.identity.Identity;
+
+/**
+ * One window of a sorted search, with the position of the window and the number of entries of the
+ * whole result set
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPSortedPage {
+    private final List<Identity> entries;
+    private final int offset;
+    private final int total;
+    private final byte[] contextID;
+
+    /**
+     * LDAPSortedPage constructor
+     *
+     * @param entries
+     *            Entries of the window
+     * @param offset
+     *            Position of the first entry, starting from <code>0</code>
+     * @param total
+     *            Number of entries of the whole result set
+     * @param contextID
+     *            Context of the server for the next window, or <code>null</code>
+     */
+    public LDAPSortedPage(final List<Identity> entries, final int offset, final int total, final byte[] contextID) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.offset = offset;
+        this.total = total;
+        this.contextID = contextID;
+    }
+
+    /**
+     * Returns the context of the server, to be used with the request of the next window
+     *
+     * @return byte[]
+     */
+    public byte[] getContextID() {
+        return contextID;
+    }
+
+    /**
+     * Returns the entries of the window
+     *
+     * @return List<Identity>
+     */
+    public List<Identity> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the position of the first entry of the window, starting from <code>0</code>
+     *
+     * @return int
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of entries of the whole result set. The directory server can return an
+     * estimation
+     *
+     * @return int
+     */
+    public int getTotal() {
+        return total;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * LDAPSyncDoneControl class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * Content Synchronization done control (RFC 4533). Sent by the server with the end of a
+ * synchronization, contains the cookie to use on the next one
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPSyncDoneControl extends BasicControl {
+    private static final long serialVersionUID = 8432146205739816510L;
+    public static final String OID = "1.3.6.1.4.1.4203.1.9.1.3";
+    private final byte[] cookie;
+    private final boolean refreshDeletes;
+
+    /**
+     * LDAPSyncDoneControl constructor
+     *
+     * @param control
+     *            Response control received with the <code>OID</code> of this control
+     * @exception IOException
+     */
+    public LDAPSyncDoneControl(final Control control) throws IOException {
+        super(OID, control.isCritical(), control.getEncodedValue());
+        int[] _position = new int[] { 0 };
+        int _end = LDAPBERCodec.readSequence(value, _position);
+        if (LDAPBERCodec.hasElement(value, _position, _end, LDAPBERCodec.OCTET_STRING)) {
+            cookie = LDAPBERCodec.readContent(value, _position, LDAPBERCodec.OCTET_STRING);
+        } else {
+            cookie = null;
+        }
+        if (LDAPBERCodec.hasElement(value, _position, _end, LDAPBERCodec.BOOLEAN)) {
+            refreshDeletes = LDAPBERCodec.readBoolean(value, _position);
+        } else {
+            refreshDeletes = false;
+        }
+    }
+
+    /**
+     * Returns the first control of the response with the <code>OID</code> of this control, or
+     * <code>null</code>
+     *
+     * @param controls
+     *            Response controls
+     * @return LDAPSyncDoneControl
+     * @exception IOException
+     */
+    public static LDAPSyncDoneControl getInstance(final Control[] controls) throws IOException {
+        if (controls == null) {
+            return null;
+        }
+        for (Control _c : controls) {
+            if (_c instanceof LDAPSyncDoneControl) {
+                return (LDAPSyncDoneControl) _c;
+            } else if (OID.equals(_c.getID())) {
+                return new LDAPSyncDoneControl(_c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cookie to use on the next synchronization, or <code>null</code>
+     *
+     * @return byte[]
+     */
+    public byte[] getCookie() {
+        if (cookie == null) {
+            return null;
+        }
+        return cookie.clone();
+    }
+
+    /**
+     * Verify if the deleted entries were sent during the synchronization. Otherwise the entries
+     * not sent as present were deleted
+     *
+     * @return boolean
+     */
+    public boolean isRefreshDeletes() {
+        return refreshDeletes;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * LDAPSyncRequestControl class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * Content Synchronization request control (RFC 4533). Asks the server for the entries changed
+ * since the state represented by a cookie, and optionally for the next changes while the search
+ * is open
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPSyncRequestControl extends BasicControl {
+    private static final long serialVersionUID = 5113916247650262193L;
+    public static final String OID = "1.3.6.1.4.1.4203.1.9.1.1";
+    public static final int REFRESH_ONLY = 1;
+    public static final int REFRESH_AND_PERSIST = 3;
+
+    /**
+     * LDAPSyncRequestControl constructor
+     *
+     * @param mode
+     *            <code>REFRESH_ONLY</code> or <code>REFRESH_AND_PERSIST</code>
+     * @param cookie
+     *            Cookie received from the server on a previous synchronization, or
+     *            <code>null</code> to receive all the entries
+     * @param reloadHint
+     *            <code>true</code> to receive all the entries if the cookie is too old
+     * @param criticality
+     *            boolean
+     */
+    public LDAPSyncRequestControl(final int mode, final byte[] cookie, final boolean reloadHint,
+            final boolean criticality) {
+        super(OID, criticality, encode(mode, cookie, reloadHint));
+    }
+
+    private static byte[] encode(final int mode, final byte[] cookie, final boolean reloadHint) {
+        ByteArrayOutputStream _value = new ByteArrayOutputStream();
+        LDAPBERCodec.writeInteger(_value, LDAPBERCodec.ENUMERATED, mode);
+        if (cookie != null) {
+            LDAPBERCodec.writeElement(_value, LDAPBERCodec.OCTET_STRING, cookie);
+        }
+        if (reloadHint) {
+            LDAPBERCodec.writeBoolean(_value, true);
+        }
+        return LDAPBERCodec.sequence(_value);
+    }
+}
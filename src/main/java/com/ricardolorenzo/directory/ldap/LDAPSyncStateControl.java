@@ -0,0 +1,123 @@
+/*
+ * LDAPSyncStateControl class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * Content Synchronization state control (RFC 4533). Sent by the server with every entry of a
+ * synchronization, contains the kind of change, the <code>entryUUID</code> of the entry and
+ * optionally a new cookie
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPSyncStateControl extends BasicControl {
+    private static final long serialVersionUID = -2930453407786284716L;
+    public static final String OID = "1.3.6.1.4.1.4203.1.9.1.2";
+    public static final int PRESENT = 0;
+    public static final int ADD = 1;
+    public static final int MODIFY = 2;
+    public static final int DELETE = 3;
+    private final int state;
+    private final byte[] entryUUID;
+    private final byte[] cookie;
+
+    /**
+     * LDAPSyncStateControl constructor
+     *
+     * @param control
+     *            Response control received with the <code>OID</code> of this control
+     * @exception IOException
+     */
+    public LDAPSyncStateControl(final Control control) throws IOException {
+        super(OID, control.isCritical(), control.getEncodedValue());
+        int[] _position = new int[] { 0 };
+        int _end = LDAPBERCodec.readSequence(value, _position);
+        state = (int) LDAPBERCodec.readInteger(value, _position, LDAPBERCodec.ENUMERATED);
+        entryUUID = LDAPBERCodec.readContent(value, _position, LDAPBERCodec.OCTET_STRING);
+        if (LDAPBERCodec.hasElement(value, _position, _end, LDAPBERCodec.OCTET_STRING)) {
+            cookie = LDAPBERCodec.readContent(value, _position, LDAPBERCodec.OCTET_STRING);
+        } else {
+            cookie = null;
+        }
+    }
+
+    /**
+     * Returns the first control of the response with the <code>OID</code> of this control, or
+     * <code>null</code>
+     *
+     * @param controls
+     *            Response controls
+     * @return LDAPSyncStateControl
+     * @exception IOException
+     */
+    public static LDAPSyncStateControl getInstance(final Control[] controls) throws IOException {
+        if (controls == null) {
+            return null;
+        }
+        for (Control _c : controls) {
+            if (_c instanceof LDAPSyncStateControl) {
+                return (LDAPSyncStateControl) _c;
+            } else if (OID.equals(_c.getID())) {
+                return new LDAPSyncStateControl(_c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the new cookie of the synchronization, or <code>null</code>
+     *
+     * @return byte[]
+     */
+    public byte[] getCookie() {
+        if (cookie == null) {
+            return null;
+        }
+        return cookie.clone();
+    }
+
+    /**
+     * Returns the <code>entryUUID</code> of the entry, in the usual text form
+     *
+     * @return String
+     */
+    public String getEntryUUID() {
+        StringBuilder _sb = new StringBuilder();
+        for (int i = 0; i < entryUUID.length; i++) {
+            if (entryUUID.length == 16 && (i == 4 || i == 6 || i == 8 || i == 10)) {
+                _sb.append("-");
+            }
+            _sb.append(String.format("%02x", entryUUID[i] & 0xFF));
+        }
+        return _sb.toString();
+    }
+
+    /**
+     * Returns the state of the entry, <code>PRESENT</code>, <code>ADD</code>,
+     * <code>MODIFY</code> or <code>DELETE</code>
+     *
+     * @return int
+     */
+    public int getState() {
+        return state;
+    }
+}
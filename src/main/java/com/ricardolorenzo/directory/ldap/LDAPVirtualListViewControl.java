@@ -0,0 +1,66 @@
+/*
+ * LDAPVirtualListViewControl class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.naming.ldap.BasicControl;
+
+/**
+ * Virtual List View request control (draft-ietf-ldapext-ldapv3-vlv). Asks the server for a window
+ * of a sorted result set, by offset. The server needs a <code>SortControl</code> on the same
+ * request
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPVirtualListViewControl extends BasicControl {
+    private static final long serialVersionUID = 3283436584217349812L;
+    public static final String OID = "2.16.840.1.113730.3.4.9";
+
+    /**
+     * LDAPVirtualListViewControl constructor
+     *
+     * @param offset
+     *            Position of the first entry of the window, starting from <code>1</code>
+     * @param count
+     *            Number of entries of the window
+     * @param contextID
+     *            Context returned by the server on the previous window, or <code>null</code>
+     * @param criticality
+     *            boolean
+     */
+    public LDAPVirtualListViewControl(final int offset, final int count, final byte[] contextID,
+            final boolean criticality) {
+        super(OID, criticality, encode(offset, count, contextID));
+    }
+
+    private static byte[] encode(final int offset, final int count, final byte[] contextID) {
+        ByteArrayOutputStream _target = new ByteArrayOutputStream();
+        LDAPBERCodec.writeInteger(_target, LDAPBERCodec.INTEGER, offset);
+        LDAPBERCodec.writeInteger(_target, LDAPBERCodec.INTEGER, 0);
+
+        ByteArrayOutputStream _value = new ByteArrayOutputStream();
+        LDAPBERCodec.writeInteger(_value, LDAPBERCodec.INTEGER, 0);
+        LDAPBERCodec.writeInteger(_value, LDAPBERCodec.INTEGER, count > 0 ? count - 1 : 0);
+        LDAPBERCodec.writeElement(_value, 0xA0, _target.toByteArray());
+        if (contextID != null) {
+            LDAPBERCodec.writeElement(_value, LDAPBERCodec.OCTET_STRING, contextID);
+        }
+        return LDAPBERCodec.sequence(_value);
+    }
+}
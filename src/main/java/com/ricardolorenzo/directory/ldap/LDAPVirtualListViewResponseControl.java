@@ -0,0 +1,121 @@
+/*
+ * LDAPVirtualListViewResponseControl class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * Virtual List View response control (draft-ietf-ldapext-ldapv3-vlv). Contains the position of the
+ * window and the size of the whole result set, as estimated by the server
+ *
+ * @author Ricardo Lorenzo
+ * @version 0.1
+ */
+public class LDAPVirtualListViewResponseControl extends BasicControl {
+    private static final long serialVersionUID = -6817460470431095297L;
+    public static final String OID = "2.16.840.1.113730.3.4.10";
+    private final int targetPosition;
+    private final int contentCount;
+    private final int result;
+    private final byte[] contextID;
+
+    /**
+     * LDAPVirtualListViewResponseControl constructor
+     *
+     * @param control
+     *            Response control received with the <code>OID</code> of this control
+     * @exception IOException
+     */
+    public LDAPVirtualListViewResponseControl(final Control control) throws IOException {
+        super(OID, control.isCritical(), control.getEncodedValue());
+        int[] _position = new int[] { 0 };
+        int _end = LDAPBERCodec.readSequence(value, _position);
+        targetPosition = (int) LDAPBERCodec.readInteger(value, _position, LDAPBERCodec.INTEGER);
+        contentCount = (int) LDAPBERCodec.readInteger(value, _position, LDAPBERCodec.INTEGER);
+        result = (int) LDAPBERCodec.readInteger(value, _position, LDAPBERCodec.ENUMERATED);
+        if (LDAPBERCodec.hasElement(value, _position, _end, LDAPBERCodec.OCTET_STRING)) {
+            contextID = LDAPBERCodec.readContent(value, _position, LDAPBERCodec.OCTET_STRING);
+        } else {
+            contextID = null;
+        }
+    }
+
+    /**
+     * Returns the first control of the response with the <code>OID</code> of this control, or
+     * <code>null</code>
+     *
+     * @param controls
+     *            Response controls
+     * @return LDAPVirtualListViewResponseControl
+     * @exception IOException
+     */
+    public static LDAPVirtualListViewResponseControl getInstance(final Control[] controls) throws IOException {
+        if (controls == null) {
+            return null;
+        }
+        for (Control _c : controls) {
+            if (_c instanceof LDAPVirtualListViewResponseControl) {
+                return (LDAPVirtualListViewResponseControl) _c;
+            } else if (OID.equals(_c.getID())) {
+                return new LDAPVirtualListViewResponseControl(_c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of entries of the whole result set, as estimated by the server
+     *
+     * @return int
+     */
+    public int getContentCount() {
+        return contentCount;
+    }
+
+    /**
+     * Returns the context to send with the request of the next window, or <code>null</code>
+     *
+     * @return byte[]
+     */
+    public byte[] getContextID() {
+        if (contextID == null) {
+            return null;
+        }
+        return contextID.clone();
+    }
+
+    /**
+     * Returns the result code of the virtual list view operation, <code>0</code> on success
+     *
+     * @return int
+     */
+    public int getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the position of the first entry of the window, starting from <code>1</code>
+     *
+     * @return int
+     */
+    public int getTargetPosition() {
+        return targetPosition;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * ChangeToken class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity;
+
+import java.io.Serializable;
+import java.util.Calendar;
+
+import com.ricardolorenzo.identity.security.Base64;
+import com.ricardolorenzo.identity.security.SecurityException;
+
+/**
+ * Position on the change history of an identity source. The source identifies who generated the
+ * value (for example a domain controller), and the value is only meaningful for that source. A
+ * token can be stored as a string and restored using <code>parse()</code>
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class ChangeToken implements Serializable {
+    private static final long serialVersionUID = 4170412553641427361L;
+    private static final char SEPARATOR = '#';
+
+    private final String source;
+    private final String value;
+
+    public ChangeToken(final String source, final String value) {
+        this.source = source;
+        this.value = value;
+    }
+
+    /**
+     * Restores a token from the string returned by <code>toString()</code>
+     * 
+     * @param token
+     *            String
+     * @return ChangeToken
+     * @throws IdentityException
+     */
+    public static final ChangeToken parse(final String token) throws IdentityException {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        final int index = token.lastIndexOf(SEPARATOR);
+        if (index < 0) {
+            throw new IdentityException("invalid change token [" + token + "]");
+        }
+        return new ChangeToken(token.substring(0, index), token.substring(index + 1));
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof ChangeToken)) {
+            return false;
+        }
+        return toString().equals(o.toString());
+    }
+
+    /**
+     * Returns the value of a token created with <code>valueOf(String, byte[])</code>
+     * 
+     * @return byte[]
+     * @throws IdentityException
+     */
+    public byte[] getBinaryValue() throws IdentityException {
+        if (this.value == null || this.value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Base64.decode(this.value.toCharArray());
+        } catch (final SecurityException e) {
+            throw new IdentityException("invalid binary change token [" + this.value + "]");
+        }
+    }
+
+    /**
+     * Returns the value of a token created with <code>valueOf(String, Calendar)</code>
+     * 
+     * @return Calendar
+     * @throws IdentityException
+     */
+    public Calendar getCalendarValue() throws IdentityException {
+        if (this.value == null || this.value.isEmpty()) {
+            return null;
+        }
+        try {
+            final Calendar date = Calendar.getInstance();
+            date.setTimeInMillis(Long.parseLong(this.value));
+            return date;
+        } catch (final NumberFormatException e) {
+            throw new IdentityException("invalid date change token [" + this.value + "]");
+        }
+    }
+
+    public String getSource() {
+        return this.source;
+    }
+
+    public String getValue() {
+        return this.value;
+    }
+
+    /**
+     * Creates a token with a binary value, like the cookie of a Content Synchronization or the
+     * resume token of a change stream
+     * 
+     * @param source
+     *            String
+     * @param value
+     *            byte[]
+     * @return ChangeToken
+     */
+    public static final ChangeToken valueOf(final String source, final byte[] value) {
+        return new ChangeToken(source, value == null ? null : new String(Base64.encode(value)));
+    }
+
+    /**
+     * Creates a token with the time of the last change read
+     * 
+     * @param source
+     *            String
+     * @param value
+     *            Calendar
+     * @return ChangeToken
+     */
+    public static final ChangeToken valueOf(final String source, final Calendar value) {
+        return new ChangeToken(source, value == null ? null : String.valueOf(value.getTimeInMillis()));
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        if (this.source != null) {
+            sb.append(this.source);
+        }
+        sb.append(SEPARATOR);
+        if (this.value != null) {
+            sb.append(this.value);
+        }
+        return sb.toString();
+    }
+}
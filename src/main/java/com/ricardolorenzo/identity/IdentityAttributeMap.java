@@ -20,6 +20,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 
 import com.ricardolorenzo.identity.user.UserIdentity;
 
@@ -47,6 +49,42 @@ public class IdentityAttributeMap {
         }
     }
 
+    /**
+     * Returns the names of the source attributes used by the values of a map. Those are the
+     * <code>[[[attribute]]]</code> references, or the value itself if it is a plain attribute
+     * name
+     * 
+     * @param attributeMap
+     *            Map
+     * @return Set<String>
+     */
+    public static Set<String> getAttributeNames(final Map<String, String> attributeMap) {
+        final Set<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        for (final String value : attributeMap.values()) {
+            if (value == null) {
+                continue;
+            }
+            boolean reference = false;
+            for (int offset = value.indexOf("[[[", 0); offset != -1; offset = value.indexOf("[[[", offset)) {
+                offset += 3;
+                final int end = value.indexOf("]]]", offset);
+                if (end == -1) {
+                    break;
+                }
+                names.add(value.substring(offset, end));
+                reference = true;
+            }
+            if (!reference && value.matches("[a-zA-Z][a-zA-Z0-9\\-;]*")) {
+                names.add(value);
+            }
+        }
+        return names;
+    }
+
+    public static Set<String> getDefaultReadAttributeNames() {
+        return getAttributeNames(defaultAttributeMap);
+    }
+
     public static Map<String, String> getDefaultReadMap() {
         return defaultAttributeMap;
     }
@@ -55,6 +93,10 @@ public class IdentityAttributeMap {
         return reverse(defaultAttributeMap);
     }
 
+    public Set<String> getReadAttributeNames() {
+        return getAttributeNames(attributeMap);
+    }
+
     public Map<String, String> getReadMap() {
         return attributeMap;
     }
@@ -0,0 +1,338 @@
+/*
+ * ChangeCoalescer class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.change;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.ricardolorenzo.identity.IdentityException;
+import com.ricardolorenzo.identity.group.GroupIdentity;
+import com.ricardolorenzo.identity.user.UserIdentity;
+
+/**
+ * Merges the changes of the same identity received within a window into one net change, before
+ * they are written on the destination. A burst of updates of the same user is written once, and
+ * an identity added and deleted within the window is not written at all.
+ * 
+ * <ul>
+ * <li>a change is emitted when its identity has no more changes during the window, or when it
+ * has been waiting for the maximum delay</li>
+ * <li>the changes of the same identity are emitted in order, a change received after the
+ * previous one was emitted is never emitted before it</li>
+ * <li>the number of identities waiting is limited, when the limit is reached the oldest changes
+ * are emitted before the window ends</li>
+ * <li>if the listener fails, the changes wait again merged with the later ones</li>
+ * </ul>
+ * 
+ * It can subscribe to a <code>ChangePollingScheduler</code>, the polled identities are received as
+ * modifications. The checkpoints of the scheduler advance before the changes are emitted, so the
+ * changes waiting are lost if the process ends without <code>stop()</code>.
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class ChangeCoalescer implements ChangeSubscriber {
+    public static final long DEFAULT_WINDOW = 2000L;
+    public static final int DEFAULT_MAX_DELAY_FACTOR = 10;
+    public static final int DEFAULT_CAPACITY = 10000;
+    private static final Logger log = Logger.getLogger(ChangeCoalescer.class.getName());
+
+    private final IdentityChangeListener listener;
+    private final Map<String, Pending> pending;
+    private final Object emitLock;
+    private final ScheduledExecutorService executor;
+    private final long window;
+    private final long maxDelay;
+    private final int capacity;
+    private ScheduledFuture<?> future;
+
+    /*
+     * Net change of an identity and the times of its first and last change
+     */
+    private static final class Pending {
+        private IdentityChange change;
+        private final long first;
+        private long last;
+
+        private Pending(final IdentityChange change, final long time) {
+            this.change = change;
+            this.first = time;
+            this.last = time;
+        }
+    }
+
+    /**
+     * Creates a coalescer with the default window and capacity, and its own daemon thread
+     * 
+     * @param listener
+     *            IdentityChangeListener that receives the net changes
+     */
+    public ChangeCoalescer(final IdentityChangeListener listener) {
+        this(listener, DEFAULT_WINDOW, DEFAULT_WINDOW * DEFAULT_MAX_DELAY_FACTOR, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a coalescer with its own daemon thread
+     * 
+     * @param listener
+     *            IdentityChangeListener that receives the net changes
+     * @param window
+     *            Milliseconds without changes of an identity before its change is emitted
+     * @param maxDelay
+     *            Maximum milliseconds that a change waits
+     * @param capacity
+     *            Maximum number of identities waiting
+     */
+    public ChangeCoalescer(final IdentityChangeListener listener, final long window, final long maxDelay,
+            final int capacity) {
+        this(listener, window, maxDelay, capacity, Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "change-coalescer");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+    }
+
+    /**
+     * Creates a coalescer that emits the changes using an executor
+     * 
+     * @param listener
+     *            IdentityChangeListener that receives the net changes
+     * @param window
+     *            Milliseconds without changes of an identity before its change is emitted
+     * @param maxDelay
+     *            Maximum milliseconds that a change waits
+     * @param capacity
+     *            Maximum number of identities waiting
+     * @param executor
+     *            ScheduledExecutorService
+     */
+    public ChangeCoalescer(final IdentityChangeListener listener, final long window, final long maxDelay,
+            final int capacity, final ScheduledExecutorService executor) {
+        if (listener == null) {
+            throw new IllegalArgumentException("invalid change listener");
+        }
+        if (window <= 0 || maxDelay < window) {
+            throw new IllegalArgumentException("invalid coalescing window");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity");
+        }
+        this.listener = listener;
+        this.pending = new LinkedHashMap<String, Pending>();
+        this.emitLock = new Object();
+        this.executor = executor;
+        this.window = window;
+        this.maxDelay = maxDelay;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Receives a change. If the limit of identities waiting is reached, the oldest changes are
+     * emitted first, in the calling thread
+     * 
+     * @param change
+     *            IdentityChange
+     * @throws IdentityException
+     *             if the oldest changes can not be emitted, the change is not received
+     */
+    public void addChange(final IdentityChange change) throws IdentityException {
+        final String key = change.getKey();
+        while (true) {
+            synchronized (this.pending) {
+                if (this.pending.containsKey(key) || this.pending.size() < this.capacity) {
+                    merge(key, change, System.currentTimeMillis());
+                    return;
+                }
+            }
+            emit(false, true);
+        }
+    }
+
+    public void addGroupIdentityAdded(final String source, final GroupIdentity group) throws IdentityException {
+        addChange(new IdentityChange(IdentityChange.ADD, source, group));
+    }
+
+    public void addGroupIdentityDeleted(final String source, final GroupIdentity group) throws IdentityException {
+        addChange(new IdentityChange(IdentityChange.DELETE, source, group));
+    }
+
+    public void addUserIdentityAdded(final String source, final UserIdentity user) throws IdentityException {
+        addChange(new IdentityChange(IdentityChange.ADD, source, user));
+    }
+
+    public void addUserIdentityDeleted(final String source, final UserIdentity user) throws IdentityException {
+        addChange(new IdentityChange(IdentityChange.DELETE, source, user));
+    }
+
+    /*
+     * Emits the changes due, all the changes, or the oldest one when the capacity is reached. The
+     * lock keeps the batches in order
+     */
+    private void emit(final boolean all, final boolean oldest) throws IdentityException {
+        synchronized (this.emitLock) {
+            final List<IdentityChange> changes = new ArrayList<IdentityChange>();
+            final long now = System.currentTimeMillis();
+            synchronized (this.pending) {
+                for (final Iterator<Pending> it = this.pending.values().iterator(); it.hasNext();) {
+                    final Pending p = it.next();
+                    if (all || (oldest && changes.isEmpty()) || now - p.last >= this.window
+                            || now - p.first >= this.maxDelay) {
+                        if (p.change != null) {
+                            changes.add(p.change);
+                        }
+                        it.remove();
+                    }
+                }
+            }
+            if (changes.isEmpty()) {
+                return;
+            }
+            try {
+                this.listener.identitiesChanged(changes);
+            } catch (final IdentityException e) {
+                synchronized (this.pending) {
+                    for (final IdentityChange change : changes) {
+                        requeue(change, now);
+                    }
+                }
+                throw e;
+            } catch (final RuntimeException e) {
+                synchronized (this.pending) {
+                    for (final IdentityChange change : changes) {
+                        requeue(change, now);
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Emits all the changes waiting
+     * 
+     * @throws IdentityException
+     */
+    public void flush() throws IdentityException {
+        emit(true, false);
+    }
+
+    @Override
+    public void groupIdentitiesChanged(final String source, final List<GroupIdentity> groups)
+            throws IdentityException {
+        for (final GroupIdentity group : groups) {
+            addChange(new IdentityChange(IdentityChange.MODIFY, source, group));
+        }
+    }
+
+    /**
+     * Returns the number of identities waiting
+     * 
+     * @return int
+     */
+    public int getPendingCount() {
+        synchronized (this.pending) {
+            return this.pending.size();
+        }
+    }
+
+    /*
+     * Called holding the lock of pending. A pair that cancels itself keeps its place with a null
+     * change, so a later change of the identity is not emitted before the older ones
+     */
+    private void merge(final String key, final IdentityChange change, final long time) {
+        final Pending p = this.pending.get(key);
+        if (p == null) {
+            this.pending.put(key, new Pending(change, time));
+        } else {
+            p.change = p.change == null ? change : p.change.merge(change);
+            p.last = time;
+        }
+    }
+
+    /*
+     * Called holding the lock of pending. The change failed is older than the one waiting
+     */
+    private void requeue(final IdentityChange change, final long time) {
+        final String key = change.getKey();
+        final Pending p = this.pending.get(key);
+        if (p == null) {
+            this.pending.put(key, new Pending(change, time));
+        } else if (p.change != null) {
+            p.change = change.merge(p.change);
+        } else {
+            /*
+             * Added and deleted after the change failed
+             */
+            p.change = change.merge(new IdentityChange(IdentityChange.DELETE, change.getSource(), change
+                    .getIdentity()));
+        }
+    }
+
+    /**
+     * Starts emitting the changes when their window ends
+     */
+    public synchronized void start() {
+        if (this.future != null) {
+            return;
+        }
+        final long period = Math.max(10, this.window / 4);
+        this.future = this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    emit(false, false);
+                } catch (final Exception e) {
+                    log.log(java.util.logging.Level.WARNING, "cannot emit identity changes - " + e.getMessage(), e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the scheduled emission and emits all the changes waiting
+     * 
+     * @throws IdentityException
+     */
+    public void stop() throws IdentityException {
+        synchronized (this) {
+            if (this.future != null) {
+                this.future.cancel(false);
+                this.future = null;
+            }
+        }
+        flush();
+    }
+
+    @Override
+    public void userIdentitiesChanged(final String source, final List<UserIdentity> users) throws IdentityException {
+        for (final UserIdentity user : users) {
+            addChange(new IdentityChange(IdentityChange.MODIFY, source, user));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * ChangeLeaseManager class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.change;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.ricardolorenzo.db.DBConnection;
+import com.ricardolorenzo.db.DBConnectionManager;
+import com.ricardolorenzo.db.DBException;
+import com.ricardolorenzo.identity.IdentityException;
+
+/**
+ * Leases of the partitions polled by several nodes, stored on a database table shared by all the
+ * nodes. A lease has one owner until it expires, the owner renews it acquiring it again, and any
+ * node can acquire it after it expires. The primary key of the table guarantees that only one of
+ * the nodes that try to acquire an expired lease gets it. The table must exist
+ * 
+ * <pre>
+ * CREATE TABLE identity_lease (
+ *     name VARCHAR(255) NOT NULL PRIMARY KEY,
+ *     owner VARCHAR(255) NOT NULL,
+ *     expires BIGINT NOT NULL
+ * )
+ * </pre>
+ * 
+ * Every node also keeps a lease with its own name, so the nodes know how many nodes are alive.
+ * The expiration times are taken from the clocks of the nodes, the lease duration must be much
+ * longer than the difference between those clocks.
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class ChangeLeaseManager {
+    public static final String DEFAULT_TABLE = "identity_lease";
+    public static final long DEFAULT_DURATION = 60000L;
+    private static final String NODE_PREFIX = "node:";
+    private final DBConnectionManager dbm;
+    private final String table;
+    private final String owner;
+    private final long duration;
+    private final Map<String, Long> leases;
+
+    /**
+     * Creates a lease manager
+     * 
+     * @param dbm
+     *            DBConnectionManager
+     * @param table
+     *            Name of the table, <code>null</code> for the default table
+     * @param owner
+     *            Name of this node, unique between the nodes
+     * @param duration
+     *            Duration of the leases in milliseconds
+     */
+    public ChangeLeaseManager(final DBConnectionManager dbm, final String table, final String owner,
+            final long duration) {
+        if (owner == null || owner.isEmpty()) {
+            throw new IllegalArgumentException("invalid lease owner");
+        }
+        if (duration <= 0) {
+            throw new IllegalArgumentException("invalid lease duration");
+        }
+        this.dbm = dbm;
+        this.table = (table == null || table.isEmpty()) ? DEFAULT_TABLE : table;
+        this.owner = owner;
+        this.duration = duration;
+        this.leases = new ConcurrentHashMap<String, Long>();
+    }
+
+    /*
+     * Column names are returned in upper case by some drivers
+     */
+    private static Object getColumn(final Map<String, Object> row, final String column) {
+        for (final Map.Entry<String, Object> value : row.entrySet()) {
+            if (column.equalsIgnoreCase(value.getKey())) {
+                return value.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Acquires a lease, or renews it if this node is the owner
+     * 
+     * @param name
+     *            Name of the lease
+     * @return <code>true</code> if this node is the owner of the lease
+     * @throws IdentityException
+     */
+    public boolean acquire(final String name) throws IdentityException {
+        final long now = System.currentTimeMillis();
+        final DBConnection dbconnection = this.dbm.getConnection();
+        try {
+            dbconnection.transactionInit();
+            dbconnection.setObject(0, name);
+            dbconnection.setObject(1, this.owner);
+            dbconnection.setObject(2, Long.valueOf(now));
+            dbconnection.transactionQuery("DELETE FROM " + this.table
+                    + " WHERE name = ? AND (owner = ? OR expires < ?)");
+            dbconnection.setObject(0, name);
+            dbconnection.setObject(1, this.owner);
+            dbconnection.setObject(2, Long.valueOf(now + this.duration));
+            dbconnection.transactionQuery("INSERT INTO " + this.table + " (name, owner, expires) VALUES (?, ?, ?)");
+            dbconnection.transactionCommit();
+            this.leases.put(name, Long.valueOf(now + this.duration));
+            return true;
+        } catch (final DBException e) {
+            this.leases.remove(name);
+            try {
+                dbconnection.transactionRollback();
+            } catch (final DBException e2) {
+                // nothing
+            }
+            /*
+             * The insert fails on the primary key while another node is the owner
+             */
+            final String leaseOwner = getOwners().get(name);
+            if (leaseOwner != null && !this.owner.equals(leaseOwner)) {
+                return false;
+            }
+            throw new IdentityException("database error - " + e.getMessage());
+        } finally {
+            try {
+                dbconnection.transactionClose();
+            } catch (final DBException e) {
+                // nothing
+            }
+        }
+    }
+
+    public long getDuration() {
+        return this.duration;
+    }
+
+    /**
+     * Returns the names of the nodes alive, including this node once it has called
+     * <code>heartbeat()</code>
+     * 
+     * @return List<String>
+     * @throws IdentityException
+     */
+    public List<String> getNodes() throws IdentityException {
+        final List<String> nodes = new ArrayList<String>();
+        for (final String name : getOwners().keySet()) {
+            if (name.startsWith(NODE_PREFIX)) {
+                nodes.add(name.substring(NODE_PREFIX.length()));
+            }
+        }
+        return nodes;
+    }
+
+    public String getOwner() {
+        return this.owner;
+    }
+
+    /**
+     * Returns the owners of the leases not expired, by the name of the lease
+     * 
+     * @return Map<String, String>
+     * @throws IdentityException
+     */
+    public Map<String, String> getOwners() throws IdentityException {
+        final Map<String, String> owners = new HashMap<String, String>();
+        final DBConnection dbconnection = this.dbm.getConnection();
+        try {
+            dbconnection.setObject(0, Long.valueOf(System.currentTimeMillis()));
+            final List<Map<String, Object>> rows = dbconnection.query("SELECT name, owner FROM " + this.table
+                    + " WHERE expires >= ?");
+            for (final Map<String, Object> row : rows) {
+                owners.put(String.valueOf(getColumn(row, "name")), String.valueOf(getColumn(row, "owner")));
+            }
+        } catch (final DBException e) {
+            throw new IdentityException("database error - " + e.getMessage());
+        }
+        return owners;
+    }
+
+    /**
+     * Renews the lease that tells the other nodes that this node is alive
+     * 
+     * @throws IdentityException
+     */
+    public void heartbeat() throws IdentityException {
+        if (!acquire(NODE_PREFIX + this.owner)) {
+            throw new IdentityException("node name [" + this.owner + "] used by another node");
+        }
+    }
+
+    /**
+     * Verify if this node is the owner of a lease. It does not read the table, the lease is held
+     * until the expiration time of the last <code>acquire()</code>
+     * 
+     * @param name
+     *            Name of the lease
+     * @return boolean
+     */
+    public boolean isHeld(final String name) {
+        final Long expires = this.leases.get(name);
+        return expires != null && expires.longValue() > System.currentTimeMillis();
+    }
+
+    /**
+     * Releases a lease of this node, so another node can acquire it without waiting for the
+     * expiration
+     * 
+     * @param name
+     *            Name of the lease
+     * @throws IdentityException
+     */
+    public void release(final String name) throws IdentityException {
+        this.leases.remove(name);
+        final DBConnection dbconnection = this.dbm.getConnection();
+        try {
+            dbconnection.transactionInit();
+            dbconnection.setObject(0, name);
+            dbconnection.setObject(1, this.owner);
+            dbconnection.transactionQuery("DELETE FROM " + this.table + " WHERE name = ? AND owner = ?");
+            dbconnection.transactionCommit();
+        } catch (final DBException e) {
+            try {
+                dbconnection.transactionRollback();
+            } catch (final DBException e2) {
+                // nothing
+            }
+            throw new IdentityException("database error - " + e.getMessage());
+        } finally {
+            try {
+                dbconnection.transactionClose();
+            } catch (final DBException e) {
+                // nothing
+            }
+        }
+    }
+}
@@ -0,0 +1,589 @@
+/*
+ * ChangePollingScheduler class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.change;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.ricardolorenzo.identity.ChangeToken;
+import com.ricardolorenzo.identity.IdentityException;
+import com.ricardolorenzo.identity.checkpoint.CheckpointStore;
+import com.ricardolorenzo.identity.group.GroupIdentity;
+import com.ricardolorenzo.identity.group.GroupIdentityManager;
+import com.ricardolorenzo.identity.user.UserIdentity;
+import com.ricardolorenzo.identity.user.UserIdentityManager;
+
+/**
+ * Polls the changes of the user and group identity managers and publishes them to the
+ * subscribers. Every source is polled on its own interval, adapted to the activity of the source:
+ * 
+ * <ul>
+ * <li>the interval is halved while the source returns changes, down to the minimum interval, and
+ * grows slowly while it does not, up to the maximum interval</li>
+ * <li>the interval is never shorter than <code>LATENCY_FACTOR</code> times the duration of the
+ * last poll, so a slow server is polled less often</li>
+ * <li>after an error the interval doubles on every consecutive error</li>
+ * <li>every delay has a random jitter, so the nodes that poll the same source do not
+ * synchronize</li>
+ * </ul>
+ * 
+ * The time of the last poll published to all the subscribers is the checkpoint of the source. If
+ * a <code>CheckpointStore</code> is defined, the checkpoints are stored with the name of the
+ * source and the polling is resumed from them after a restart.
+ * 
+ * The users of a partitioned source are divided in partitions, like the entries directly under the
+ * base DN of a directory and the subtree of each one, and the partitions are divided between the
+ * nodes with the leases of a <code>ChangeLeaseManager</code>. Every node polls only the partitions
+ * it holds, with one checkpoint per partition, so the checkpoint store must be shared by the nodes
+ * too. A node takes the partitions of another node when their leases expire.
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class ChangePollingScheduler {
+    public static final long DEFAULT_MIN_INTERVAL = 5000L;
+    public static final long DEFAULT_MAX_INTERVAL = 300000L;
+    public static final long DEFAULT_OVERLAP = 1000L;
+    public static final int LATENCY_FACTOR = 4;
+    public static final double JITTER = 0.1;
+    private static final Logger log = Logger.getLogger(ChangePollingScheduler.class.getName());
+
+    private final Map<String, Source> sources;
+    private final List<PartitionCoordinator> coordinators;
+    private final List<ChangeSubscriber> subscribers;
+    private final Random random;
+    private final ScheduledExecutorService executor;
+    private volatile CheckpointStore checkpointStore;
+    private volatile long minInterval;
+    private volatile long maxInterval;
+    private volatile long overlap;
+    private volatile boolean running;
+
+    /**
+     * Polled source and its adaptive state. Every source is rescheduled after its poll ends, so
+     * the same source is never polled concurrently
+     */
+    protected abstract class Source implements Runnable {
+        private final String name;
+        private Calendar since;
+        private long interval;
+        private int errors;
+        private ScheduledFuture<?> future;
+
+        protected Source(final String name) {
+            this.name = name;
+            this.interval = ChangePollingScheduler.this.minInterval;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * Polls the changes since a date and publishes them to the subscribers
+         * 
+         * @param date
+         *            Calendar
+         * @return The number of changes
+         * @throws IdentityException
+         */
+        protected abstract int poll(Calendar date) throws IdentityException;
+
+        @Override
+        public void run() {
+            if (!ChangePollingScheduler.this.running) {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            try {
+                if (this.since == null) {
+                    this.since = loadCheckpoint(this.name, start);
+                }
+                final Calendar next = Calendar.getInstance();
+                next.setTimeInMillis(start - ChangePollingScheduler.this.overlap);
+                final int changes = poll(this.since);
+                this.since = next;
+                storeCheckpoint(this.name, next);
+                this.errors = 0;
+                if (changes > 0) {
+                    this.interval = Math.max(ChangePollingScheduler.this.minInterval, this.interval / 2);
+                } else {
+                    this.interval = Math.min(ChangePollingScheduler.this.maxInterval, this.interval * 3 / 2);
+                }
+                this.interval = Math.max(this.interval, (System.currentTimeMillis() - start) * LATENCY_FACTOR);
+            } catch (final Exception e) {
+                this.errors++;
+                this.interval = Math.min(ChangePollingScheduler.this.maxInterval,
+                        ChangePollingScheduler.this.minInterval << Math.min(this.errors, 16));
+                log.log(java.util.logging.Level.WARNING, "cannot poll changes of source [" + this.name + "] - "
+                        + e.getMessage(), e);
+            }
+            schedule(this, this.interval);
+        }
+    }
+
+    /**
+     * Divides the partitions of a source between the nodes. Every run renews the leases of this
+     * node, takes free partitions up to the share of this node, releases the partitions over
+     * that share and adds or removes the sources of the partitions
+     */
+    private final class PartitionCoordinator implements Runnable {
+        private final String name;
+        private final UserIdentityManager manager;
+        private final ChangeLeaseManager leases;
+        private final Set<String> partitions;
+        private ScheduledFuture<?> future;
+
+        private PartitionCoordinator(final String name, final UserIdentityManager manager,
+                final ChangeLeaseManager leases) {
+            this.name = name;
+            this.manager = manager;
+            this.leases = leases;
+            this.partitions = new HashSet<String>();
+        }
+
+        private String getLeaseName(final String partition) {
+            return this.name + "/" + partition;
+        }
+
+        private void release(final String partition) {
+            removeSource(getLeaseName(partition));
+            this.partitions.remove(partition);
+            try {
+                this.leases.release(getLeaseName(partition));
+            } catch (final IdentityException e) {
+                log.log(java.util.logging.Level.WARNING, "cannot release the lease of partition [" + partition
+                        + "] of source [" + this.name + "] - " + e.getMessage(), e);
+            }
+        }
+
+        private synchronized void releaseAll() {
+            for (final String partition : new ArrayList<String>(this.partitions)) {
+                release(partition);
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            if (!ChangePollingScheduler.this.running) {
+                return;
+            }
+            try {
+                this.leases.heartbeat();
+                final List<String> available = this.manager.getPartitions();
+                final int nodes = Math.max(1, this.leases.getNodes().size());
+                final int share = (available.size() + nodes - 1) / nodes;
+                final Map<String, String> owners = this.leases.getOwners();
+                final Set<String> held = new HashSet<String>();
+                for (final String partition : available) {
+                    if (held.size() < share && this.partitions.contains(partition)
+                            && this.leases.acquire(getLeaseName(partition))) {
+                        held.add(partition);
+                    }
+                }
+                /*
+                 * Every node tries the free partitions on a different order
+                 */
+                final List<String> free = new ArrayList<String>(available);
+                Collections.shuffle(free, ChangePollingScheduler.this.random);
+                for (final String partition : free) {
+                    if (held.size() >= share) {
+                        break;
+                    }
+                    if (!held.contains(partition) && owners.get(getLeaseName(partition)) == null
+                            && this.leases.acquire(getLeaseName(partition))) {
+                        held.add(partition);
+                    }
+                }
+                for (final String partition : new ArrayList<String>(this.partitions)) {
+                    if (!held.contains(partition)) {
+                        release(partition);
+                    }
+                }
+                for (final String partition : held) {
+                    if (this.partitions.add(partition)) {
+                        addSource(new PartitionSource(this, partition));
+                    }
+                }
+            } catch (final Exception e) {
+                log.log(java.util.logging.Level.WARNING, "cannot update the partitions of source [" + this.name
+                        + "] - " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Polls the users modified on one partition, while this node holds its lease
+     */
+    private final class PartitionSource extends Source {
+        private final PartitionCoordinator coordinator;
+        private final String partition;
+
+        private PartitionSource(final PartitionCoordinator coordinator, final String partition) {
+            super(coordinator.getLeaseName(partition));
+            this.coordinator = coordinator;
+            this.partition = partition;
+        }
+
+        private void checkLease() throws IdentityException {
+            if (!this.coordinator.leases.isHeld(getName())) {
+                throw new IdentityException("lease of partition [" + this.partition + "] not held");
+            }
+        }
+
+        @Override
+        protected int poll(final Calendar date) throws IdentityException {
+            checkLease();
+            List<UserIdentity> users = this.coordinator.manager.getModifiedUserIdentities(date, this.partition);
+            /*
+             * If the lease expired during the poll, the checkpoint belongs to the new owner
+             */
+            checkLease();
+            if (users == null || users.isEmpty()) {
+                return 0;
+            }
+            users = Collections.unmodifiableList(users);
+            for (final ChangeSubscriber subscriber : ChangePollingScheduler.this.subscribers) {
+                subscriber.userIdentitiesChanged(this.coordinator.name, users);
+            }
+            return users.size();
+        }
+    }
+
+    /**
+     * Creates a scheduler with its own pool of daemon threads
+     * 
+     * @param threads
+     *            Number of sources polled at the same time
+     */
+    public ChangePollingScheduler(final int threads) {
+        this(Executors.newScheduledThreadPool(threads, getThreadFactory()));
+    }
+
+    /**
+     * Creates a scheduler that polls using an executor
+     * 
+     * @param executor
+     *            ScheduledExecutorService
+     */
+    public ChangePollingScheduler(final ScheduledExecutorService executor) {
+        this.executor = executor;
+        this.sources = new ConcurrentHashMap<String, Source>();
+        this.coordinators = new CopyOnWriteArrayList<PartitionCoordinator>();
+        this.subscribers = new CopyOnWriteArrayList<ChangeSubscriber>();
+        this.random = new Random();
+        this.minInterval = DEFAULT_MIN_INTERVAL;
+        this.maxInterval = DEFAULT_MAX_INTERVAL;
+        this.overlap = DEFAULT_OVERLAP;
+        this.running = false;
+    }
+
+    private static ThreadFactory getThreadFactory() {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "change-polling-" + this.count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Adds a source. The name of the source is also the name of its checkpoint, and it must be
+     * unique
+     * 
+     * @param source
+     *            Source
+     * @throws IdentityException
+     */
+    protected synchronized void addSource(final Source source) throws IdentityException {
+        if (this.sources.containsKey(source.getName())) {
+            throw new IdentityException("change source [" + source.getName() + "] already exists");
+        }
+        this.sources.put(source.getName(), source);
+        if (this.running) {
+            schedule(source, 0);
+        }
+    }
+
+    public void addSubscriber(final ChangeSubscriber subscriber) {
+        this.subscribers.add(subscriber);
+    }
+
+    /**
+     * Polls the groups modified on a group identity manager
+     * 
+     * @param name
+     *            Name of the source
+     * @param manager
+     *            GroupIdentityManager
+     * @throws IdentityException
+     */
+    public void addGroupIdentityManager(final String name, final GroupIdentityManager manager)
+            throws IdentityException {
+        addSource(new Source(name) {
+            @Override
+            protected int poll(final Calendar date) throws IdentityException {
+                List<GroupIdentity> groups = manager.getModifiedGroupIdentities(date);
+                if (groups == null || groups.isEmpty()) {
+                    return 0;
+                }
+                groups = Collections.unmodifiableList(groups);
+                for (final ChangeSubscriber subscriber : ChangePollingScheduler.this.subscribers) {
+                    subscriber.groupIdentitiesChanged(getName(), groups);
+                }
+                return groups.size();
+            }
+        });
+    }
+
+    /**
+     * Polls the users modified on a user identity manager, dividing its partitions between the
+     * nodes that use the same lease table. The sources of the partitions are named
+     * <code>name/partition</code>
+     * 
+     * @param name
+     *            Name of the source
+     * @param manager
+     *            UserIdentityManager, it must support <code>getPartitions()</code>
+     * @param leases
+     *            ChangeLeaseManager of this node
+     * @throws IdentityException
+     */
+    public synchronized void addPartitionedUserIdentityManager(final String name, final UserIdentityManager manager,
+            final ChangeLeaseManager leases) throws IdentityException {
+        for (final PartitionCoordinator coordinator : this.coordinators) {
+            if (coordinator.name.equals(name)) {
+                throw new IdentityException("change source [" + name + "] already exists");
+            }
+        }
+        final PartitionCoordinator coordinator = new PartitionCoordinator(name, manager, leases);
+        this.coordinators.add(coordinator);
+        if (this.running) {
+            schedule(coordinator);
+        }
+    }
+
+    /**
+     * Polls the users modified on a user identity manager
+     * 
+     * @param name
+     *            Name of the source
+     * @param manager
+     *            UserIdentityManager
+     * @throws IdentityException
+     */
+    public void addUserIdentityManager(final String name, final UserIdentityManager manager)
+            throws IdentityException {
+        addSource(new Source(name) {
+            @Override
+            protected int poll(final Calendar date) throws IdentityException {
+                List<UserIdentity> users = manager.getModifiedUserIdentities(date);
+                if (users == null || users.isEmpty()) {
+                    return 0;
+                }
+                users = Collections.unmodifiableList(users);
+                for (final ChangeSubscriber subscriber : ChangePollingScheduler.this.subscribers) {
+                    subscriber.userIdentitiesChanged(getName(), users);
+                }
+                return users.size();
+            }
+        });
+    }
+
+    /**
+     * Returns the current polling interval of a source in milliseconds, or <code>-1</code> if
+     * the source does not exist
+     * 
+     * @param name
+     *            Name of the source
+     * @return long
+     */
+    public long getInterval(final String name) {
+        final Source source = this.sources.get(name);
+        if (source == null) {
+            return -1;
+        }
+        return source.interval;
+    }
+
+    /**
+     * Returns the names of the sources
+     * 
+     * @return List<String>
+     */
+    public List<String> getSourceNames() {
+        return new ArrayList<String>(this.sources.keySet());
+    }
+
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    private Calendar loadCheckpoint(final String name, final long now) throws IdentityException {
+        final CheckpointStore store = this.checkpointStore;
+        if (store != null) {
+            final ChangeToken token = store.getCheckpoint(name);
+            if (token != null && token.getCalendarValue() != null) {
+                return token.getCalendarValue();
+            }
+        }
+        final Calendar date = Calendar.getInstance();
+        date.setTimeInMillis(now);
+        return date;
+    }
+
+    /**
+     * Removes a source, its checkpoint is kept
+     * 
+     * @param name
+     *            Name of the source
+     */
+    public synchronized void removeSource(final String name) {
+        final Source source = this.sources.remove(name);
+        if (source != null && source.future != null) {
+            source.future.cancel(false);
+        }
+    }
+
+    public void removeSubscriber(final ChangeSubscriber subscriber) {
+        this.subscribers.remove(subscriber);
+    }
+
+    /*
+     * The leases are renewed three times per lease duration
+     */
+    private synchronized void schedule(final PartitionCoordinator coordinator) {
+        final long period = Math.max(1, coordinator.leases.getDuration() / 3);
+        coordinator.future = this.executor.scheduleWithFixedDelay(coordinator, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void schedule(final Source source, final long interval) {
+        if (!this.running || this.sources.get(source.getName()) != source) {
+            return;
+        }
+        final long jitter = (long) (interval * JITTER * ((this.random.nextDouble() * 2) - 1));
+        source.future = this.executor.schedule(source, Math.max(0, interval + jitter), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Defines the store of the checkpoints of the sources
+     * 
+     * @param store
+     *            CheckpointStore
+     */
+    public void setCheckpointStore(final CheckpointStore store) {
+        this.checkpointStore = store;
+    }
+
+    /**
+     * Defines the limits of the polling interval
+     * 
+     * @param min
+     *            Minimum interval in milliseconds
+     * @param max
+     *            Maximum interval in milliseconds
+     */
+    public void setInterval(final long min, final long max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("invalid polling interval");
+        }
+        this.minInterval = min;
+        this.maxInterval = max;
+    }
+
+    /**
+     * Defines the milliseconds that every poll goes back from the time of the previous one, to
+     * cover the differences between the clocks and the changes committed during the poll. The
+     * changes of the overlap are published twice
+     * 
+     * @param milliseconds
+     *            long
+     */
+    public void setOverlap(final long milliseconds) {
+        this.overlap = milliseconds;
+    }
+
+    /**
+     * Starts polling all the sources
+     */
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        for (final Source source : this.sources.values()) {
+            schedule(source, (long) (this.random.nextDouble() * this.minInterval));
+        }
+        for (final PartitionCoordinator coordinator : this.coordinators) {
+            schedule(coordinator);
+        }
+    }
+
+    /**
+     * Stops polling. A poll in progress finishes, but it is not scheduled again. The leases of the
+     * partitions are released, so other nodes take them without waiting for the expiration
+     */
+    public void stop() {
+        synchronized (this) {
+            this.running = false;
+            for (final PartitionCoordinator coordinator : this.coordinators) {
+                if (coordinator.future != null) {
+                    coordinator.future.cancel(false);
+                    coordinator.future = null;
+                }
+            }
+            for (final Source source : this.sources.values()) {
+                if (source.future != null) {
+                    source.future.cancel(false);
+                    source.future = null;
+                }
+            }
+        }
+        /*
+         * Outside of the lock of the scheduler, a coordinator removes sources holding its own lock
+         */
+        for (final PartitionCoordinator coordinator : this.coordinators) {
+            coordinator.releaseAll();
+        }
+    }
+
+    private void storeCheckpoint(final String name, final Calendar date) throws IdentityException {
+        final CheckpointStore store = this.checkpointStore;
+        if (store != null) {
+            store.setCheckpoint(name, ChangeToken.valueOf(name, date));
+        }
+    }
+}
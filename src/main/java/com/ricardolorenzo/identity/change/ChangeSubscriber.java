@@ -0,0 +1,55 @@
+/*
+ * ChangeSubscriber class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.change;
+
+import java.util.List;
+
+import com.ricardolorenzo.identity.IdentityException;
+import com.ricardolorenzo.identity.group.GroupIdentity;
+import com.ricardolorenzo.identity.user.UserIdentity;
+
+/**
+ * Receives the identities changed on the sources polled by a <code>ChangePollingScheduler</code>
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public interface ChangeSubscriber {
+    /**
+     * Process the groups changed on a source. If the groups can not be processed, the same
+     * changes are polled again
+     * 
+     * @param source
+     *            Name of the source
+     * @param groups
+     *            Groups changed
+     * @throws IdentityException
+     */
+    public void groupIdentitiesChanged(String source, List<GroupIdentity> groups) throws IdentityException;
+
+    /**
+     * Process the users changed on a source. If the users can not be processed, the same
+     * changes are polled again
+     * 
+     * @param source
+     *            Name of the source
+     * @param users
+     *            Users changed
+     * @throws IdentityException
+     */
+    public void userIdentitiesChanged(String source, List<UserIdentity> users) throws IdentityException;
+}
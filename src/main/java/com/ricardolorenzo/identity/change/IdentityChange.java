@@ -0,0 +1,135 @@
+/*
+ * IdentityChange class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.change;
+
+import com.ricardolorenzo.identity.Identity;
+import com.ricardolorenzo.identity.group.GroupIdentity;
+
+/**
+ * Net change of one identity of a source
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class IdentityChange {
+    public static final int ADD = 1;
+    public static final int MODIFY = 2;
+    public static final int DELETE = 3;
+    private final int type;
+    private final String source;
+    private final Identity identity;
+
+    /**
+     * Creates a change
+     * 
+     * @param type
+     *            <code>ADD</code>, <code>MODIFY</code> or <code>DELETE</code>
+     * @param source
+     *            Name of the source
+     * @param identity
+     *            UserIdentity or GroupIdentity, with the attributes after the change
+     */
+    public IdentityChange(final int type, final String source, final Identity identity) {
+        switch (type) {
+            case ADD:
+            case MODIFY:
+            case DELETE:
+                break;
+            default:
+                throw new IllegalArgumentException("invalid change type");
+        }
+        if (identity == null || identity.getID() == null) {
+            throw new IllegalArgumentException("invalid identity");
+        }
+        this.type = type;
+        this.source = source;
+        this.identity = identity;
+    }
+
+    public Identity getIdentity() {
+        return this.identity;
+    }
+
+    /**
+     * Returns the key of the identity, the changes with the same key are about the same identity
+     * 
+     * @return String
+     */
+    public String getKey() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(this.identity instanceof GroupIdentity ? "group:" : "user:");
+        sb.append(this.source);
+        sb.append(":");
+        sb.append(this.identity.getID());
+        return sb.toString();
+    }
+
+    public String getSource() {
+        return this.source;
+    }
+
+    public int getType() {
+        return this.type;
+    }
+
+    public boolean isGroup() {
+        return this.identity instanceof GroupIdentity;
+    }
+
+    /**
+     * Merges this change with a later change of the same identity. Returns <code>null</code> if
+     * the changes cancel each other, like an identity added and deleted
+     * 
+     * @param next
+     *            Later change
+     * @return IdentityChange
+     */
+    public IdentityChange merge(final IdentityChange next) {
+        switch (this.type) {
+            case ADD:
+                if (next.type == DELETE) {
+                    return null;
+                }
+                return new IdentityChange(ADD, next.source, next.identity);
+            case DELETE:
+                if (next.type == DELETE) {
+                    return next;
+                }
+                /*
+                 * Deleted and added again, the destination has the old identity
+                 */
+                return new IdentityChange(MODIFY, next.source, next.identity);
+            default:
+                if (next.type == ADD) {
+                    return new IdentityChange(MODIFY, next.source, next.identity);
+                }
+                return next;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (this.type) {
+            case ADD:
+                return "add " + getKey();
+            case DELETE:
+                return "delete " + getKey();
+            default:
+                return "modify " + getKey();
+        }
+    }
+}
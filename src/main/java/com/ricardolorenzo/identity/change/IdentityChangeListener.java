@@ -0,0 +1,40 @@
+/*
+ * IdentityChangeListener class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.change;
+
+import java.util.List;
+
+import com.ricardolorenzo.identity.IdentityException;
+
+/**
+ * Receives the net changes of the identities emitted by a <code>ChangeCoalescer</code>
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public interface IdentityChangeListener {
+    /**
+     * Process a batch of changes. There is only one change per identity on every batch, and the
+     * batches are received in order. If the changes can not be processed, they are received
+     * again merged with the later changes of the same identities
+     * 
+     * @param changes
+     *            Changes
+     * @throws IdentityException
+     */
+    public void identitiesChanged(List<IdentityChange> changes) throws IdentityException;
+}
@@ -0,0 +1,138 @@
+/*
+ * CheckpointStore class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.checkpoint;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import com.ricardolorenzo.db.DBConnectionManager;
+import com.ricardolorenzo.db.DBException;
+import com.ricardolorenzo.identity.ChangeToken;
+import com.ricardolorenzo.identity.IdentityException;
+
+/**
+ * Durable store of the high-water marks of the change sources. Every consumer of changes keeps a
+ * checkpoint with its own name: the <code>highestCommittedUSN</code> of a domain controller, the
+ * time of the last modification read, the cookie of a Content Synchronization or the resume token
+ * of a MongoDB change stream, always as a <code>ChangeToken</code>.
+ * 
+ * The checkpoints must be stored after the changes are committed on the destination. Several
+ * checkpoints can be stored at once with <code>setCheckpoints()</code>, either all of them are
+ * stored or none, so a restart resumes exactly where the last batch stopped.
+ * 
+ * The store is created with the following properties
+ * 
+ * <ul>
+ * <li>type: <code>file</code> (default) or <code>jdbc</code></li>
+ * <li>checkpoint.file: file of the <code>file</code> store</li>
+ * <li>checkpoint.table: table of the <code>jdbc</code> store, <code>identity_checkpoint</code> by
+ * default. The database is configured with the properties of <code>DBConnectionManager</code></li>
+ * </ul>
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public abstract class CheckpointStore {
+    public static final String CHECKPOINT_STORE_FILE = "file";
+    public static final String CHECKPOINT_STORE_JDBC = "jdbc";
+
+    public static final CheckpointStore getInstance(final Properties conf) throws IdentityException {
+        if (conf == null) {
+            throw new IdentityException("invalid checkpoint store configuration");
+        }
+        String type = conf.getProperty("type");
+        if (type == null) {
+            type = CHECKPOINT_STORE_FILE;
+        }
+        switch (type) {
+            case CHECKPOINT_STORE_FILE: {
+                if (conf.getProperty("checkpoint.file") == null) {
+                    throw new IdentityException("checkpoint file not defined");
+                }
+                return new com.ricardolorenzo.identity.checkpoint.impl.CheckpointStoreFile(new File(
+                        conf.getProperty("checkpoint.file")));
+            }
+            case CHECKPOINT_STORE_JDBC: {
+                try {
+                    return new com.ricardolorenzo.identity.checkpoint.impl.CheckpointStoreJDBCDatabase(
+                            new DBConnectionManager(conf), conf.getProperty("checkpoint.table"));
+                } catch (final DBException e) {
+                    throw new IdentityException("database error - " + e.getMessage());
+                }
+            }
+            default: {
+                throw new IdentityException("invalid checkpoint store type");
+            }
+        }
+    }
+
+    /**
+     * Returns the checkpoint stored with a name, or <code>null</code>
+     * 
+     * @param name
+     *            Name of the checkpoint
+     * @return ChangeToken
+     * @throws IdentityException
+     */
+    public ChangeToken getCheckpoint(final String name) throws IdentityException {
+        return getCheckpoints().get(name);
+    }
+
+    /**
+     * Returns all the checkpoints stored, by name
+     * 
+     * @return Map<String, ChangeToken>
+     * @throws IdentityException
+     */
+    public abstract Map<String, ChangeToken> getCheckpoints() throws IdentityException;
+
+    /**
+     * Removes a checkpoint, the next consumer with that name starts from the beginning
+     * 
+     * @param name
+     *            Name of the checkpoint
+     * @throws IdentityException
+     */
+    public void removeCheckpoint(final String name) throws IdentityException {
+        setCheckpoints(Collections.<String, ChangeToken> singletonMap(name, null));
+    }
+
+    /**
+     * Stores a checkpoint
+     * 
+     * @param name
+     *            Name of the checkpoint
+     * @param token
+     *            ChangeToken
+     * @throws IdentityException
+     */
+    public void setCheckpoint(final String name, final ChangeToken token) throws IdentityException {
+        setCheckpoints(Collections.singletonMap(name, token));
+    }
+
+    /**
+     * Stores several checkpoints atomically, either all of them are stored or none. A
+     * <code>null</code> token removes the checkpoint
+     * 
+     * @param checkpoints
+     *            ChangeToken by checkpoint name
+     * @throws IdentityException
+     */
+    public abstract void setCheckpoints(Map<String, ChangeToken> checkpoints) throws IdentityException;
+}
@@ -0,0 +1,127 @@
+/*
+ * CheckpointStoreFile class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.checkpoint.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.ricardolorenzo.identity.ChangeToken;
+import com.ricardolorenzo.identity.IdentityException;
+import com.ricardolorenzo.identity.checkpoint.CheckpointStore;
+
+/**
+ * Stores the checkpoints on a properties file. Every update writes a new file that replaces the
+ * previous one, so the file always contains a complete set of checkpoints
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class CheckpointStoreFile extends CheckpointStore {
+    private final File file;
+    private Map<String, ChangeToken> checkpoints;
+
+    public CheckpointStoreFile(final File file) throws IdentityException {
+        this.file = file;
+        this.checkpoints = read(file);
+    }
+
+    @Override
+    public synchronized Map<String, ChangeToken> getCheckpoints() throws IdentityException {
+        return Collections.unmodifiableMap(this.checkpoints);
+    }
+
+    private static Map<String, ChangeToken> read(final File file) throws IdentityException {
+        final Map<String, ChangeToken> checkpoints = new HashMap<String, ChangeToken>();
+        if (!file.exists()) {
+            return checkpoints;
+        }
+        final Properties properties = new Properties();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            properties.load(input);
+        } catch (final IOException e) {
+            throw new IdentityException("cannot read checkpoint file - " + e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (final IOException e) {
+                    // nothing
+                }
+            }
+        }
+        for (final String name : properties.stringPropertyNames()) {
+            checkpoints.put(name, ChangeToken.parse(properties.getProperty(name)));
+        }
+        return checkpoints;
+    }
+
+    @Override
+    public synchronized void setCheckpoints(final Map<String, ChangeToken> checkpoints) throws IdentityException {
+        final Map<String, ChangeToken> updated = new HashMap<String, ChangeToken>(this.checkpoints);
+        for (final Map.Entry<String, ChangeToken> checkpoint : checkpoints.entrySet()) {
+            if (checkpoint.getValue() == null) {
+                updated.remove(checkpoint.getKey());
+            } else {
+                updated.put(checkpoint.getKey(), checkpoint.getValue());
+            }
+        }
+        write(updated);
+        this.checkpoints = updated;
+    }
+
+    private void write(final Map<String, ChangeToken> checkpoints) throws IdentityException {
+        final Properties properties = new Properties();
+        for (final Map.Entry<String, ChangeToken> checkpoint : checkpoints.entrySet()) {
+            properties.setProperty(checkpoint.getKey(), checkpoint.getValue().toString());
+        }
+        final File tmp = new File(this.file.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(tmp);
+            properties.store(output, null);
+            output.getFD().sync();
+            output.close();
+            output = null;
+            /*
+             * The previous file is never deleted before the new one is in place, if the file
+             * system can not replace it atomically the update fails
+             */
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            throw new IdentityException("cannot write checkpoint file - " + e.getMessage());
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (final IOException e) {
+                    // nothing
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * CheckpointStoreJDBCDatabase class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.checkpoint.impl;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ricardolorenzo.db.DBConnection;
+import com.ricardolorenzo.db.DBConnectionManager;
+import com.ricardolorenzo.db.DBException;
+import com.ricardolorenzo.identity.ChangeToken;
+import com.ricardolorenzo.identity.IdentityException;
+import com.ricardolorenzo.identity.checkpoint.CheckpointStore;
+
+/**
+ * Stores the checkpoints on a database table, every update runs on a single transaction. The
+ * table must exist
+ * 
+ * <pre>
+ * CREATE TABLE identity_checkpoint (
+ *     name VARCHAR(255) NOT NULL PRIMARY KEY,
+ *     token VARCHAR(4000) NOT NULL,
+ *     modified TIMESTAMP
+ * )
+ * </pre>
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class CheckpointStoreJDBCDatabase extends CheckpointStore {
+    public static final String DEFAULT_TABLE = "identity_checkpoint";
+    private final DBConnectionManager dbm;
+    private final String table;
+
+    public CheckpointStoreJDBCDatabase(final DBConnectionManager dbm, final String table) {
+        this.dbm = dbm;
+        this.table = (table == null || table.isEmpty()) ? DEFAULT_TABLE : table;
+    }
+
+    /*
+     * Column names are returned in upper case by some drivers
+     */
+    private static Object getColumn(final Map<String, Object> row, final String column) {
+        for (final Map.Entry<String, Object> value : row.entrySet()) {
+            if (column.equalsIgnoreCase(value.getKey())) {
+                return value.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, ChangeToken> getCheckpoints() throws IdentityException {
+        final Map<String, ChangeToken> checkpoints = new HashMap<String, ChangeToken>();
+        final DBConnection dbconnection = this.dbm.getConnection();
+        try {
+            final List<Map<String, Object>> rows = dbconnection.query("SELECT name, token FROM " + this.table);
+            for (final Map<String, Object> row : rows) {
+                checkpoints.put(String.valueOf(getColumn(row, "name")),
+                        ChangeToken.parse(String.valueOf(getColumn(row, "token"))));
+            }
+        } catch (final DBException e) {
+            throw new IdentityException("database error - " + e.getMessage());
+        }
+        return checkpoints;
+    }
+
+    @Override
+    public ChangeToken getCheckpoint(final String name) throws IdentityException {
+        final DBConnection dbconnection = this.dbm.getConnection();
+        try {
+            dbconnection.setObject(0, name);
+            final List<Map<String, Object>> rows = dbconnection.query("SELECT token FROM " + this.table
+                    + " WHERE name = ?");
+            if (rows.isEmpty()) {
+                return null;
+            }
+            return ChangeToken.parse(String.valueOf(getColumn(rows.get(0), "token")));
+        } catch (final DBException e) {
+            throw new IdentityException("database error - " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void setCheckpoints(final Map<String, ChangeToken> checkpoints) throws IdentityException {
+        final DBConnection dbconnection = this.dbm.getConnection();
+        try {
+            dbconnection.transactionInit();
+            for (final Map.Entry<String, ChangeToken> checkpoint : checkpoints.entrySet()) {
+                dbconnection.setObject(0, checkpoint.getKey());
+                dbconnection.transactionQuery("DELETE FROM " + this.table + " WHERE name = ?");
+                if (checkpoint.getValue() != null) {
+                    dbconnection.setObject(0, checkpoint.getKey());
+                    dbconnection.setObject(1, checkpoint.getValue().toString());
+                    dbconnection.setObject(2, Calendar.getInstance());
+                    dbconnection.transactionQuery("INSERT INTO " + this.table
+                            + " (name, token, modified) VALUES (?, ?, ?)");
+                }
+            }
+            dbconnection.transactionCommit();
+        } catch (final DBException e) {
+            try {
+                dbconnection.transactionRollback();
+            } catch (final DBException e2) {
+                // nothing
+            }
+            throw new IdentityException("database error - " + e.getMessage());
+        } finally {
+            try {
+                dbconnection.transactionClose();
+            } catch (final DBException e) {
+                // nothing
+            }
+        }
+    }
+}
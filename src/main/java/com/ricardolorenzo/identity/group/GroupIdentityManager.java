@@ -33,6 +33,18 @@ public abstract class GroupIdentityManager {
 
     public abstract void addGroupUserIdentityMember(String group, String user) throws IdentityException;
 
+    /**
+     * Count the groups that match, the same groups returned by <code>searchGroup()</code>.
+     * Implementations can count them without loading the groups
+     * 
+     * @param match
+     * @return The number of groups
+     * @throws Exception
+     */
+    public long countGroupIdentities(final String match) throws Exception {
+        return searchGroup(match).size();
+    }
+
     public abstract void deleteGroupIdentity(GroupIdentity group) throws IdentityException;
 
     private final String getAttributeFromMap(final Map<String, String> attributeMap, final Identity group,
@@ -20,6 +20,7 @@ package com.ricardolorenzo.identity.group.impl;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -28,10 +29,12 @@ import java.util.TreeMap;
 
 import com.ricardolorenzo.directory.DirectoryException;
 import com.ricardolorenzo.directory.DirectoryIdentityManager;
+import com.ricardolorenzo.directory.ldap.LDAPAttributeValueIterator;
 import com.ricardolorenzo.directory.ldap.LDAPConnection;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryEntry;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryQuery;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryWriter;
+import com.ricardolorenzo.directory.ldap.LDAPException;
 import com.ricardolorenzo.identity.Identity;
 import com.ricardolorenzo.identity.IdentityAttributeMap;
 import com.ricardolorenzo.identity.IdentityException;
@@ -49,6 +52,7 @@ public class GroupIdentityManagerMSAD extends GroupIdentityManager {
     private final static int MODIFICATION_TYPE_ANY = 0;
     private final static int MODIFICATION_TYPE_ADD = 1;
     private final static int MODIFICATION_TYPE_UPDATE = 2;
+    private final static int MEMBER_BATCH_SIZE = 1000;
 
     private static final String getOrganizationalUnitName(final String DN) {
         String _name = "";
@@ -119,6 +123,20 @@ public class GroupIdentityManagerMSAD extends GroupIdentityManager {
         }
     }
 
+    @Override
+    public long countGroupIdentities(final String match) throws IdentityException {
+        if (match == null) {
+            return 0;
+        }
+        try {
+            this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
+            return this.directoryManager.countIdentities(getSearchQuery(match));
+        } catch (final DirectoryException e) {
+            logError(e);
+            throw new IdentityException(e);
+        }
+    }
+
     private void createBranch(final StringBuilder branch) throws DirectoryException {
         final String _name = getOrganizationalUnitName(branch.toString());
         final Identity i = new LDAPDirectoryEntry(branch.toString());
@@ -235,16 +253,15 @@ public class GroupIdentityManagerMSAD extends GroupIdentityManager {
     private void getGroupMembers(final GroupIdentity group, final List<String> checkedGroups, final boolean recursive,
             final Map<String, GroupIdentity> groups) throws IdentityException {
         if (group.hasAttribute("member")) {
-            for (final Object o : group.getAttribute("member")) {
-                try {
-                    final Identity i = this.directoryManager.getIdentity(String.valueOf(o));
+            try {
+                for (final Identity i : getMemberIdentities(group)) {
                     if (i.hasAttributeValue("objectClass", "group") && !i.hasAttribute("sAMAccountName")) {
                         final GroupIdentity memberGroup = getGroupIdentity(i);
                         groups.put(group.getID(), memberGroup);
                     }
-                } catch (final DirectoryException e) {
-                    // nothing
                 }
+            } catch (final DirectoryException e) {
+                // nothing
             }
         }
         if (recursive) {
@@ -260,16 +277,15 @@ public class GroupIdentityManagerMSAD extends GroupIdentityManager {
     private void getGroupUserMembers(final GroupIdentity group, final List<String> checkedGroups,
             final boolean recursive, final Map<String, UserIdentity> users) throws IdentityException {
         if (group.hasAttribute("member")) {
-            for (final Object o : group.getAttribute("member")) {
-                try {
-                    final Identity i = this.directoryManager.getIdentity(String.valueOf(o));
+            try {
+                for (final Identity i : getMemberIdentities(group)) {
                     if (i.hasAttributeValue("objectClass", "person") && i.hasAttribute("sAMAccountName")) {
                         final UserIdentity user = this.userManager.getUserIdentity(i);
                         users.put(user.getID(), user);
                     }
-                } catch (final DirectoryException e) {
-                    // nothing
                 }
+            } catch (final DirectoryException e) {
+                // nothing
             }
         }
         if (recursive) {
@@ -282,6 +298,43 @@ public class GroupIdentityManagerMSAD extends GroupIdentityManager {
         }
     }
 
+    /*
+     * Reads all the members of the group with a few bulk requests. The member attribute is read
+     * from the directory one range at a time, Active Directory does not return more than
+     * MaxValRange values with the group entry
+     */
+    private Collection<Identity> getMemberIdentities(final GroupIdentity group) throws DirectoryException {
+        final List<Identity> identities = new ArrayList<Identity>();
+        final List<String> members = new ArrayList<String>();
+        try {
+            final LDAPAttributeValueIterator values = this.directoryManager.getIdentityAttributeValues(
+                    group.getAttributeFirstStringValue("dn"), "member");
+            while (values.hasMore()) {
+                members.add(String.valueOf(values.next()));
+                if (members.size() >= MEMBER_BATCH_SIZE) {
+                    identities.addAll(this.directoryManager.getIdentities(members, null).values());
+                    members.clear();
+                }
+            }
+        } catch (final LDAPException e) {
+            if (e.getMessage() == null) {
+                throw new DirectoryException("unknown connection error - " + e.getClass());
+            }
+            throw new DirectoryException(e.getMessage());
+        }
+        if (!members.isEmpty()) {
+            identities.addAll(this.directoryManager.getIdentities(members, null).values());
+        }
+        return identities;
+    }
+
+    private LDAPDirectoryQuery getSearchQuery(final String match) {
+        final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+        q.addCondition("objectclass", "group", LDAPDirectoryQuery.EXACT);
+        q.addCondition("name", match, LDAPDirectoryQuery.CONTAINS);
+        return q;
+    }
+
     @Override
     public List<GroupIdentity> getModifiedGroupIdentities(final Calendar date) throws IdentityException {
         // TODO Auto-generated method stub
@@ -376,10 +429,8 @@ public class GroupIdentityManagerMSAD extends GroupIdentityManager {
             return groups;
         }
         try {
-            final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
             this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
-            q.addCondition("objectclass", "group", LDAPDirectoryQuery.EXACT);
-            q.addCondition("name", match, LDAPDirectoryQuery.CONTAINS);
+            final LDAPDirectoryQuery q = getSearchQuery(match);
             for (final Identity group : this.directoryManager.sortedSearch(q, "name")) {
                 groups.add(getGroupIdentity(group));
             }
@@ -10,12 +10,16 @@ import com.ricardolorenzo.identity.IdentityException;
 public class ScriptCollection {
     public static final String FIELD_LAST_MODIFIED = "@lastmodified@";
     public static final String FIELD_MATCH = "@match@";
+    public static final String FIELD_LIMIT = "@limit@";
+    public static final String FIELD_SEQUENCE = "@sequence@";
 
     public static final String USER_ADD = "user_add";
+    public static final String USER_CHANGES = "user_changes";
     public static final String USER_DELETE = "user_delete";
     public static final String USER_READ = "user_read";
     public static final String USER_SEARCH = "user_search";
     public static final String USER_SEARCH_MODIFIED = "user_search_modified";
+    public static final String USER_SEARCH_PREFIX = "user_search_prefix";
     public static final String USER_UPDATE = "user_update";
     public static final String GROUP_ADD = "group_add";
     public static final String GROUP_DELETE = "group_delete";
@@ -58,6 +62,9 @@ public class ScriptCollection {
             case USER_ADD: {
                 return true;
             }
+            case USER_CHANGES: {
+                return true;
+            }
             case USER_DELETE: {
                 return true;
             }
@@ -70,6 +77,9 @@ public class ScriptCollection {
             case USER_SEARCH_MODIFIED: {
                 return true;
             }
+            case USER_SEARCH_PREFIX: {
+                return true;
+            }
             case USER_UPDATE: {
                 return true;
             }
@@ -0,0 +1,96 @@
+/*
+ * UserIdentityChanges class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.user;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ricardolorenzo.identity.ChangeToken;
+
+/**
+ * Users changed since a <code>ChangeToken</code>, and the token to use on the next request. When
+ * the previous token cannot be used anymore all the users are returned as modified, and
+ * <code>isFullSync()</code> returns <code>true</code>
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class UserIdentityChanges {
+    private final List<UserIdentity> modified;
+    private final List<UserIdentity> deleted;
+    private ChangeToken token;
+    private boolean fullSync;
+    private boolean moreChanges;
+
+    public UserIdentityChanges() {
+        this.modified = new ArrayList<UserIdentity>();
+        this.deleted = new ArrayList<UserIdentity>();
+        this.fullSync = false;
+        this.moreChanges = false;
+    }
+
+    public void addDeleted(final UserIdentity user) {
+        this.deleted.add(user);
+    }
+
+    public void addModified(final UserIdentity user) {
+        this.modified.add(user);
+    }
+
+    /**
+     * Users removed from the source. Only the attributes kept by the source after the deletion
+     * are available
+     * 
+     * @return List<UserIdentity>
+     */
+    public List<UserIdentity> getDeleted() {
+        return this.deleted;
+    }
+
+    public List<UserIdentity> getModified() {
+        return this.modified;
+    }
+
+    public ChangeToken getToken() {
+        return this.token;
+    }
+
+    public boolean isFullSync() {
+        return this.fullSync;
+    }
+
+    /**
+     * The changes are read in batches, and there are more changes after the token
+     * 
+     * @return boolean
+     */
+    public boolean hasMoreChanges() {
+        return this.moreChanges;
+    }
+
+    public void setFullSync(final boolean fullSync) {
+        this.fullSync = fullSync;
+    }
+
+    public void setMoreChanges(final boolean moreChanges) {
+        this.moreChanges = moreChanges;
+    }
+
+    public void setToken(final ChangeToken token) {
+        this.token = token;
+    }
+}
@@ -18,16 +18,23 @@ package com.ricardolorenzo.identity.user;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 import com.ricardolorenzo.db.DBException;
 import com.ricardolorenzo.directory.DirectoryException;
+import com.ricardolorenzo.identity.ChangeToken;
 import com.ricardolorenzo.identity.Identity;
 import com.ricardolorenzo.identity.IdentityAttributeMap;
 import com.ricardolorenzo.identity.IdentityException;
@@ -55,6 +62,11 @@ public abstract class UserIdentityManager {
     public static final int PASSWORD_SHA384_BASE64 = 7;
     public static final int PASSWORD_SHA512_BASE64 = 8;
 
+    /**
+     * Time limit in milliseconds of every request of <code>suggestUserIdentities()</code>
+     */
+    protected static final int SUGGEST_TIME_LIMIT = 2000;
+
     /**
      * Generate a base64 string with the password hash
      * 
@@ -317,6 +329,18 @@ public abstract class UserIdentityManager {
      */
     public abstract void addUserIdentity(UserIdentity user) throws IdentityException;
 
+    /**
+     * Count the users that match, the same users returned by <code>searchUserIdentity()</code>.
+     * Implementations can count them without loading the users
+     * 
+     * @param match
+     * @return The number of users
+     * @throws IdentityException
+     */
+    public long countUserIdentities(final String match) throws IdentityException {
+        return searchUserIdentity(match).size();
+    }
+
     /**
      * Delete a user
      * 
@@ -325,6 +349,18 @@ public abstract class UserIdentityManager {
      */
     public abstract void deleteUserIdentity(UserIdentity user) throws IdentityException;
 
+    /**
+     * Get the users added, modified or deleted since the position of the token. Use a
+     * <code>null</code> token to get all the users and the first token
+     * 
+     * @param token
+     * @return The changes and the token for the next request
+     * @throws IdentityException
+     */
+    public UserIdentityChanges getChangesSince(final ChangeToken token) throws IdentityException {
+        throw new IdentityException("change tracking not supported by this user identity manager");
+    }
+
     private final String getAttributeFromMap(final Map<String, String> attributeMap, final Identity user,
             final String attributeName) throws IdentityException {
         if (attributeName == null) {
@@ -345,11 +381,59 @@ public abstract class UserIdentityManager {
 
     public abstract List<UserIdentity> getModifiedUserIdentities(Calendar date) throws IdentityException;
 
+    /**
+     * Get the users modified after a date in one of the partitions returned by
+     * <code>getPartitions()</code>
+     * 
+     * @param date
+     * @param partition
+     * @return The modified users of the partition
+     * @throws IdentityException
+     */
+    public List<UserIdentity> getModifiedUserIdentities(final Calendar date, final String partition)
+            throws IdentityException {
+        throw new IdentityException("partitioned change tracking not supported by this user identity manager");
+    }
+
+    /**
+     * Get the partitions of the users. Every user belongs to one partition, and every partition
+     * can be polled for changes on its own, so the polling can be divided between several nodes
+     * 
+     * @return The names of the partitions
+     * @throws IdentityException
+     */
+    public List<String> getPartitions() throws IdentityException {
+        throw new IdentityException("partitioned change tracking not supported by this user identity manager");
+    }
+
     protected final String getReadAttributeFromMap(final Identity user, final String attributeName)
             throws IdentityException {
         return getAttributeFromMap(this.attributeMap.getReadMap(), user, attributeName);
     }
 
+    /**
+     * Returns the names of the attributes needed to load a user with the default and the custom
+     * read maps, plus the attributes used directly by the implementation. Searches can request
+     * only those attributes to the source
+     * 
+     * @param attributes
+     *            Attributes used directly by the implementation
+     * @return String[]
+     */
+    protected final String[] getReadAttributeNames(final String... attributes) {
+        final Set<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        names.addAll(IdentityAttributeMap.getDefaultReadAttributeNames());
+        if (this.attributeMap != null) {
+            names.addAll(this.attributeMap.getReadAttributeNames());
+        }
+        for (final String attribute : attributes) {
+            if (attribute != null) {
+                names.add(attribute);
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
     protected final ScriptCollection getScriptCollection() throws IdentityException {
         return this.scripts;
     }
@@ -433,6 +517,81 @@ public abstract class UserIdentityManager {
 
     public abstract List<UserIdentity> searchUserIdentity(String match) throws IdentityException;
 
+    /**
+     * Orders users by how they match a typed prefix: exact uid first, then uid, cn and mail
+     * prefixes, then the rest, and by cn for the same kind of match. Returns the first users up to
+     * the limit
+     * 
+     * @param users
+     * @param prefix
+     * @param limit
+     * @return The first ranked users
+     */
+    protected final List<UserIdentity> rankUserIdentities(final Collection<UserIdentity> users, final String prefix,
+            final int limit) {
+        final String _prefix = prefix.toLowerCase();
+        final Collator collator = Collator.getInstance();
+        final List<UserIdentity> ranked = new ArrayList<UserIdentity>(users);
+        Collections.sort(ranked, new Comparator<UserIdentity>() {
+            @Override
+            public int compare(final UserIdentity o1, final UserIdentity o2) {
+                final int rank = getRank(o1) - getRank(o2);
+                if (rank != 0) {
+                    return rank;
+                }
+                return collator.compare(getValue(o1, UserIdentity.DEFAULT_ATTRIBUTE_CN),
+                        getValue(o2, UserIdentity.DEFAULT_ATTRIBUTE_CN));
+            }
+
+            private int getRank(final UserIdentity user) {
+                final String uid = getValue(user, UserIdentity.DEFAULT_ATTRIBUTE_UID);
+                if (uid.equals(_prefix)) {
+                    return 0;
+                } else if (uid.startsWith(_prefix)) {
+                    return 1;
+                } else if (getValue(user, UserIdentity.DEFAULT_ATTRIBUTE_CN).startsWith(_prefix)) {
+                    return 2;
+                } else if (getValue(user, UserIdentity.DEFAULT_ATTRIBUTE_MAIL).startsWith(_prefix)) {
+                    return 3;
+                }
+                return 4;
+            }
+
+            private String getValue(final UserIdentity user, final String attribute) {
+                if (!user.hasAttribute(attribute)) {
+                    return "";
+                }
+                return String.valueOf(user.getAttributeFirstStringValue(attribute)).toLowerCase();
+            }
+        });
+        if (ranked.size() > limit) {
+            return new ArrayList<UserIdentity>(ranked.subList(0, limit));
+        }
+        return ranked;
+    }
+
+    /**
+     * Search the users that start with a typed prefix, for typeahead fields. Returns at most
+     * <code>limit</code> users, ranked by exact or prefix match on uid, cn and mail.
+     * Implementations can stop reading the source once they have enough users
+     * 
+     * @param prefix
+     * @param limit
+     *            Maximum number of users
+     * @return List of users
+     * @throws IdentityException
+     */
+    public List<UserIdentity> suggestUserIdentities(final String prefix, final int limit) throws IdentityException {
+        if ((prefix == null) || prefix.isEmpty() || (limit <= 0)) {
+            return new ArrayList<UserIdentity>();
+        }
+        final List<UserIdentity> users = searchUserIdentity(prefix);
+        if (users == null) {
+            return new ArrayList<UserIdentity>();
+        }
+        return rankUserIdentities(users, prefix, limit);
+    }
+
     private void setAttributeMap(final IdentityAttributeMap attributeMap) {
         if (attributeMap != null) {
             this.attributeMap = attributeMap;
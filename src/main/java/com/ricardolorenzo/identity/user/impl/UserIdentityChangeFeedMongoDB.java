@@ -0,0 +1,436 @@
+/*
+ * UserIdentityChangeFeedMongoDB class
+ * 
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.user.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import org.bson.types.BSONTimestamp;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.ricardolorenzo.identity.ChangeToken;
+import com.ricardolorenzo.identity.IdentityException;
+import com.ricardolorenzo.identity.change.IdentityChange;
+import com.ricardolorenzo.identity.change.IdentityChangeListener;
+import com.ricardolorenzo.identity.checkpoint.CheckpointStore;
+import com.ricardolorenzo.identity.user.UserIdentity;
+
+/**
+ * Long-lived consumer of the inserts, updates and deletes of the user documents of a MongoDB
+ * collection. The operations are read from the oplog of the replica set with a tailable cursor,
+ * so the collection is not scanned by modification time. Updated documents are read again, so the
+ * listeners receive the whole user. The ID of the users is the <code>_id</code> of the documents.
+ * 
+ * The position on the oplog is the resume token. If a <code>CheckpointStore</code> is defined,
+ * the token of the last change processed by all the listeners is stored periodically and the feed
+ * is resumed from that change after a restart, so a change can be received twice. If the oplog
+ * no longer contains the stored position, the changes in between are lost and a warning is
+ * logged. Without a stored token the feed starts at the end of the oplog, and that position is
+ * stored at once, so the reconnections do not skip the changes made in between.
+ * 
+ * The MongoDB server must be a member of a replica set, a single node replica set is enough.
+ * 
+ * @author Ricardo Lorenzo
+ * 
+ */
+public class UserIdentityChangeFeedMongoDB implements Runnable {
+    public static final long DEFAULT_RETRY_INTERVAL = 10000L;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000L;
+    private static final Logger log = Logger.getLogger(UserIdentityChangeFeedMongoDB.class.getName());
+    private static final String OPLOG_DATABASE = "local";
+    private static final String OPLOG_COLLECTION = "oplog.rs";
+    private final UserIdentityManagerMongoDB manager;
+    private final MongoClient mongoClient;
+    private final String database;
+    private final String collection;
+    private final String idPrefix;
+    private final List<IdentityChangeListener> listeners;
+    private volatile BSONTimestamp position;
+    private volatile CheckpointStore checkpointStore;
+    private volatile String checkpointName;
+    private volatile long checkpointInterval;
+    private volatile long retryInterval;
+    private volatile boolean running;
+    private volatile DBCursor cursor;
+    private long checkpointTime;
+    private BSONTimestamp checkpointPosition;
+    private Thread thread;
+
+    /**
+     * Creates a feed of the documents of a collection
+     * 
+     * @param manager
+     *            UserIdentityManagerMongoDB that converts the documents to users
+     * @param mongoClient
+     *            MongoClient
+     * @param database
+     *            Name of the database of the collection
+     * @param collection
+     *            Name of the collection
+     * @param idPrefix
+     *            Prefix of the <code>_id</code> of the documents received, <code>null</code> for
+     *            all the documents
+     */
+    protected UserIdentityChangeFeedMongoDB(final UserIdentityManagerMongoDB manager, final MongoClient mongoClient,
+            final String database, final String collection, final String idPrefix) {
+        this.manager = manager;
+        this.mongoClient = mongoClient;
+        this.database = database;
+        this.collection = collection;
+        this.idPrefix = idPrefix;
+        this.listeners = new CopyOnWriteArrayList<IdentityChangeListener>();
+        this.checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        this.retryInterval = DEFAULT_RETRY_INTERVAL;
+        this.running = false;
+    }
+
+    public void addListener(final IdentityChangeListener listener) {
+        this.listeners.add(listener);
+    }
+
+    private void close() {
+        final DBCursor c = this.cursor;
+        this.cursor = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (final RuntimeException e) {
+                // nothing
+            }
+        }
+    }
+
+    /*
+     * Reads the oplog until the cursor is closed. The cursor always starts with the entry of the
+     * position, whatever its namespace is, so it is not closed by the server when there are no
+     * changes of the collection. Returns false if the cursor did not return any entry
+     */
+    private boolean consume() throws IdentityException {
+        final DBCollection oplog = this.mongoClient.getDB(OPLOG_DATABASE).getCollection(OPLOG_COLLECTION);
+        BSONTimestamp start = this.position;
+        if (start == null) {
+            start = loadPosition();
+        }
+        if (start == null) {
+            start = getLastPosition(oplog);
+            if (start == null) {
+                throw new IdentityException("the oplog is empty");
+            }
+            this.position = start;
+            storePosition(true);
+        }
+        final BasicDBObject query = new BasicDBObject("ts", new BasicDBObject("$gte", start)).append("$or",
+                Arrays.<DBObject> asList(new BasicDBObject("ns", getNamespace()), new BasicDBObject("ts", start)));
+        final DBCursor c = oplog.find(query).addOption(Bytes.QUERYOPTION_TAILABLE)
+                .addOption(Bytes.QUERYOPTION_AWAITDATA).addOption(Bytes.QUERYOPTION_OPLOGREPLAY)
+                .addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+        this.cursor = c;
+        final DBCollection documents = this.mongoClient.getDB(this.database).getCollection(this.collection);
+        boolean first = true;
+        while (this.running && c.hasNext()) {
+            final DBObject entry = c.next();
+            final BSONTimestamp ts = (BSONTimestamp) entry.get("ts");
+            if (first) {
+                /*
+                 * The first entry must be the one of the position, otherwise the oplog has been
+                 * truncated after it
+                 */
+                first = false;
+                if (isSamePosition(ts, start)) {
+                    continue;
+                }
+                log.log(java.util.logging.Level.WARNING, "oplog position of [" + getNamespace()
+                        + "] not found, changes can be lost");
+            }
+            final IdentityChange change = getChange(documents, entry);
+            if (change != null) {
+                deliver(change);
+            }
+            this.position = ts;
+            storePosition(false);
+        }
+        if (this.running && first && oplog.findOne(new BasicDBObject("ts", start)) == null) {
+            /*
+             * The oplog has been truncated after the position and there are no changes of the
+             * collection, the feed continues from the end of the oplog
+             */
+            log.log(java.util.logging.Level.WARNING, "oplog position of [" + getNamespace()
+                    + "] not found, changes can be lost");
+            this.position = getLastPosition(oplog);
+            storePosition(true);
+            return true;
+        }
+        return !first;
+    }
+
+    private void deliver(final IdentityChange change) throws IdentityException {
+        final List<IdentityChange> changes = Collections.singletonList(change);
+        for (final IdentityChangeListener listener : this.listeners) {
+            listener.identitiesChanged(changes);
+        }
+    }
+
+    private IdentityChange getChange(final DBCollection documents, final DBObject entry) throws IdentityException {
+        final String op = String.valueOf(entry.get("op"));
+        if ("i".equals(op)) {
+            final DBObject document = (DBObject) entry.get("o");
+            if (document == null || !isIncluded(document.get("_id"))) {
+                return null;
+            }
+            return new IdentityChange(IdentityChange.ADD, getNamespace(), getUserIdentity(document));
+        } else if ("u".equals(op)) {
+            final DBObject selector = (DBObject) entry.get("o2");
+            if (selector == null || !isIncluded(selector.get("_id"))) {
+                return null;
+            }
+            final DBObject document = documents.findOne(new BasicDBObject("_id", selector.get("_id")));
+            if (document == null) {
+                /*
+                 * Deleted after the update, the delete comes later on the oplog
+                 */
+                return null;
+            }
+            return new IdentityChange(IdentityChange.MODIFY, getNamespace(), getUserIdentity(document));
+        } else if ("d".equals(op)) {
+            final DBObject document = (DBObject) entry.get("o");
+            if (document == null || !isIncluded(document.get("_id"))) {
+                return null;
+            }
+            final UserIdentity user = new UserIdentity();
+            user.setID(String.valueOf(document.get("_id")));
+            user.setAttribute("_id", document.get("_id"));
+            return new IdentityChange(IdentityChange.DELETE, getNamespace(), user);
+        }
+        return null;
+    }
+
+    public long getCheckpointInterval() {
+        return this.checkpointInterval;
+    }
+
+    private static BSONTimestamp getLastPosition(final DBCollection oplog) {
+        final DBCursor c = oplog.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+        try {
+            if (c.hasNext()) {
+                return (BSONTimestamp) c.next().get("ts");
+            }
+        } finally {
+            c.close();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the namespace of the collection on the oplog, <code>database.collection</code>
+     * 
+     * @return String
+     */
+    public String getNamespace() {
+        return this.database + "." + this.collection;
+    }
+
+    /**
+     * Returns the resume token of the last change processed, or <code>null</code>
+     * 
+     * @return ChangeToken
+     */
+    public ChangeToken getResumeToken() {
+        final BSONTimestamp ts = this.position;
+        if (ts == null) {
+            return null;
+        }
+        return new ChangeToken(getNamespace(), ts.getTime() + ":" + ts.getInc());
+    }
+
+    public long getRetryInterval() {
+        return this.retryInterval;
+    }
+
+    private UserIdentity getUserIdentity(final DBObject document) throws IdentityException {
+        final UserIdentity user = this.manager.getUserIdentity(document);
+        user.setID(String.valueOf(document.get("_id")));
+        return user;
+    }
+
+    private boolean isIncluded(final Object id) {
+        return id != null && (this.idPrefix == null || String.valueOf(id).startsWith(this.idPrefix));
+    }
+
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    private static boolean isSamePosition(final BSONTimestamp a, final BSONTimestamp b) {
+        return a != null && b != null && a.getTime() == b.getTime() && a.getInc() == b.getInc();
+    }
+
+    private BSONTimestamp loadPosition() throws IdentityException {
+        final CheckpointStore store = this.checkpointStore;
+        if (store == null) {
+            return null;
+        }
+        return parsePosition(store.getCheckpoint(this.checkpointName));
+    }
+
+    private static BSONTimestamp parsePosition(final ChangeToken token) throws IdentityException {
+        if (token == null || token.getValue() == null || token.getValue().isEmpty()) {
+            return null;
+        }
+        final int index = token.getValue().indexOf(':');
+        try {
+            return new BSONTimestamp(Integer.parseInt(token.getValue().substring(0, index)), Integer.parseInt(token
+                    .getValue().substring(index + 1)));
+        } catch (final RuntimeException e) {
+            throw new IdentityException("invalid resume token [" + token + "]");
+        }
+    }
+
+    public void removeListener(final IdentityChangeListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            boolean reopen = false;
+            try {
+                /*
+                 * A cursor closed after returning entries is opened again at once
+                 */
+                reopen = consume();
+            } catch (final Exception e) {
+                if (this.running) {
+                    log.log(java.util.logging.Level.WARNING, "cannot read the changes of [" + getNamespace() + "] - "
+                            + e.getMessage(), e);
+                }
+            } finally {
+                close();
+            }
+            try {
+                storePosition(true);
+            } catch (final IdentityException e) {
+                log.log(java.util.logging.Level.WARNING, "cannot store the resume token of [" + getNamespace()
+                        + "] - " + e.getMessage(), e);
+            }
+            if (!this.running) {
+                break;
+            }
+            if (reopen) {
+                continue;
+            }
+            try {
+                Thread.sleep(this.retryInterval);
+            } catch (final InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Defines the store of the resume token. The feed is resumed from the stored token on the
+     * next start
+     * 
+     * @param store
+     *            CheckpointStore
+     * @param name
+     *            Name of the checkpoint
+     */
+    public void setCheckpointStore(final CheckpointStore store, final String name) {
+        this.checkpointStore = store;
+        this.checkpointName = name;
+        this.position = null;
+    }
+
+    /**
+     * Defines the minimum milliseconds between two updates of the stored resume token
+     * 
+     * @param milliseconds
+     *            long
+     */
+    public void setCheckpointInterval(final long milliseconds) {
+        this.checkpointInterval = milliseconds;
+    }
+
+    /**
+     * Defines the position where the feed starts, it is ignored if the feed is running
+     * 
+     * @param token
+     *            ChangeToken returned by <code>getResumeToken()</code>
+     * @throws IdentityException
+     */
+    public void setResumeToken(final ChangeToken token) throws IdentityException {
+        if (!this.running) {
+            this.position = parsePosition(token);
+        }
+    }
+
+    public void setRetryInterval(final long milliseconds) {
+        this.retryInterval = milliseconds;
+    }
+
+    /**
+     * Starts receiving changes on a background thread
+     */
+    public synchronized void start() {
+        if (this.running) {
+            return;
+        }
+        this.running = true;
+        this.thread = new Thread(this, "mongodb-change-feed");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops receiving changes. The resume token of the last change processed is stored
+     */
+    public synchronized void stop() {
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+        close();
+        this.thread.interrupt();
+        this.thread = null;
+    }
+
+    /*
+     * Called only from the thread of the feed
+     */
+    private void storePosition(final boolean force) throws IdentityException {
+        final CheckpointStore store = this.checkpointStore;
+        final BSONTimestamp ts = this.position;
+        if (store == null || ts == null || ts == this.checkpointPosition) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (!force && now - this.checkpointTime < this.checkpointInterval) {
+            return;
+        }
+        store.setCheckpoint(this.checkpointName, getResumeToken());
+        this.checkpointTime = now;
+        this.checkpointPosition = ts;
+    }
+}
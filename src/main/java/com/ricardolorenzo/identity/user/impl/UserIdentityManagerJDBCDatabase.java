@@ -19,10 +19,12 @@ package com.ricardolorenzo.identity.user.impl;
 import com.ricardolorenzo.db.DBConnection;
 import com.ricardolorenzo.db.DBConnectionManager;
 import com.ricardolorenzo.db.DBException;
+import com.ricardolorenzo.identity.ChangeToken;
 import com.ricardolorenzo.identity.Identity;
 import com.ricardolorenzo.identity.IdentityException;
 import com.ricardolorenzo.identity.script.ScriptCollection;
 import com.ricardolorenzo.identity.user.UserIdentity;
+import com.ricardolorenzo.identity.user.UserIdentityChanges;
 import com.ricardolorenzo.identity.user.UserIdentityManager;
 
 import java.security.NoSuchAlgorithmException;
@@ -30,21 +32,75 @@ import java.util.*;
 import java.util.Map.Entry;
 
 /**
+ * Users stored on a database, managed with the scripts of the <code>ScriptCollection</code>.
+ * 
+ * If the <code>user_changes</code> script is defined, <code>getChangesSince()</code> reads a change
+ * log table, filled by triggers or by the application, instead of searching the users by
+ * modification time. The log is read by its sequence, in batches of
+ * <code>database.changes.batchSize</code> rows, so every request costs the number of changes read.
+ * The script receives the last sequence read on the <code>@sequence@</code> field and the batch size
+ * on the <code>@limit@</code> field, and it must return the changes in sequence order with the
+ * <code>change_sequence</code> and <code>change_type</code> columns and the columns of the user
+ * (<code>I</code>, <code>U</code> or <code>D</code> for deleted users). For example:
+ * 
+ * <pre>
+ * CREATE TABLE user_changelog (
+ *     change_sequence BIGINT NOT NULL PRIMARY KEY,
+ *     change_type CHAR(1) NOT NULL,
+ *     uid VARCHAR(255) NOT NULL
+ * )
+ * 
+ * user_changes=SELECT c.change_sequence, c.change_type, c.uid, u.* FROM user_changelog c
+ *     LEFT JOIN users u ON u.uid = c.uid WHERE c.change_sequence &gt; [[[@sequence@]]]
+ *     ORDER BY c.change_sequence FETCH FIRST [[[@limit@]]] ROWS ONLY
+ * </pre>
+ * 
+ * A sequence taken by a transaction can commit after a higher sequence was already read, for
+ * example with concurrent writers on an identity column. To find those rows, every request reads
+ * again the last <code>database.changes.margin</code> sequences below the last one read, and skips
+ * the rows of that range already returned, which are kept on the token. A row that commits later
+ * than that margin is never read, so the margin must cover the sequences that can be taken by the
+ * transactions running at the same time. A margin of <code>0</code> requires a log with
+ * sequences assigned in commit order
  * 
  * @author Ricardo Lorenzo
  * 
  */
 public class UserIdentityManagerJDBCDatabase extends UserIdentityManager {
+    public static final int DEFAULT_CHANGES_BATCH_SIZE = 1000;
+    public static final int DEFAULT_CHANGES_MARGIN = 100;
+    public static final String COLUMN_CHANGE_SEQUENCE = "change_sequence";
+    public static final String COLUMN_CHANGE_TYPE = "change_type";
+    private final static String CHANGE_LOG_SOURCE = "changelog";
+    private final static char CHANGE_LOG_SEPARATOR = ':';
     private final static int MODIFICATION_TYPE_ANY = 0;
     private final static int MODIFICATION_TYPE_ADD = 1;
     private final static int MODIFICATION_TYPE_UPDATE = 2;
 
     private final DBConnection dbconnection;
+    private final int changesBatchSize;
+    private final long changesMargin;
 
     public UserIdentityManagerJDBCDatabase(final Properties conf) throws DBException {
         super();
         final DBConnectionManager dbm = new DBConnectionManager(conf);
         this.dbconnection = dbm.getConnection();
+        int batchSize = DEFAULT_CHANGES_BATCH_SIZE;
+        try {
+            batchSize = Integer.parseInt(conf.getProperty("database.changes.batchSize",
+                    String.valueOf(DEFAULT_CHANGES_BATCH_SIZE)));
+        } catch (final NumberFormatException e) {
+            // default value
+        }
+        this.changesBatchSize = batchSize > 0 ? batchSize : DEFAULT_CHANGES_BATCH_SIZE;
+        int margin = DEFAULT_CHANGES_MARGIN;
+        try {
+            margin = Integer.parseInt(conf.getProperty("database.changes.margin",
+                    String.valueOf(DEFAULT_CHANGES_MARGIN)));
+        } catch (final NumberFormatException e) {
+            // default value
+        }
+        this.changesMargin = margin >= 0 ? margin : DEFAULT_CHANGES_MARGIN;
     }
 
     @Override
@@ -83,6 +139,12 @@ public class UserIdentityManagerJDBCDatabase extends UserIdentityManager {
                         } else {
                             this.dbconnection.setObject(index, null);
                         }
+                    } else if (ScriptCollection.FIELD_SEQUENCE.equalsIgnoreCase(attributeName)) {
+                        this.dbconnection.setObject(index,
+                                Long.valueOf(getFirstStringValue(attributes.get(attributeName))));
+                    } else if (ScriptCollection.FIELD_LIMIT.equalsIgnoreCase(attributeName)) {
+                        this.dbconnection.setObject(index,
+                                Integer.valueOf(getFirstStringValue(attributes.get(attributeName))));
                     } else if (UserIdentity.DEFAULT_ATTRIBUTE_LASTMODIFED.equalsIgnoreCase(attributeName)) {
                         final Object[] values = attributes.get(attributeName);
                         if ((values != null) && (values.length > 0)) {
@@ -115,6 +177,101 @@ public class UserIdentityManagerJDBCDatabase extends UserIdentityManager {
         runQueryScript(ScriptCollection.USER_DELETE, destinationUser.getAttributes());
     }
 
+    /**
+     * Reads one batch of the change log after the sequence of the token, when the
+     * <code>user_changes</code> script is defined. The changes of the same user on the batch are
+     * merged, only the last one is returned. A <code>null</code> token reads the log from the
+     * beginning. The batch starts <code>database.changes.margin</code> sequences below the token,
+     * and the rows already returned on that range are skipped. If the batch is full,
+     * <code>hasMoreChanges()</code> returns <code>true</code>
+     */
+    @Override
+    public UserIdentityChanges getChangesSince(final ChangeToken token) throws IdentityException {
+        if (!getScriptCollection().hasScript(ScriptCollection.USER_CHANGES)) {
+            return super.getChangesSince(token);
+        }
+        long sequence = 0;
+        /*
+         * Sequences already returned on the margin below the last one
+         */
+        final SortedSet<Long> read = new TreeSet<Long>();
+        if (token != null) {
+            try {
+                final String[] value = token.getValue().split(String.valueOf(CHANGE_LOG_SEPARATOR));
+                sequence = Long.parseLong(value[0]);
+                for (int i = 1; i < value.length; i++) {
+                    read.add(Long.valueOf(value[i]));
+                }
+            } catch (final NumberFormatException e) {
+                throw new IdentityException("invalid change token [" + token + "]");
+            }
+        }
+        final int limit = this.changesBatchSize + read.size();
+        final Map<String, Object[]> attributes = new HashMap<String, Object[]>();
+        attributes.put(ScriptCollection.FIELD_SEQUENCE, new Object[] { Math.max(0, sequence - this.changesMargin) });
+        attributes.put(ScriptCollection.FIELD_LIMIT, new Object[] { limit });
+        final List<Map<String, Object>> results = runQueryScript(ScriptCollection.USER_CHANGES, attributes, limit,
+                0);
+
+        /*
+         * The last change of every user, in order
+         */
+        final Map<String, UserIdentity> modified = new LinkedHashMap<String, UserIdentity>();
+        final Map<String, UserIdentity> deleted = new LinkedHashMap<String, UserIdentity>();
+        for (final Map<String, Object> data : results) {
+            final Object changeSequence = getColumn(data, COLUMN_CHANGE_SEQUENCE);
+            if (!(changeSequence instanceof Number)) {
+                throw new IdentityException("column " + COLUMN_CHANGE_SEQUENCE + " not found on the changes");
+            }
+            if (!read.add(Number.class.cast(changeSequence).longValue())) {
+                continue;
+            }
+            sequence = Math.max(sequence, Number.class.cast(changeSequence).longValue());
+            final UserIdentity user = getUserIdentity(data);
+            String key = user.getAttributeFirstStringValue(UserIdentity.DEFAULT_ATTRIBUTE_UID);
+            if (key == null) {
+                key = String.valueOf(changeSequence);
+            }
+            modified.remove(key);
+            deleted.remove(key);
+            final String type = String.valueOf(getColumn(data, COLUMN_CHANGE_TYPE));
+            if (type.toUpperCase().startsWith("D")) {
+                deleted.put(key, user);
+            } else {
+                modified.put(key, user);
+            }
+        }
+
+        final UserIdentityChanges changes = new UserIdentityChanges();
+        for (final UserIdentity user : modified.values()) {
+            changes.addModified(user);
+        }
+        for (final UserIdentity user : deleted.values()) {
+            changes.addDeleted(user);
+        }
+        changes.setMoreChanges(results.size() >= limit);
+
+        final StringBuilder value = new StringBuilder(String.valueOf(sequence));
+        for (final Long readSequence : read.tailSet(sequence - this.changesMargin + 1)) {
+            value.append(CHANGE_LOG_SEPARATOR);
+            value.append(readSequence);
+        }
+        changes.setToken(new ChangeToken(CHANGE_LOG_SOURCE, value.toString()));
+        return changes;
+    }
+
+    /*
+     * Column names are returned in upper case by some drivers
+     */
+    private static Object getColumn(final Map<String, Object> row, final String column) {
+        for (final Entry<String, Object> value : row.entrySet()) {
+            if (column.equalsIgnoreCase(value.getKey())) {
+                return value.getValue();
+            }
+        }
+        return null;
+    }
+
     private static String getFirstStringValue(final Object[] values) {
         if (values == null) {
             return null;
@@ -167,7 +324,16 @@ public class UserIdentityManagerJDBCDatabase extends UserIdentityManager {
 
     private List<Map<String, Object>> runQueryScript(final String scriptType, final Map<String, Object[]> attributes)
             throws IdentityException {
-        final List<Map<String, Object>> result = null;
+        return runQueryScript(scriptType, attributes, 0, 0);
+    }
+
+    /*
+     * Every query of the script reads at most maxRows rows, and it is cancelled after the timeout
+     * in seconds
+     */
+    private List<Map<String, Object>> runQueryScript(final String scriptType, final Map<String, Object[]> attributes,
+            final int maxRows, final int timeout) throws IdentityException {
+        final List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
         try {
             this.dbconnection.transactionInit();
             final ScriptCollection sc = getScriptCollection();
@@ -178,7 +344,8 @@ public class UserIdentityManagerJDBCDatabase extends UserIdentityManager {
                     String query = queries.nextToken();
                     if ((query != null) && !query.isEmpty() && !query.trim().isEmpty()) {
                         query = createQueryFromScript(query, attributes);
-                        final List<Map<String, Object>> last_result = this.dbconnection.transactionQuery(query);
+                        final List<Map<String, Object>> last_result = this.dbconnection.transactionQuery(query,
+                                maxRows, timeout);
                         if (!last_result.isEmpty()) {
                             result.addAll(last_result);
                         }
@@ -241,6 +408,31 @@ public class UserIdentityManagerJDBCDatabase extends UserIdentityManager {
         }
     }
 
+    /**
+     * Uses the <code>user_search_prefix</code> script when it is defined, with the prefix on the
+     * <code>@match@</code> field and the limit on the <code>@limit@</code> field. The rows are
+     * limited on the statement too, so scripts without the limit field also stop early
+     */
+    @Override
+    public List<UserIdentity> suggestUserIdentities(final String prefix, final int limit) throws IdentityException {
+        final List<UserIdentity> identitiesFound = new ArrayList<UserIdentity>();
+        if ((prefix == null) || prefix.isEmpty() || (limit <= 0)) {
+            return identitiesFound;
+        }
+        if (!getScriptCollection().hasScript(ScriptCollection.USER_SEARCH_PREFIX)) {
+            return super.suggestUserIdentities(prefix, limit);
+        }
+        final Map<String, Object[]> attributes = new HashMap<String, Object[]>();
+        attributes.put(ScriptCollection.FIELD_MATCH, new Object[] { prefix });
+        attributes.put(ScriptCollection.FIELD_LIMIT, new Object[] { limit });
+        final List<Map<String, Object>> results = runQueryScript(ScriptCollection.USER_SEARCH_PREFIX, attributes,
+                limit, Math.max(1, SUGGEST_TIME_LIMIT / 1000));
+        for (final Map<String, Object> data : results) {
+            identitiesFound.add(getUserIdentity(data));
+        }
+        return rankUserIdentities(identitiesFound, prefix, limit);
+    }
+
     @Override
     public void updateUserIdentity(final UserIdentity user) throws IdentityException {
         storeUserIdentity(MODIFICATION_TYPE_ANY, user);
@@ -18,14 +18,18 @@ package com.ricardolorenzo.identity.user.impl;
 
 import com.ricardolorenzo.directory.DirectoryException;
 import com.ricardolorenzo.directory.DirectoryIdentityManager;
+import com.ricardolorenzo.directory.ldap.LDAPCompiledQuery;
 import com.ricardolorenzo.directory.ldap.LDAPConnection;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryEntry;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryQuery;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryWriter;
+import com.ricardolorenzo.directory.ldap.LDAPException;
+import com.ricardolorenzo.directory.ldap.LDAPSearchHandler;
 import com.ricardolorenzo.identity.Identity;
 import com.ricardolorenzo.identity.IdentityException;
 import com.ricardolorenzo.identity.user.UserIdentity;
 import com.ricardolorenzo.identity.user.UserIdentityManager;
+import com.ricardolorenzo.util.ISODate;
 
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -61,6 +65,7 @@ public class UserIdentityManagerLDAP extends UserIdentityManager {
     private String memberAttribute;
 
     private final List<String> userObjectclasses;
+    private volatile LDAPCompiledQuery suggestQuery;
 
     public UserIdentityManagerLDAP(final Properties conf) throws DirectoryException {
         this.properties = conf;
@@ -113,6 +118,20 @@ public class UserIdentityManagerLDAP extends UserIdentityManager {
         this.directoryManager.addIdentity(i);
     }
 
+    @Override
+    public long countUserIdentities(final String match) throws IdentityException {
+        if (match == null) {
+            return 0;
+        }
+        try {
+            this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
+            return this.directoryManager.countIdentities(getSearchQuery(match));
+        } catch (final DirectoryException e) {
+            logError(e);
+            throw new IdentityException(e);
+        }
+    }
+
     @Override
     public void deleteUserIdentity(final UserIdentity user) throws IdentityException {
         try {
@@ -176,57 +195,27 @@ public class UserIdentityManagerLDAP extends UserIdentityManager {
     public List<UserIdentity> getModifiedUserIdentities(final Calendar date) throws IdentityException {
         final List<UserIdentity> modifiedUsers = new ArrayList<UserIdentity>();
         try {
-            this.directoryManager.setScope(LDAPConnection.ONE_SCOPE);
-            LDAPDirectoryQuery q = new LDAPDirectoryQuery();
-            q.addCondition("objectclass", "top", LDAPDirectoryQuery.EXACT);
-            final List<Identity> rootContainers = this.directoryManager.searchIdentities(q);
-            for (final Identity i : rootContainers) {
-                this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
-                q = new LDAPDirectoryQuery();
-                for (final String objectClass : this.userObjectclasses) {
-                    q.addCondition("objectclass", objectClass, LDAPDirectoryQuery.EXACT);
-                }
-                if (i.hasAttribute("ou")) {
-                    q.addCondition("ou", i.getAttributeFirstStringValue("ou"), LDAPDirectoryQuery.BRANCH);
-                } else if (i.hasAttribute("cn")) {
-                    q.addCondition("cn", i.getAttributeFirstStringValue("ou"), LDAPDirectoryQuery.BRANCH);
-                }
-                if (i.hasAttribute("objectclass") && (i.getAttribute("objectclass") != null)) {
-                    final List<Object> wordList = Arrays.asList(i.getAttribute("objectclass"));
-                    if (!(wordList.contains("organizationalUnit") || wordList.contains("container"))) {
-                        continue;
-                    }
-                }
-
-                final List<Identity> users = this.directoryManager.searchIdentities(q);
-                for (final Identity user : users) {
-                    if (!user.hasAttribute(this.userEntryAttribute)) {
-                        continue;
-                    }
-
-                    if (user.hasAttribute("modifyTimestamp")) {
-                        final Calendar srcDate = getCalendarAttribute(String.valueOf(user
-                                .getAttribute("modifyTimestamp")[0]));
-                        if (date.after(srcDate)) {
-                            continue;
-                        }
-                    } else {
+            /**
+             * The directory filters the entries by modifyTimestamp on a single subtree search
+             */
+            this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
+            final LDAPDirectoryQuery q = getModifiedQuery(date);
+            if (this.directoryManager.isParallelSearch()) {
+                this.directoryManager.parallelSearch(LDAPCompiledQuery.compile(q), new LDAPSearchHandler() {
+                    @Override
+                    public boolean handle(final Identity user) throws LDAPException {
                         try {
-                            final List<Object> values = this.directoryManager.getIdentityAttribute(user.getID(),
-                                    "modifyTimestamp");
-                            if ((values != null) && !values.isEmpty()) {
-                                final Calendar srcDate = getCalendarAttribute(String.valueOf(values.get(0)));
-                                if (date.after(srcDate)) {
-                                    continue;
-                                }
-                            }
-                        } catch (final DirectoryException e) {
-                            logError(e);
+                            modifiedUsers.add(getUserIdentity(user));
+                        } catch (final IdentityException e) {
+                            throw new LDAPException(e.getMessage());
                         }
+                        return true;
                     }
-
-                    modifiedUsers.add(getUserIdentity(user));
-                }
+                });
+                return modifiedUsers;
+            }
+            for (final Identity user : this.directoryManager.searchIdentities(q)) {
+                modifiedUsers.add(getUserIdentity(user));
             }
         } catch (final Exception e) {
             throw new IdentityException(e);
@@ -234,6 +223,86 @@ public class UserIdentityManagerLDAP extends UserIdentityManager {
         return modifiedUsers;
     }
 
+    @Override
+    public List<UserIdentity> getModifiedUserIdentities(final Calendar date, final String partition)
+            throws IdentityException {
+        final List<UserIdentity> modifiedUsers = new ArrayList<UserIdentity>();
+        try {
+            this.directoryManager.searchContainer(LDAPCompiledQuery.compile(getModifiedQuery(date)), partition,
+                    new LDAPSearchHandler() {
+                        @Override
+                        public boolean handle(final Identity user) throws LDAPException {
+                            try {
+                                modifiedUsers.add(getUserIdentity(user));
+                            } catch (final IdentityException e) {
+                                throw new LDAPException(e.getMessage());
+                            }
+                            return true;
+                        }
+                    });
+        } catch (final Exception e) {
+            throw new IdentityException(e);
+        }
+        return modifiedUsers;
+    }
+
+    /*
+     * Query of the users modified after a date, or of every user when the date is null
+     */
+    private LDAPDirectoryQuery getModifiedQuery(final Calendar date) {
+        final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+        for (final String objectClass : this.userObjectclasses) {
+            q.addCondition("objectclass", objectClass, LDAPDirectoryQuery.EXACT);
+        }
+        q.addCondition(this.userEntryAttribute, "*", LDAPDirectoryQuery.EXACT);
+        q.setReturningAttributes(getReadAttributes());
+        if (date != null) {
+            q.addCondition("modifyTimestamp", ISODate.toGeneralizedTime(date), LDAPDirectoryQuery.GREATER);
+        }
+        return q;
+    }
+
+    @Override
+    public List<String> getPartitions() throws IdentityException {
+        try {
+            return this.directoryManager.getContainers();
+        } catch (final Exception e) {
+            throw new IdentityException(e);
+        }
+    }
+
+    private LDAPDirectoryQuery getSearchQuery(final String match) {
+        final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+        for (final String objectClass : this.userObjectclasses) {
+            q.addCondition("objectclass", objectClass, LDAPDirectoryQuery.EXACT);
+        }
+        q.addCondition(this.userEntryAttribute, match, LDAPDirectoryQuery.CONTAINS);
+        return q;
+    }
+
+    /*
+     * Prefix search by entry attribute, common name and mail, compiled on the first use
+     */
+    private LDAPCompiledQuery getSuggestQuery() throws Exception {
+        LDAPCompiledQuery _q = this.suggestQuery;
+        if (_q == null) {
+            final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+            for (final String objectClass : this.userObjectclasses) {
+                q.addCondition("objectclass", objectClass, LDAPDirectoryQuery.EXACT);
+            }
+            final LDAPDirectoryQuery prefix = new LDAPDirectoryQuery(LDAPDirectoryQuery.OR);
+            prefix.addCondition(this.userEntryAttribute, LDAPDirectoryQuery.ARGUMENT, LDAPDirectoryQuery.STARTS_WITH);
+            prefix.addCondition(this.userCommonNameAttribute, LDAPDirectoryQuery.ARGUMENT,
+                    LDAPDirectoryQuery.STARTS_WITH);
+            prefix.addCondition("mail", LDAPDirectoryQuery.ARGUMENT, LDAPDirectoryQuery.STARTS_WITH);
+            q.addCondition(prefix);
+            q.setReturningAttributes(getReadAttributes());
+            _q = LDAPCompiledQuery.compile(q);
+            this.suggestQuery = _q;
+        }
+        return _q;
+    }
+
     private UserIdentity getUserIdentity(final Identity user) throws IdentityException {
         final UserIdentity sourceUser = new UserIdentity(user);
         final UserIdentity destinationUser = new UserIdentity(new LDAPDirectoryEntry(sourceUser.getID()));
@@ -265,6 +334,7 @@ public class UserIdentityManagerLDAP extends UserIdentityManager {
                 q.addCondition("objectclass", objectClass, LDAPDirectoryQuery.EXACT);
             }
             q.addCondition(this.userEntryAttribute, user, LDAPDirectoryQuery.EXACT);
+            q.setReturningAttributes(getReadAttributes());
             final List<Identity> result = this.directoryManager.searchIdentities(q);
             if ((result != null) && !result.isEmpty()) {
                 return getUserIdentity(result.get(0));
@@ -276,6 +346,14 @@ public class UserIdentityManagerLDAP extends UserIdentityManager {
         return null;
     }
 
+    /*
+     * Attributes needed by getUserIdentity(Identity), the attribute maps and the modification time
+     */
+    private String[] getReadAttributes() {
+        return getReadAttributeNames(this.userEntryAttribute, this.userCommonNameAttribute, "mail",
+                "modifyTimestamp", "objectClass");
+    }
+
     private void loadIdentityAttributes(final Identity destinationIdentity, final UserIdentity sourceUser)
             throws DirectoryException, IdentityException {
         /**
@@ -325,12 +403,9 @@ public class UserIdentityManagerLDAP extends UserIdentityManager {
             return users;
         }
         try {
-            final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
             this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
-            for (final String objectClass : this.userObjectclasses) {
-                q.addCondition("objectclass", objectClass, LDAPDirectoryQuery.EXACT);
-            }
-            q.addCondition(this.userEntryAttribute, match, LDAPDirectoryQuery.CONTAINS);
+            final LDAPDirectoryQuery q = getSearchQuery(match);
+            q.setReturningAttributes(getReadAttributes());
             for (final Identity user : this.directoryManager.sortedSearch(q, this.userCommonNameAttribute)) {
                 users.add(getUserIdentity(user));
             }
@@ -404,6 +479,25 @@ public class UserIdentityManagerLDAP extends UserIdentityManager {
         }
     }
 
+    @Override
+    public List<UserIdentity> suggestUserIdentities(final String prefix, final int limit) throws IdentityException {
+        final List<UserIdentity> users = new ArrayList<UserIdentity>();
+        if ((prefix == null) || prefix.isEmpty() || (limit <= 0)) {
+            return users;
+        }
+        try {
+            this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
+            for (final Identity user : this.directoryManager.searchFirstIdentities(getSuggestQuery(), limit,
+                    SUGGEST_TIME_LIMIT, prefix, prefix, prefix)) {
+                users.add(getUserIdentity(user));
+            }
+        } catch (final Exception e) {
+            logError(e);
+            throw new IdentityException(e);
+        }
+        return rankUserIdentities(users, prefix, limit);
+    }
+
     @Override
     public void updateUserIdentity(final UserIdentity user) throws IdentityException {
         storeUserIdentity(MODIFICATION_TYPE_ANY, user);
@@ -17,23 +17,32 @@
 package com.ricardolorenzo.identity.user.impl;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Properties;
 import java.util.TimeZone;
 
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
 import com.ricardolorenzo.directory.DirectoryException;
 import com.ricardolorenzo.directory.DirectoryIdentityManager;
+import com.ricardolorenzo.directory.ldap.LDAPCompiledQuery;
 import com.ricardolorenzo.directory.ldap.LDAPConnection;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryEntry;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryQuery;
 import com.ricardolorenzo.directory.ldap.LDAPDirectoryWriter;
+import com.ricardolorenzo.directory.ldap.LDAPException;
+import com.ricardolorenzo.directory.ldap.LDAPSearchHandler;
+import com.ricardolorenzo.identity.ChangeToken;
 import com.ricardolorenzo.identity.Identity;
 import com.ricardolorenzo.identity.IdentityAttributeMap;
 import com.ricardolorenzo.identity.IdentityException;
 import com.ricardolorenzo.identity.user.UserIdentity;
+import com.ricardolorenzo.identity.user.UserIdentityChanges;
 import com.ricardolorenzo.identity.user.UserIdentityManager;
+import com.ricardolorenzo.util.ISODate;
 
 /**
  * 
@@ -66,6 +75,8 @@ public class UserIdentityManagerMSAD extends UserIdentityManager {
     private String timezone;
     private String defaultDomain;
     private String defaultUserBranch;
+    private volatile LDAPCompiledQuery userQuery;
+    private volatile LDAPCompiledQuery suggestQuery;
     private boolean USER_NOT_UPDATE_MAIL_ALIASES;
     private boolean USER_PASSWORD_NOT_REQUESTED;
     private boolean USER_PASSWORD_CANNOT_CHANGE;
@@ -160,6 +171,20 @@ public class UserIdentityManagerMSAD extends UserIdentityManager {
         this.directoryManager.addIdentity(i);
     }
 
+    @Override
+    public long countUserIdentities(final String match) throws IdentityException {
+        if (match == null) {
+            return 0;
+        }
+        try {
+            this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
+            return this.directoryManager.countIdentities(getSearchQuery(match));
+        } catch (final DirectoryException e) {
+            logError(e);
+            throw new IdentityException(e);
+        }
+    }
+
     @Override
     public void deleteUserIdentity(final UserIdentity user) throws IdentityException {
         try {
@@ -190,48 +215,131 @@ public class UserIdentityManagerMSAD extends UserIdentityManager {
         }
     }
 
+    /**
+     * Get the users changed since the token using the update sequence numbers (uSNChanged) of the
+     * domain controller. The token contains the domain controller host name and its
+     * highestCommittedUSN, and the changes are read from that domain controller. Deleted users are
+     * read from the tombstones, so the base DN must be the domain naming context, and are returned
+     * with the DN they had before the deletion. If the domain controller of the token is not
+     * available, all the users are returned
+     */
     @Override
-    public List<UserIdentity> getModifiedUserIdentities(final Calendar date) throws IdentityException {
-        final List<UserIdentity> modifiedUsers = new ArrayList<UserIdentity>();
+    public UserIdentityChanges getChangesSince(final ChangeToken token) throws IdentityException {
+        final UserIdentityChanges changes = new UserIdentityChanges();
+        String server = null;
+        long usn = 0;
+        if (token != null) {
+            server = token.getSource();
+            try {
+                usn = Long.parseLong(token.getValue());
+            } catch (final NumberFormatException e) {
+                throw new IdentityException("invalid change token [" + token + "]");
+            }
+        }
         try {
-            this.directoryManager.setScope(LDAPConnection.ONE_SCOPE);
-            LDAPDirectoryQuery q = new LDAPDirectoryQuery();
-            q.addCondition("objectclass", "top", LDAPDirectoryQuery.EXACT);
-            final List<Identity> rootContainers = this.directoryManager.searchIdentities(q);
-            for (final Identity i : rootContainers) {
-                this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
-                q = new LDAPDirectoryQuery();
-                q.addCondition("objectclass", "person", LDAPDirectoryQuery.EXACT);
-                q.addCondition("objectclass", "computer", LDAPDirectoryQuery.NOT_EXACT);
-                if (i.hasAttribute("ou")) {
-                    q.addCondition("ou", i.getAttributeFirstStringValue("ou"), LDAPDirectoryQuery.BRANCH);
-                } else if (i.hasAttribute("cn")) {
-                    q.addCondition("cn", i.getAttributeFirstStringValue("ou"), LDAPDirectoryQuery.BRANCH);
-                }
-                if (i.hasAttribute("objectclass") && (i.getAttribute("objectclass") != null)) {
-                    final List<Object> wordList = Arrays.asList(i.getAttribute("objectclass"));
-                    if (!(wordList.contains("organizationalUnit") || wordList.contains("container"))) {
-                        continue;
+            this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
+            final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+            q.addCondition("objectclass", "person", LDAPDirectoryQuery.EXACT);
+            q.addCondition("objectclass", "computer", LDAPDirectoryQuery.NOT_EXACT);
+            q.addCondition("sAMAccountName", "*", LDAPDirectoryQuery.EXACT);
+            q.setReturningAttributes(getReadAttributes());
+            final Identity rootDSE = this.directoryManager.searchChanges(q, server, usn, new LDAPSearchHandler() {
+                @Override
+                public boolean handle(final Identity user) throws LDAPException {
+                    try {
+                        changes.addModified(getUserIdentity(user));
+                    } catch (final IdentityException e) {
+                        logError(e);
                     }
+                    return true;
                 }
+            }, new LDAPSearchHandler() {
+                @Override
+                public boolean handle(final Identity user) throws LDAPException {
+                    changes.addDeleted(getDeletedUserIdentity(user));
+                    return true;
+                }
+            });
+            final String host = rootDSE.getAttributeFirstStringValue("dnsHostName");
+            changes.setFullSync(token == null || !host.equalsIgnoreCase(server));
+            changes.setToken(new ChangeToken(host, rootDSE.getAttributeFirstStringValue("highestCommittedUSN")));
+        } catch (final DirectoryException e) {
+            logError(e);
+            throw new IdentityException(e);
+        }
+        return changes;
+    }
 
-                final List<Identity> users = this.directoryManager.searchIdentities(q);
-                for (final Identity user : users) {
-                    try {
-                        if (!user.hasAttribute("sAMAccountName")) {
-                            continue;
-                        }
-                        if ((date != null) && user.hasAttribute("whenChanged")) {
-                            final Calendar lastModified = getMSADCalendarAttribute(user
-                                    .getAttributeFirstStringValue("whenChanged"));
-                            if (date.after(lastModified)) {
-                                continue;
-                            }
+    private UserIdentity getDeletedUserIdentity(final Identity user) {
+        final UserIdentity sourceUser = new UserIdentity(user);
+        final String DN = getDeletedUserDN(user);
+        final UserIdentity destinationUser = new UserIdentity(new LDAPDirectoryEntry(DN));
+        destinationUser.setAttribute("dn", DN);
+        try {
+            loadAttributesFromMap(IdentityAttributeMap.getDefaultReadMap(), sourceUser, destinationUser);
+        } catch (final IdentityException e) {
+            logWarning(e);
+        }
+        return destinationUser;
+    }
+
+    /*
+     * Distinguished Name of a deleted user before the deletion, built with the last known parent
+     * and the original RDN of the tombstone. The tombstone RDN value has the form
+     * <name>\nDEL:<objectGUID>
+     */
+    private String getDeletedUserDN(final Identity user) {
+        try {
+            final String parent = user.getAttributeFirstStringValue("lastKnownParent");
+            if ((parent == null) || parent.isEmpty()) {
+                return user.getID();
+            }
+            final LdapName tombstoneDN = new LdapName(user.getID());
+            final Rdn tombstone = tombstoneDN.getRdn(tombstoneDN.size() - 1);
+            String name = user.getAttributeFirstStringValue("msDS-LastKnownRDN");
+            if ((name == null) || name.isEmpty()) {
+                name = String.valueOf(tombstone.getValue());
+                if (name.contains("\n")) {
+                    name = name.substring(0, name.indexOf("\n"));
+                }
+            }
+            final LdapName DN = new LdapName(parent);
+            DN.add(new Rdn(tombstone.getType(), name));
+            return DN.toString();
+        } catch (final InvalidNameException e) {
+            logWarning(e);
+            return user.getID();
+        }
+    }
+
+    @Override
+    public List<UserIdentity> getModifiedUserIdentities(final Calendar date) throws IdentityException {
+        final List<UserIdentity> modifiedUsers = new ArrayList<UserIdentity>();
+        try {
+            /**
+             * The directory filters the entries by whenChanged on a single subtree search
+             */
+            this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
+            final LDAPDirectoryQuery q = getModifiedQuery(date);
+            if (this.directoryManager.isParallelSearch()) {
+                this.directoryManager.parallelSearch(LDAPCompiledQuery.compile(q), new LDAPSearchHandler() {
+                    @Override
+                    public boolean handle(final Identity user) throws LDAPException {
+                        try {
+                            modifiedUsers.add(getUserIdentity(user));
+                        } catch (final Exception e) {
+                            logError(e);
                         }
-                        modifiedUsers.add(getUserIdentity(user));
-                    } catch (final Exception e) {
-                        logError(e);
+                        return true;
                     }
+                });
+                return modifiedUsers;
+            }
+            for (final Identity user : this.directoryManager.searchIdentities(q)) {
+                try {
+                    modifiedUsers.add(getUserIdentity(user));
+                } catch (final Exception e) {
+                    logError(e);
                 }
             }
         } catch (final Exception e) {
@@ -240,6 +348,62 @@ public class UserIdentityManagerMSAD extends UserIdentityManager {
         return modifiedUsers;
     }
 
+    @Override
+    public List<UserIdentity> getModifiedUserIdentities(final Calendar date, final String partition)
+            throws IdentityException {
+        final List<UserIdentity> modifiedUsers = new ArrayList<UserIdentity>();
+        try {
+            this.directoryManager.searchContainer(LDAPCompiledQuery.compile(getModifiedQuery(date)), partition,
+                    new LDAPSearchHandler() {
+                        @Override
+                        public boolean handle(final Identity user) throws LDAPException {
+                            try {
+                                modifiedUsers.add(getUserIdentity(user));
+                            } catch (final Exception e) {
+                                logError(e);
+                            }
+                            return true;
+                        }
+                    });
+        } catch (final Exception e) {
+            throw new IdentityException(e);
+        }
+        return modifiedUsers;
+    }
+
+    /*
+     * Query of the users modified after a date, or of every user when the date is null
+     */
+    private LDAPDirectoryQuery getModifiedQuery(final Calendar date) {
+        final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+        q.addCondition("objectclass", "person", LDAPDirectoryQuery.EXACT);
+        q.addCondition("objectclass", "computer", LDAPDirectoryQuery.NOT_EXACT);
+        q.addCondition("sAMAccountName", "*", LDAPDirectoryQuery.EXACT);
+        q.setReturningAttributes(getReadAttributes());
+        if (date != null) {
+            q.addCondition("whenChanged", ISODate.toGeneralizedTime(date), LDAPDirectoryQuery.GREATER);
+        }
+        return q;
+    }
+
+    @Override
+    public List<String> getPartitions() throws IdentityException {
+        try {
+            return this.directoryManager.getContainers();
+        } catch (final Exception e) {
+            throw new IdentityException(e);
+        }
+    }
+
+    /*
+     * Attributes needed by getUserIdentity(Identity), the attribute maps and the attributes read
+     * directly (mail, manager, OU, account status and modification time)
+     */
+    private String[] getReadAttributes() {
+        return getReadAttributeNames("sAMAccountName", "cn", "mail", "proxyAddresses", "manager", "memberOf",
+                "userAccountControl", "whenChanged", "objectClass");
+    }
+
     private Calendar getMSADCalendarAttribute(final String value) throws IdentityException {
         if ((value == null) || !value.matches("[0-9.Z]+")) {
             throw new IdentityException("invalid attribute date format");
@@ -268,15 +432,14 @@ public class UserIdentityManagerMSAD extends UserIdentityManager {
         if (userID == null) {
             return null;
         }
-        final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
         try {
             this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
-            q.addCondition("objectclass", "person", LDAPDirectoryQuery.EXACT);
-            q.addCondition("sAMAccountName", userID, LDAPDirectoryQuery.EXACT);
-            final List<Identity> results = this.directoryManager.searchIdentities(q);
+            final List<Identity> results = this.directoryManager.searchIdentities(getUserQuery(), userID);
             if ((results != null) && !results.isEmpty()) {
                 return results.get(0);
             }
+        } catch (final LDAPException e) {
+            throw new IdentityException(e);
         } catch (final DirectoryException e) {
             throw new IdentityException(e);
         }
@@ -339,6 +502,50 @@ public class UserIdentityManagerMSAD extends UserIdentityManager {
         return destinationUser;
     }
 
+    private LDAPDirectoryQuery getSearchQuery(final String match) {
+        final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+        q.addCondition("objectclass", "person", LDAPDirectoryQuery.EXACT);
+        q.addCondition("sAMAccountName", match, LDAPDirectoryQuery.CONTAINS);
+        return q;
+    }
+
+    /*
+     * Prefix search by sAMAccountName, cn and mail, compiled on the first use
+     */
+    private LDAPCompiledQuery getSuggestQuery() throws Exception {
+        LDAPCompiledQuery _q = this.suggestQuery;
+        if (_q == null) {
+            final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+            q.addCondition("objectclass", "person", LDAPDirectoryQuery.EXACT);
+            final LDAPDirectoryQuery prefix = new LDAPDirectoryQuery(LDAPDirectoryQuery.OR);
+            prefix.addCondition("sAMAccountName", LDAPDirectoryQuery.ARGUMENT, LDAPDirectoryQuery.STARTS_WITH);
+            prefix.addCondition("cn", LDAPDirectoryQuery.ARGUMENT, LDAPDirectoryQuery.STARTS_WITH);
+            prefix.addCondition("mail", LDAPDirectoryQuery.ARGUMENT, LDAPDirectoryQuery.STARTS_WITH);
+            q.addCondition(prefix);
+            q.setReturningAttributes(getReadAttributes());
+            _q = LDAPCompiledQuery.compile(q);
+            this.suggestQuery = _q;
+        }
+        return _q;
+    }
+
+    /*
+     * Lookup by sAMAccountName, compiled on the first use because the projection depends on the
+     * attribute map
+     */
+    private LDAPCompiledQuery getUserQuery() throws LDAPException {
+        LDAPCompiledQuery _q = this.userQuery;
+        if (_q == null) {
+            final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
+            q.addCondition("objectclass", "person", LDAPDirectoryQuery.EXACT);
+            q.addCondition("sAMAccountName", LDAPDirectoryQuery.ARGUMENT, LDAPDirectoryQuery.EXACT);
+            q.setReturningAttributes(getReadAttributes());
+            _q = LDAPCompiledQuery.compile(q);
+            this.userQuery = _q;
+        }
+        return _q;
+    }
+
     @Override
     public UserIdentity getUserIdentity(final String userID) throws IdentityException {
         if (userID == null) {
@@ -579,10 +786,9 @@ public class UserIdentityManagerMSAD extends UserIdentityManager {
             return users;
         }
         try {
-            final LDAPDirectoryQuery q = new LDAPDirectoryQuery();
             this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
-            q.addCondition("objectclass", "person", LDAPDirectoryQuery.EXACT);
-            q.addCondition("sAMAccountName", match, LDAPDirectoryQuery.CONTAINS);
+            final LDAPDirectoryQuery q = getSearchQuery(match);
+            q.setReturningAttributes(getReadAttributes());
             for (final Identity _u : this.directoryManager.sortedSearch(q, "cn")) {
                 users.add(getUserIdentity(_u));
             }
@@ -672,6 +878,25 @@ public class UserIdentityManagerMSAD extends UserIdentityManager {
         }
     }
 
+    @Override
+    public List<UserIdentity> suggestUserIdentities(final String prefix, final int limit) throws IdentityException {
+        final List<UserIdentity> users = new ArrayList<UserIdentity>();
+        if ((prefix == null) || prefix.isEmpty() || (limit <= 0)) {
+            return users;
+        }
+        try {
+            this.directoryManager.setScope(LDAPConnection.SUBTREE_SCOPE);
+            for (final Identity _u : this.directoryManager.searchFirstIdentities(getSuggestQuery(), limit,
+                    SUGGEST_TIME_LIMIT, prefix, prefix, prefix)) {
+                users.add(getUserIdentity(_u));
+            }
+        } catch (final Exception e) {
+            logError(e);
+            throw new IdentityException(e);
+        }
+        return rankUserIdentities(users, prefix, limit);
+    }
+
     @Override
     public void updateUserIdentity(final UserIdentity user) throws IdentityException {
         storeUserIdentity(MODIFICATION_TYPE_ANY, user);
@@ -28,6 +28,7 @@ import com.ricardolorenzo.util.ISODate;
 import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -179,6 +180,27 @@ public class UserIdentityManagerMongoDB extends UserIdentityManager {
         runQueryScript(ScriptCollection.USER_DELETE, destinationUser.getAttributes());
     }
 
+    /**
+     * Creates a feed of the inserts, updates and deletes of the users. The users are the documents
+     * of the collection defined on the <code>mongodb.collection</code> property, or the users of
+     * the database on the <code>admin.system.users</code> collection if the users are database
+     * users. The feed is not started
+     *
+     * @return UserIdentityChangeFeedMongoDB
+     * @throws IdentityException
+     */
+    public UserIdentityChangeFeedMongoDB createChangeFeed() throws IdentityException {
+        final String database = this.properties.getProperty("mongodb.database");
+        if (this.databaseUsers) {
+            return new UserIdentityChangeFeedMongoDB(this, this.mongoClient, "admin", "system.users", database + ".");
+        }
+        final String collection = this.properties.getProperty("mongodb.collection");
+        if (collection == null || collection.isEmpty()) {
+            throw new IdentityException("mongodb.collection property not defined");
+        }
+        return new UserIdentityChangeFeedMongoDB(this, this.mongoClient, database, collection, null);
+    }
+
     private static String getFirstStringValue(final Object[] values) {
         if (values == null) {
             return null;
@@ -221,7 +243,7 @@ public class UserIdentityManagerMongoDB extends UserIdentityManager {
         }
     }
 
-    private UserIdentity getUserIdentity(final DBObject data) throws IdentityException {
+    UserIdentity getUserIdentity(final DBObject data) throws IdentityException {
         final UserIdentity sourceUser = new UserIdentity();
         final UserIdentity destinationUser = new UserIdentity();
         for (final String field : data.keySet()) {
@@ -265,6 +287,15 @@ public class UserIdentityManagerMongoDB extends UserIdentityManager {
      */
     private List<DBObject> runQueryScript(final String scriptType,
                                                      final Map<String, Object[]> attributes) throws IdentityException {
+        return runQueryScript(scriptType, attributes, 0, 0);
+    }
+
+    /**
+     * Find operations read at most <code>limit</code> documents and they are stopped by the server
+     * after <code>maxTime</code> milliseconds, <code>0</code> means no limit
+     */
+    private List<DBObject> runQueryScript(final String scriptType, final Map<String, Object[]> attributes,
+                                          final int limit, final long maxTime) throws IdentityException {
         List<DBObject> results = new ArrayList<>();
         try {
             DB database = mongoClient.getDB(this.properties.getProperty("mongodb.database"));
@@ -298,6 +329,7 @@ public class UserIdentityManagerMongoDB extends UserIdentityManager {
                     switch(dbOperation) {
                         case "insert": {
                             coll.insert(dbQuery);
+                            break;
                         }
                         case "update": {
                             if(!dbObject.containsField("find")) {
@@ -309,15 +341,28 @@ public class UserIdentityManagerMongoDB extends UserIdentityManager {
                             DBObject dbUpdateFind = DBObject.class.cast(dbQuery.get("find"));
                             DBObject dbUpdateFields = DBObject.class.cast(dbQuery.get("update"));
                             coll.update(dbUpdateFind, dbUpdateFields, false, false);
+                            break;
                         }
                         case "delete": {
                             coll.remove(dbQuery);
+                            break;
                         }
                         case "find": {
                             DBCursor cursor = coll.find(dbQuery);
-                            while(cursor.hasNext()) {
-                                results.add(cursor.next());
+                            if(limit > 0) {
+                                cursor.limit(limit);
+                            }
+                            if(maxTime > 0) {
+                                cursor.maxTime(maxTime, TimeUnit.MILLISECONDS);
+                            }
+                            try {
+                                while(cursor.hasNext() && (limit <= 0 || results.size() < limit)) {
+                                    results.add(cursor.next());
+                                }
+                            } finally {
+                                cursor.close();
                             }
+                            break;
                         }
                         case "aggregate": {
                             List<DBObject> aggregate = new ArrayList<DBObject>();
@@ -410,6 +455,33 @@ public class UserIdentityManagerMongoDB extends UserIdentityManager {
         }
     }
 
+    /**
+     * Uses the <code>user_search_prefix</code> script when it is defined, with the prefix on the
+     * <code>@match@</code> field and the limit on the <code>@limit@</code> field. Find operations
+     * are limited on the cursor too
+     */
+    @Override
+    public List<UserIdentity> suggestUserIdentities(final String prefix, final int limit) throws IdentityException {
+        final List<UserIdentity> identitiesFound = new ArrayList<UserIdentity>();
+        if (prefix == null || prefix.isEmpty() || limit <= 0 || this.databaseUsers) {
+            return identitiesFound;
+        }
+        if (!getScriptCollection().hasScript(ScriptCollection.USER_SEARCH_PREFIX)) {
+            return super.suggestUserIdentities(prefix, limit);
+        }
+        final Map<String, Object[]> attributes = new HashMap<String, Object[]>();
+        attributes.put(ScriptCollection.FIELD_MATCH, new Object[] { prefix });
+        attributes.put(ScriptCollection.FIELD_LIMIT, new Object[] { limit });
+        final List<DBObject> results = runQueryScript(ScriptCollection.USER_SEARCH_PREFIX, attributes, limit,
+                SUGGEST_TIME_LIMIT);
+        if (results != null) {
+            for (final DBObject userData : results) {
+                identitiesFound.add(getUserIdentity(userData));
+            }
+        }
+        return rankUserIdentities(identitiesFound, prefix, limit);
+    }
+
     @Override
     public void updateUserIdentity(final UserIdentity user) throws IdentityException {
         storeUserIdentity(MODIFICATION_TYPE_ANY, user);
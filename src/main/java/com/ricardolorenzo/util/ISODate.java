@@ -33,4 +33,18 @@ public class ISODate {
         df.setTimeZone(tz);
         return df.format(date.getTime());
     }
+
+    /**
+     * Returns the date in UTC using the LDAP generalized time format, like
+     * <code>20140101120000Z</code>
+     *
+     * @param date
+     *            Calendar
+     * @return String
+     */
+    public static String toGeneralizedTime(Calendar date) {
+        DateFormat df = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        df.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return df.format(date.getTime());
+    }
 }
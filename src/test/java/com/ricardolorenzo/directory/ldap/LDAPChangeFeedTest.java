@@ -0,0 +1,392 @@
+/*
+ * LDAPChangeFeedTest class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.directory.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.ricardolorenzo.identity.ChangeToken;
+import com.ricardolorenzo.identity.checkpoint.CheckpointStore;
+import com.ricardolorenzo.identity.checkpoint.impl.CheckpointStoreFile;
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryRequestHandler;
+import com.unboundid.ldap.listener.LDAPListener;
+import com.unboundid.ldap.listener.LDAPListenerClientConnection;
+import com.unboundid.ldap.listener.LDAPListenerConfig;
+import com.unboundid.ldap.listener.LDAPListenerRequestHandler;
+import com.unboundid.ldap.protocol.AddRequestProtocolOp;
+import com.unboundid.ldap.protocol.BindRequestProtocolOp;
+import com.unboundid.ldap.protocol.CompareRequestProtocolOp;
+import com.unboundid.ldap.protocol.DeleteRequestProtocolOp;
+import com.unboundid.ldap.protocol.ExtendedRequestProtocolOp;
+import com.unboundid.ldap.protocol.LDAPMessage;
+import com.unboundid.ldap.protocol.ModifyDNRequestProtocolOp;
+import com.unboundid.ldap.protocol.ModifyRequestProtocolOp;
+import com.unboundid.ldap.protocol.SearchRequestProtocolOp;
+import com.unboundid.ldap.protocol.SearchResultDoneProtocolOp;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.ModifyDNRequest;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.controls.ContentSyncDoneControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestControl;
+import com.unboundid.ldap.sdk.controls.ContentSyncRequestMode;
+import com.unboundid.ldap.sdk.controls.ContentSyncState;
+import com.unboundid.ldap.sdk.controls.ContentSyncStateControl;
+
+/**
+ * Change feed connected to an embedded LDAP server. The server keeps the entries in memory and
+ * answers the Content Synchronization requests from a log of changes, the cookie is the position
+ * on the log
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class LDAPChangeFeedTest {
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final long TIMEOUT = 10000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SyncProvider provider;
+    private LDAPListener listener;
+    private LDAPChangeFeed feed;
+    private final BlockingQueue<LDAPChangeEvent> events = new LinkedBlockingQueue<LDAPChangeEvent>();
+
+    /*
+     * Content Synchronization provider, every change of the entries is added to the log
+     */
+    private static final class SyncProvider {
+        private final InMemoryRequestHandler directory;
+        private final List<ContentSyncStateControl> log = new ArrayList<ContentSyncStateControl>();
+        private final List<Entry> entries = new ArrayList<Entry>();
+        private final BlockingQueue<ContentSyncRequestControl> requests = new LinkedBlockingQueue<ContentSyncRequestControl>();
+        private volatile int generation = 0;
+        private volatile boolean stopped = false;
+
+        private SyncProvider() throws Exception {
+            final InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+            this.directory = new InMemoryRequestHandler(config);
+            this.directory.addEntry(new Entry("dn: " + BASE_DN, "objectClass: top", "objectClass: domain",
+                    "dc: example"), true);
+        }
+
+        private synchronized void add(final String cn) throws Exception {
+            this.directory.addEntry(new Entry("dn: cn=" + cn + "," + BASE_DN, "objectClass: top",
+                    "objectClass: person", "cn: " + cn, "sn: " + cn), true);
+            log(ContentSyncState.ADD, "cn=" + cn + "," + BASE_DN);
+        }
+
+        private synchronized void rename(final String cn, final String newCN) throws Exception {
+            this.directory.modifyDN(new ModifyDNRequest("cn=" + cn + "," + BASE_DN, "cn=" + newCN, true));
+            log(ContentSyncState.MODIFY, "cn=" + newCN + "," + BASE_DN);
+        }
+
+        private synchronized void delete(final String cn, final boolean logged) throws Exception {
+            final String dn = "cn=" + cn + "," + BASE_DN;
+            final UUID uuid = getEntryUUID(dn);
+            this.directory.deleteSubtree(dn);
+            if (logged) {
+                append(new ContentSyncStateControl(ContentSyncState.DELETE, uuid, null), new Entry(dn));
+            }
+        }
+
+        private void log(final ContentSyncState state, final String dn) throws Exception {
+            append(new ContentSyncStateControl(state, getEntryUUID(dn), null), new Entry(this.directory
+                    .getEntry(dn).toLDIF()));
+        }
+
+        private void append(final ContentSyncStateControl state, final Entry entry) {
+            final ASN1OctetString cookie = new ASN1OctetString(String.valueOf(this.log.size() + 1));
+            this.log.add(new ContentSyncStateControl(state.getState(), state.getEntryUUID(), cookie));
+            this.entries.add(entry);
+            notifyAll();
+        }
+
+        private UUID getEntryUUID(final String dn) throws Exception {
+            return UUID.fromString(this.directory.getEntry(dn).getAttributeValue("entryUUID"));
+        }
+
+        /*
+         * Ends the persistent searches with an error, so the feed reconnects
+         */
+        private synchronized void disconnect() {
+            this.generation++;
+            notifyAll();
+        }
+
+        private synchronized void stop() {
+            this.stopped = true;
+            notifyAll();
+        }
+
+        private LDAPMessage search(final LDAPListenerClientConnection connection, final int messageID,
+                final ContentSyncRequestControl request) throws Exception {
+            final int generation = this.generation;
+            this.requests.add(request);
+            int position = request.getCookie() == null ? 0 : Integer.parseInt(request.getCookie().stringValue());
+            while (true) {
+                ContentSyncStateControl state = null;
+                Entry entry = null;
+                synchronized (this) {
+                    while (position >= this.log.size() && !this.stopped && generation == this.generation
+                            && request.getMode() == ContentSyncRequestMode.REFRESH_AND_PERSIST) {
+                        wait(100);
+                    }
+                    if (this.stopped || generation != this.generation) {
+                        return new LDAPMessage(messageID, new SearchResultDoneProtocolOp(
+                                ResultCode.UNAVAILABLE_INT_VALUE, null, "disconnected", null));
+                    }
+                    if (position < this.log.size()) {
+                        state = this.log.get(position);
+                        entry = this.entries.get(position);
+                        position++;
+                    }
+                }
+                if (state == null) {
+                    final ASN1OctetString cookie = new ASN1OctetString(String.valueOf(position));
+                    return new LDAPMessage(messageID, new SearchResultDoneProtocolOp(ResultCode.SUCCESS_INT_VALUE,
+                            null, null, null), new ContentSyncDoneControl(cookie, false));
+                }
+                connection.sendSearchResultEntry(messageID, entry, state);
+            }
+        }
+    }
+
+    /*
+     * Request handler of one connection, the Content Synchronization searches are answered by the
+     * provider and the other requests by the in-memory directory
+     */
+    private static final class SyncRequestHandler extends LDAPListenerRequestHandler {
+        private final SyncProvider provider;
+        private final LDAPListenerClientConnection connection;
+        private final LDAPListenerRequestHandler directory;
+
+        private SyncRequestHandler(final SyncProvider provider, final LDAPListenerClientConnection connection,
+                final LDAPListenerRequestHandler directory) {
+            this.provider = provider;
+            this.connection = connection;
+            this.directory = directory;
+        }
+
+        @Override
+        public LDAPListenerRequestHandler newInstance(final LDAPListenerClientConnection connection)
+                throws com.unboundid.ldap.sdk.LDAPException {
+            return new SyncRequestHandler(this.provider, connection, this.provider.directory.newInstance(connection));
+        }
+
+        @Override
+        public LDAPMessage processAddRequest(final int messageID, final AddRequestProtocolOp request,
+                final List<Control> controls) {
+            return this.directory.processAddRequest(messageID, request, controls);
+        }
+
+        @Override
+        public LDAPMessage processBindRequest(final int messageID, final BindRequestProtocolOp request,
+                final List<Control> controls) {
+            return this.directory.processBindRequest(messageID, request, controls);
+        }
+
+        @Override
+        public LDAPMessage processCompareRequest(final int messageID, final CompareRequestProtocolOp request,
+                final List<Control> controls) {
+            return this.directory.processCompareRequest(messageID, request, controls);
+        }
+
+        @Override
+        public LDAPMessage processDeleteRequest(final int messageID, final DeleteRequestProtocolOp request,
+                final List<Control> controls) {
+            return this.directory.processDeleteRequest(messageID, request, controls);
+        }
+
+        @Override
+        public LDAPMessage processExtendedRequest(final int messageID, final ExtendedRequestProtocolOp request,
+                final List<Control> controls) {
+            return this.directory.processExtendedRequest(messageID, request, controls);
+        }
+
+        @Override
+        public LDAPMessage processModifyRequest(final int messageID, final ModifyRequestProtocolOp request,
+                final List<Control> controls) {
+            return this.directory.processModifyRequest(messageID, request, controls);
+        }
+
+        @Override
+        public LDAPMessage processModifyDNRequest(final int messageID, final ModifyDNRequestProtocolOp request,
+                final List<Control> controls) {
+            return this.directory.processModifyDNRequest(messageID, request, controls);
+        }
+
+        @Override
+        public LDAPMessage processSearchRequest(final int messageID, final SearchRequestProtocolOp request,
+                final List<Control> controls) {
+            for (final Control control : controls) {
+                if (ContentSyncRequestControl.SYNC_REQUEST_OID.equals(control.getOID())) {
+                    try {
+                        return this.provider.search(this.connection, messageID,
+                                new ContentSyncRequestControl(control));
+                    } catch (final Exception e) {
+                        return new LDAPMessage(messageID, new SearchResultDoneProtocolOp(
+                                ResultCode.OTHER_INT_VALUE, null, String.valueOf(e), null));
+                    }
+                }
+            }
+            return this.directory.processSearchRequest(messageID, request, controls);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        this.provider = new SyncProvider();
+        final LDAPListenerConfig config = new LDAPListenerConfig(0, new SyncRequestHandler(this.provider, null,
+                null));
+        this.listener = new LDAPListener(config);
+        this.listener.startListening();
+        this.feed = new LDAPChangeFeed(new LDAPConnection("localhost", this.listener.getListenPort()), BASE_DN);
+        this.feed.setMode(LDAPChangeFeed.MODE_SYNC);
+        this.feed.setRetryInterval(100L);
+        this.feed.addListener(new LDAPChangeListener() {
+            @Override
+            public void entryChanged(final LDAPChangeEvent event) {
+                LDAPChangeFeedTest.this.events.add(event);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.feed.stop();
+        this.provider.stop();
+        this.listener.shutDown(true);
+    }
+
+    private LDAPChangeEvent nextEvent() throws InterruptedException {
+        final LDAPChangeEvent event = this.events.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("no change received", event);
+        return event;
+    }
+
+    private ContentSyncRequestControl nextRequest() throws InterruptedException {
+        final ContentSyncRequestControl request = this.provider.requests.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("no synchronization request received", request);
+        return request;
+    }
+
+    private static void assertEvent(final int type, final String cn, final LDAPChangeEvent event) {
+        assertEquals(type, event.getType());
+        assertEquals("cn=" + cn + "," + BASE_DN, event.getDN());
+    }
+
+    @Test
+    public void testChanges() throws Exception {
+        this.provider.add("a");
+        this.feed.start();
+        assertEvent(LDAPChangeEvent.ADD, "a", nextEvent());
+
+        this.provider.rename("a", "b");
+        final LDAPChangeEvent rename = nextEvent();
+        assertEvent(LDAPChangeEvent.RENAME, "b", rename);
+        assertEquals("cn=a," + BASE_DN, rename.getPreviousDN());
+
+        this.provider.delete("b", true);
+        final LDAPChangeEvent delete = nextEvent();
+        assertEvent(LDAPChangeEvent.DELETE, "b", delete);
+        assertEquals("3", new String(delete.getCookie(), "UTF-8"));
+    }
+
+    @Test
+    public void testResumeFromStoredCookie() throws Exception {
+        this.provider.add("a");
+        this.provider.add("b");
+        final CheckpointStore store = new CheckpointStoreFile(new File(this.folder.getRoot(), "checkpoints"));
+        store.setCheckpoint("feed", ChangeToken.valueOf("localhost", "1".getBytes("UTF-8")));
+        this.feed.setCheckpointStore(store, "feed");
+        this.feed.start();
+
+        final ContentSyncRequestControl request = nextRequest();
+        assertEquals(ContentSyncRequestMode.REFRESH_AND_PERSIST, request.getMode());
+        assertEquals("1", request.getCookie().stringValue());
+        assertEvent(LDAPChangeEvent.ADD, "b", nextEvent());
+
+        this.provider.add("c");
+        assertEvent(LDAPChangeEvent.ADD, "c", nextEvent());
+
+        /*
+         * the cookie is stored after all the listeners processed the change
+         */
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!"3".equals(new String(store.getCheckpoint("feed").getBinaryValue(), "UTF-8"))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        assertEquals("3", new String(store.getCheckpoint("feed").getBinaryValue(), "UTF-8"));
+    }
+
+    @Test
+    public void testResumeAfterReconnection() throws Exception {
+        this.provider.add("a");
+        this.feed.start();
+        assertNull(nextRequest().getCookie());
+        assertEvent(LDAPChangeEvent.ADD, "a", nextEvent());
+
+        this.provider.disconnect();
+        assertEquals("1", nextRequest().getCookie().stringValue());
+        this.provider.add("b");
+        assertEvent(LDAPChangeEvent.ADD, "b", nextEvent());
+    }
+
+    @Test
+    public void testReconcile() throws Exception {
+        this.provider.add("a");
+        this.provider.add("b");
+        this.feed.setReconcile(true);
+        this.feed.start();
+
+        final ContentSyncRequestControl refresh = nextRequest();
+        assertEquals(ContentSyncRequestMode.REFRESH_ONLY, refresh.getMode());
+        assertNull(refresh.getCookie());
+        assertEvent(LDAPChangeEvent.ADD, "a", nextEvent());
+        assertEvent(LDAPChangeEvent.ADD, "b", nextEvent());
+        assertEquals(LDAPChangeEvent.REFRESH, nextEvent().getType());
+        assertEquals(ContentSyncRequestMode.REFRESH_AND_PERSIST, nextRequest().getMode());
+
+        /*
+         * the delete is not on the log, like the deletes that JNDI does not deliver
+         */
+        this.provider.delete("a", false);
+        this.provider.disconnect();
+        assertEquals("2", nextRequest().getCookie().stringValue());
+        assertEvent(LDAPChangeEvent.DELETE, "a", nextEvent());
+    }
+}
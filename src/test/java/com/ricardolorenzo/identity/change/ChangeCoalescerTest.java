@@ -0,0 +1,228 @@
+/*
+ * ChangeCoalescerTest class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.change;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ricardolorenzo.identity.IdentityException;
+import com.ricardolorenzo.identity.user.UserIdentity;
+
+/**
+ * Changes merged by a coalescer that is not started, the changes are only emitted by
+ * <code>flush()</code> or when the capacity is reached
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ChangeCoalescerTest {
+    private static final long WINDOW = 60000L;
+    private static final String SOURCE = "source";
+    private final List<List<IdentityChange>> batches = new ArrayList<List<IdentityChange>>();
+    private IdentityChangeListener failure;
+    private ChangeCoalescer coalescer;
+
+    @Before
+    public void setUp() throws Exception {
+        this.failure = null;
+        this.coalescer = createCoalescer(10);
+    }
+
+    private ChangeCoalescer createCoalescer(final int capacity) {
+        return new ChangeCoalescer(new IdentityChangeListener() {
+            @Override
+            public void identitiesChanged(final List<IdentityChange> changes) throws IdentityException {
+                final IdentityChangeListener listener = ChangeCoalescerTest.this.failure;
+                if (listener != null) {
+                    ChangeCoalescerTest.this.failure = null;
+                    listener.identitiesChanged(changes);
+                    throw new IdentityException("listener failed");
+                }
+                ChangeCoalescerTest.this.batches.add(new ArrayList<IdentityChange>(changes));
+            }
+        }, WINDOW, WINDOW, capacity);
+    }
+
+    private static IdentityChange change(final int type, final String uid, final String cn) {
+        final UserIdentity user = new UserIdentity();
+        user.setID(uid);
+        user.setAttribute(UserIdentity.DEFAULT_ATTRIBUTE_CN, cn);
+        return new IdentityChange(type, SOURCE, user);
+    }
+
+    private static void assertChange(final int type, final String uid, final String cn, final IdentityChange change) {
+        assertEquals(type, change.getType());
+        assertEquals(uid, change.getIdentity().getID());
+        assertEquals(cn, change.getIdentity().getAttributeFirstStringValue(UserIdentity.DEFAULT_ATTRIBUTE_CN));
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        this.coalescer.addChange(change(IdentityChange.ADD, "a", "1"));
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "a", "2"));
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "b", "1"));
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "b", "2"));
+        this.coalescer.addChange(change(IdentityChange.DELETE, "c", "1"));
+        this.coalescer.addChange(change(IdentityChange.ADD, "c", "2"));
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "d", "1"));
+        this.coalescer.addChange(change(IdentityChange.DELETE, "d", "2"));
+        assertEquals(4, this.coalescer.getPendingCount());
+        this.coalescer.flush();
+
+        assertEquals(1, this.batches.size());
+        final List<IdentityChange> changes = this.batches.get(0);
+        assertEquals(4, changes.size());
+        assertChange(IdentityChange.ADD, "a", "2", changes.get(0));
+        assertChange(IdentityChange.MODIFY, "b", "2", changes.get(1));
+        assertChange(IdentityChange.MODIFY, "c", "2", changes.get(2));
+        assertChange(IdentityChange.DELETE, "d", "2", changes.get(3));
+        assertEquals(0, this.coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testAddedAndDeleted() throws Exception {
+        this.coalescer.addChange(change(IdentityChange.ADD, "a", "1"));
+        this.coalescer.addChange(change(IdentityChange.DELETE, "a", "1"));
+        assertEquals(1, this.coalescer.getPendingCount());
+        this.coalescer.flush();
+
+        assertTrue(this.batches.isEmpty());
+        assertEquals(0, this.coalescer.getPendingCount());
+    }
+
+    @Test
+    public void testPlaceholderOrder() throws Exception {
+        this.coalescer.addChange(change(IdentityChange.ADD, "a", "1"));
+        this.coalescer.addChange(change(IdentityChange.DELETE, "a", "1"));
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "b", "1"));
+        this.coalescer.addChange(change(IdentityChange.ADD, "a", "2"));
+        this.coalescer.flush();
+
+        /*
+         * the identity added again keeps the place of the pair that cancelled itself
+         */
+        final List<IdentityChange> changes = this.batches.get(0);
+        assertEquals(2, changes.size());
+        assertChange(IdentityChange.ADD, "a", "2", changes.get(0));
+        assertChange(IdentityChange.MODIFY, "b", "1", changes.get(1));
+    }
+
+    @Test
+    public void testRequeue() throws Exception {
+        this.failure = new IdentityChangeListener() {
+            @Override
+            public void identitiesChanged(final List<IdentityChange> changes) {
+                // fails without changes received meanwhile
+            }
+        };
+        this.coalescer.addChange(change(IdentityChange.ADD, "a", "1"));
+        try {
+            this.coalescer.flush();
+            fail("listener failure not thrown");
+        } catch (final IdentityException e) {
+            // expected
+        }
+        assertEquals(1, this.coalescer.getPendingCount());
+
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "a", "2"));
+        this.coalescer.flush();
+        assertEquals(1, this.batches.size());
+        assertEquals(1, this.batches.get(0).size());
+        assertChange(IdentityChange.ADD, "a", "2", this.batches.get(0).get(0));
+    }
+
+    @Test
+    public void testRequeueBeforePlaceholder() throws Exception {
+        this.failure = new IdentityChangeListener() {
+            @Override
+            public void identitiesChanged(final List<IdentityChange> changes) throws IdentityException {
+                /*
+                 * added and deleted again while the older change is being emitted
+                 */
+                ChangeCoalescerTest.this.coalescer.addChange(change(IdentityChange.ADD, "a", "2"));
+                ChangeCoalescerTest.this.coalescer.addChange(change(IdentityChange.DELETE, "a", "2"));
+            }
+        };
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "a", "1"));
+        try {
+            this.coalescer.flush();
+            fail("listener failure not thrown");
+        } catch (final IdentityException e) {
+            // expected
+        }
+        this.coalescer.flush();
+
+        assertEquals(1, this.batches.size());
+        assertEquals(1, this.batches.get(0).size());
+        assertEquals(IdentityChange.DELETE, this.batches.get(0).get(0).getType());
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        this.coalescer = createCoalescer(2);
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "a", "1"));
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "b", "1"));
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "b", "2"));
+        assertTrue(this.batches.isEmpty());
+
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "c", "1"));
+        assertEquals(1, this.batches.size());
+        assertEquals(1, this.batches.get(0).size());
+        assertChange(IdentityChange.MODIFY, "a", "1", this.batches.get(0).get(0));
+        assertEquals(2, this.coalescer.getPendingCount());
+
+        this.coalescer.flush();
+        final List<IdentityChange> changes = this.batches.get(1);
+        assertEquals(2, changes.size());
+        assertChange(IdentityChange.MODIFY, "b", "2", changes.get(0));
+        assertChange(IdentityChange.MODIFY, "c", "1", changes.get(1));
+    }
+
+    @Test
+    public void testCapacityListenerFailure() throws Exception {
+        this.coalescer = createCoalescer(1);
+        this.coalescer.addChange(change(IdentityChange.MODIFY, "a", "1"));
+        this.failure = new IdentityChangeListener() {
+            @Override
+            public void identitiesChanged(final List<IdentityChange> changes) {
+                // fails without changes received meanwhile
+            }
+        };
+        final IdentityChange rejected = change(IdentityChange.MODIFY, "b", "1");
+        try {
+            this.coalescer.addChange(rejected);
+            fail("listener failure not thrown");
+        } catch (final IdentityException e) {
+            // expected
+        }
+        assertEquals(1, this.coalescer.getPendingCount());
+
+        this.coalescer.addChange(rejected);
+        this.coalescer.flush();
+        assertEquals(2, this.batches.size());
+        assertChange(IdentityChange.MODIFY, "a", "1", this.batches.get(0).get(0));
+        assertSame(rejected, this.batches.get(1).get(0));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * ChangeLeaseManagerTest class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.change;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ricardolorenzo.db.DBConnectionManager;
+
+/**
+ * Leases stored on an in-memory H2 database shared by two nodes
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class ChangeLeaseManagerTest {
+    private static final long DURATION = 200L;
+    private DBConnectionManager dbm;
+    private ChangeLeaseManager nodeA;
+    private ChangeLeaseManager nodeB;
+
+    @Before
+    public void setUp() throws Exception {
+        final Properties conf = new Properties();
+        conf.setProperty("database.driver", "org.h2.Driver");
+        conf.setProperty("database.url", "jdbc:h2:mem:lease;DB_CLOSE_DELAY=-1");
+        conf.setProperty("database.user", "sa");
+        conf.setProperty("database.password", "");
+        this.dbm = new DBConnectionManager(conf);
+        this.dbm.getConnection().query(
+                "CREATE TABLE identity_lease (name VARCHAR(255) NOT NULL PRIMARY KEY, "
+                        + "owner VARCHAR(255) NOT NULL, expires BIGINT NOT NULL)");
+        this.nodeA = new ChangeLeaseManager(this.dbm, null, "a", DURATION);
+        this.nodeB = new ChangeLeaseManager(this.dbm, null, "b", DURATION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.dbm.getConnection().query("DROP TABLE identity_lease");
+    }
+
+    @Test
+    public void testAcquire() throws Exception {
+        assertTrue(this.nodeA.acquire("partition"));
+        assertTrue(this.nodeA.isHeld("partition"));
+        assertFalse(this.nodeB.acquire("partition"));
+        assertFalse(this.nodeB.isHeld("partition"));
+        assertEquals("a", this.nodeA.getOwners().get("partition"));
+    }
+
+    @Test
+    public void testRenew() throws Exception {
+        assertTrue(this.nodeA.acquire("partition"));
+        Thread.sleep(DURATION / 2);
+        assertTrue(this.nodeA.acquire("partition"));
+        Thread.sleep(DURATION / 2 + 50);
+        assertFalse(this.nodeB.acquire("partition"));
+        assertEquals("a", this.nodeB.getOwners().get("partition"));
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        assertTrue(this.nodeA.acquire("partition"));
+        Thread.sleep(DURATION + 50);
+        assertFalse(this.nodeA.isHeld("partition"));
+        assertTrue(this.nodeA.getOwners().isEmpty());
+    }
+
+    @Test
+    public void testTakeover() throws Exception {
+        assertTrue(this.nodeA.acquire("partition"));
+        Thread.sleep(DURATION + 50);
+        assertTrue(this.nodeB.acquire("partition"));
+        assertFalse(this.nodeA.acquire("partition"));
+        assertEquals("b", this.nodeA.getOwners().get("partition"));
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        assertTrue(this.nodeA.acquire("partition"));
+        this.nodeB.release("partition");
+        assertFalse(this.nodeB.acquire("partition"));
+        this.nodeA.release("partition");
+        assertFalse(this.nodeA.isHeld("partition"));
+        assertTrue(this.nodeB.acquire("partition"));
+    }
+
+    @Test
+    public void testNodes() throws Exception {
+        this.nodeA.heartbeat();
+        this.nodeB.heartbeat();
+        final List<String> nodes = this.nodeA.getNodes();
+        assertEquals(2, nodes.size());
+        assertTrue(nodes.contains("a"));
+        assertTrue(nodes.contains("b"));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * UserIdentityManagerJDBCDatabaseTest class
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *
+ * Author: Ricardo Lorenzo <unshakablespirit@gmail.com>
+ */
+package com.ricardolorenzo.identity.user.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.ricardolorenzo.db.DBConnectionManager;
+import com.ricardolorenzo.identity.ChangeToken;
+import com.ricardolorenzo.identity.IdentityAttributeMap;
+import com.ricardolorenzo.identity.script.ScriptCollection;
+import com.ricardolorenzo.identity.user.UserIdentity;
+import com.ricardolorenzo.identity.user.UserIdentityChanges;
+import com.ricardolorenzo.identity.user.UserIdentityManager;
+
+/**
+ * Changes read from a change log stored on an in-memory H2 database
+ *
+ * @author Ricardo Lorenzo
+ *
+ */
+public class UserIdentityManagerJDBCDatabaseTest {
+    private static final String USER_CHANGES = "SELECT change_sequence, change_type, uid FROM user_changelog "
+            + "WHERE change_sequence > [[[@sequence@]]] ORDER BY change_sequence "
+            + "FETCH FIRST [[[@limit@]]] ROWS ONLY";
+    private DBConnectionManager dbm;
+
+    @Before
+    public void setUp() throws Exception {
+        this.dbm = new DBConnectionManager(getConfiguration());
+        this.dbm.getConnection().query(
+                "CREATE TABLE user_changelog (change_sequence BIGINT NOT NULL PRIMARY KEY, "
+                        + "change_type CHAR(1) NOT NULL, uid VARCHAR(255) NOT NULL)");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.dbm.getConnection().query("DROP TABLE user_changelog");
+    }
+
+    private static Properties getConfiguration() {
+        final Properties conf = new Properties();
+        conf.setProperty("identity.type", UserIdentityManager.USER_MANAGER_JDBC);
+        conf.setProperty("database.driver", "org.h2.Driver");
+        conf.setProperty("database.url", "jdbc:h2:mem:changes;DB_CLOSE_DELAY=-1");
+        conf.setProperty("database.user", "sa");
+        conf.setProperty("database.password", "");
+        return conf;
+    }
+
+    private static UserIdentityManager createManager(final int margin, final int batchSize) throws Exception {
+        final Properties conf = getConfiguration();
+        conf.setProperty("database.changes.margin", String.valueOf(margin));
+        conf.setProperty("database.changes.batchSize", String.valueOf(batchSize));
+        final IdentityAttributeMap attributeMap = new IdentityAttributeMap();
+        attributeMap.setAttributeMap(UserIdentity.DEFAULT_ATTRIBUTE_UID, "[[[uid]]]");
+        final ScriptCollection scripts = new ScriptCollection();
+        scripts.setScript(ScriptCollection.USER_CHANGES, USER_CHANGES);
+        return UserIdentityManager.getInstance(conf, attributeMap, scripts);
+    }
+
+    private void log(final long sequence, final String type, final String uid) throws Exception {
+        this.dbm.getConnection().query(
+                "INSERT INTO user_changelog VALUES (" + sequence + ", '" + type + "', '" + uid + "')");
+    }
+
+    private static List<String> getUIDs(final List<UserIdentity> users) {
+        final List<String> uids = new ArrayList<String>();
+        for (final UserIdentity user : users) {
+            uids.add(user.getAttributeFirstStringValue(UserIdentity.DEFAULT_ATTRIBUTE_UID));
+        }
+        return uids;
+    }
+
+    @Test
+    public void testChanges() throws Exception {
+        final UserIdentityManager manager = createManager(5, 100);
+        log(1, "I", "a");
+        log(2, "U", "b");
+        log(3, "D", "c");
+        log(4, "U", "a");
+        log(5, "I", "d");
+        log(6, "D", "d");
+
+        final UserIdentityChanges changes = manager.getChangesSince(null);
+        assertEquals(Arrays.asList("b", "a"), getUIDs(changes.getModified()));
+        assertEquals(Arrays.asList("c", "d"), getUIDs(changes.getDeleted()));
+        assertFalse(changes.hasMoreChanges());
+        assertEquals("6:2:3:4:5:6", changes.getToken().getValue());
+    }
+
+    @Test
+    public void testTokenRoundTrip() throws Exception {
+        final UserIdentityManager manager = createManager(5, 100);
+        log(1, "I", "a");
+        log(2, "U", "b");
+        final ChangeToken token = ChangeToken.parse(manager.getChangesSince(null).getToken().toString());
+        assertEquals("2:1:2", token.getValue());
+
+        UserIdentityChanges changes = manager.getChangesSince(token);
+        assertTrue(changes.getModified().isEmpty());
+        assertTrue(changes.getDeleted().isEmpty());
+        assertEquals(token, changes.getToken());
+
+        log(3, "U", "c");
+        changes = manager.getChangesSince(ChangeToken.parse(changes.getToken().toString()));
+        assertEquals(Arrays.asList("c"), getUIDs(changes.getModified()));
+        assertEquals("3:1:2:3", changes.getToken().getValue());
+    }
+
+    @Test
+    public void testMargin() throws Exception {
+        final UserIdentityManager manager = createManager(2, 100);
+        log(1, "I", "a");
+        log(2, "I", "b");
+        log(5, "I", "e");
+        final ChangeToken token = manager.getChangesSince(null).getToken();
+        assertEquals("5:5", token.getValue());
+
+        /*
+         * committed after the sequence 5 was read, only the one inside the margin is found
+         */
+        log(4, "I", "d");
+        log(3, "I", "c");
+        final UserIdentityChanges changes = manager.getChangesSince(token);
+        assertEquals(Arrays.asList("d"), getUIDs(changes.getModified()));
+        assertEquals("5:4:5", changes.getToken().getValue());
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        final UserIdentityManager manager = createManager(5, 2);
+        log(1, "I", "a");
+        log(2, "I", "b");
+        log(3, "I", "c");
+
+        UserIdentityChanges changes = manager.getChangesSince(null);
+        assertEquals(Arrays.asList("a", "b"), getUIDs(changes.getModified()));
+        assertTrue(changes.hasMoreChanges());
+
+        /*
+         * the rows of the margin already read do not count on the batch
+         */
+        changes = manager.getChangesSince(changes.getToken());
+        assertEquals(Arrays.asList("c"), getUIDs(changes.getModified()));
+        assertFalse(changes.hasMoreChanges());
+        assertEquals("3:1:2:3", changes.getToken().getValue());
+    }
+}